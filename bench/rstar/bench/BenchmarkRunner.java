@@ -0,0 +1,26 @@
+package rstar.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * runs the benchmarks matching the optional regex argument (all
+ * by default) with the GC profiler, which reports allocation
+ * per operation next to the times.
+ *
+ * usage: BenchmarkRunner [regex], from an empty directory with
+ * src, bench and the JMH jars on the classpath and annotation
+ * processing enabled.
+ */
+public class BenchmarkRunner {
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(args.length > 0 ? args[0] : "rstar\\.bench\\..*")
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
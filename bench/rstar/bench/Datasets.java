@@ -0,0 +1,61 @@
+package rstar.bench;
+
+import java.util.Random;
+
+/**
+ * synthetic point sets in the unit cube for the benchmarks
+ */
+public class Datasets {
+    public static final String UNIFORM = "uniform";
+    public static final String CLUSTERED = "clustered";
+    public static final String SKEWED = "skewed";
+
+    private static final int CLUSTERS = 16;
+    private static final double CLUSTER_SIGMA = 0.05;
+
+    /**
+     * @param kind UNIFORM, CLUSTERED (gaussian clusters around
+     *             CLUSTERS random centers) or SKEWED (each
+     *             co-ordinate u^4, crowded towards the origin)
+     * @return n points of the given dimension, the same for equal seeds
+     */
+    public static float[][] generate(String kind, int n, int dimension, long seed) {
+        Random random = new Random(seed);
+        float[][] points = new float[n][dimension];
+
+        if (kind.equals(UNIFORM)) {
+            for (float[] point : points) {
+                for (int i = 0; i < dimension; i++) {
+                    point[i] = random.nextFloat();
+                }
+            }
+        } else if (kind.equals(CLUSTERED)) {
+            float[][] centers = generate(UNIFORM, CLUSTERS, dimension, seed + 1);
+            for (float[] point : points) {
+                float[] center = centers[random.nextInt(CLUSTERS)];
+                for (int i = 0; i < dimension; i++) {
+                    double c = center[i] + random.nextGaussian() * CLUSTER_SIGMA;
+                    point[i] = (float) Math.min(Math.max(c, 0), 1);
+                }
+            }
+        } else if (kind.equals(SKEWED)) {
+            for (float[] point : points) {
+                for (int i = 0; i < dimension; i++) {
+                    float u = random.nextFloat();
+                    point[i] = u * u * u * u;
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown dataset " + kind);
+        }
+        return points;
+    }
+
+    /**
+     * half the side of a query cube covering the given fraction
+     * of the unit cube, i.e. the range for rangeSearch
+     */
+    public static double rangeFor(double selectivity, int dimension) {
+        return Math.pow(selectivity, 1.0 / dimension) / 2;
+    }
+}
@@ -0,0 +1,73 @@
+package rstar.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import rstar.RStarTree;
+import rstar.spatial.SpatialPoint;
+import util.Constants;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * inserts into a tree that starts empty each trial and grows
+ * with the measurement, so later iterations insert into a
+ * deeper tree. with wal=true every insert waits for its fsync.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InsertBenchmark {
+    private static final int POINTS = 1 << 20;
+
+    @Param({Datasets.UNIFORM, Datasets.CLUSTERED, Datasets.SKEWED})
+    public String dataset;
+
+    @Param({"2", "3", "16"})
+    public int dimension;
+
+    @Param({"false", "true"})
+    public boolean wal;
+
+    private RStarTree tree;
+    private SpatialPoint[] points;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        TreeState.checkWorkingDirectory();
+        Constants.WAL_ENABLED = wal;
+        tree = new RStarTree(dimension);
+        float[][] cords = Datasets.generate(dataset, POINTS, dimension, 42);
+        points = new SpatialPoint[POINTS];
+        for (int i = 0; i < POINTS; i++) {
+            points[i] = new SpatialPoint(cords[i], i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        TreeState.deleteTreeFiles();
+    }
+
+    @Benchmark
+    public int insert() {
+        // past POINTS the dataset is inserted again, as duplicates
+        SpatialPoint point = points[next & (POINTS - 1)];
+        next++;
+        return tree.insert(point);
+    }
+}
@@ -0,0 +1,66 @@
+package rstar.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rstar.spatial.SpatialPoint;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * point, range and kNN searches on a tree built by TreeState.
+ * every invocation searches around the next query center.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class RangeParams {
+        /**
+         * share of the unit cube covered by the query
+         */
+        @Param({"0.0001", "0.001", "0.01"})
+        public double selectivity;
+        public double range;
+
+        @Setup(Level.Trial)
+        public void setup(TreeState state) {
+            range = Datasets.rangeFor(selectivity, state.dimension);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class KnnParams {
+        @Param({"1", "10", "100"})
+        public int k;
+    }
+
+    @Benchmark
+    public float pointSearch(TreeState state) {
+        return state.tree.pointSearch(state.nextQuery());
+    }
+
+    @Benchmark
+    public List<SpatialPoint> rangeSearch(TreeState state, RangeParams params) {
+        return state.tree.rangeSearch(state.nextQuery(), params.range);
+    }
+
+    @Benchmark
+    public List<SpatialPoint> knnSearch(TreeState state, KnnParams params) {
+        return state.tree.knnSearch(state.nextQuery(), params.k);
+    }
+}
@@ -0,0 +1,72 @@
+package rstar.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import rstar.RStarTree;
+import rstar.codec.JavaNodeCodec;
+import rstar.nodes.RStarSplit;
+import rstar.spatial.GeometryKernel;
+import rstar.spatial.SpatialPoint;
+import util.Constants;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the CPU side of a leaf split: choosing the split axis and the
+ * split point for an overflowing leaf of M+1 points, M being the
+ * leaf capacity of the default page size and codec. nothing is
+ * read or written.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SplitBenchmark {
+    @Param({Datasets.UNIFORM, Datasets.CLUSTERED, Datasets.SKEWED})
+    public String dataset;
+
+    @Param({"2", "3", "16"})
+    public int dimension;
+
+    private RStarSplit split;
+    private ArrayList<SpatialPoint> overflow;
+    private int axis;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Constants.DIMENSION = dimension;
+        Constants.MAX_LEAF_CHILDREN = RStarTree.capacity(new JavaNodeCodec(), true, Constants.PAGESIZE, dimension);
+        Constants.MIN_LEAF_CHILDREN = RStarTree.minChildren(Constants.MAX_LEAF_CHILDREN, Constants.LEAF_MIN_FILL);
+
+        split = new RStarSplit(dimension, null, GeometryKernel.forDimension(dimension));
+        float[][] cords = Datasets.generate(dataset, Constants.MAX_LEAF_CHILDREN + 1, dimension, 42);
+        overflow = new ArrayList<SpatialPoint>(cords.length);
+        for (int i = 0; i < cords.length; i++) {
+            overflow.add(new SpatialPoint(cords[i], i));
+        }
+        axis = split.chooseLeafSplitAxis(overflow);
+    }
+
+    @Benchmark
+    public int chooseSplitAxis() {
+        return split.chooseLeafSplitAxis(overflow);
+    }
+
+    @Benchmark
+    public int chooseSplitPoint() {
+        return split.chooseLeafSplitpoint(overflow, axis);
+    }
+}
@@ -0,0 +1,98 @@
+package rstar.bench;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import rstar.RStarTree;
+import rstar.spatial.SpatialPoint;
+import util.Constants;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * a tree filled with a synthetic dataset, built once per trial.
+ *
+ * the tree lives in the working directory under the usual file
+ * names, so the benchmarks refuse to run where a tree already
+ * exists and delete everything they created afterwards.
+ */
+@State(Scope.Benchmark)
+public class TreeState {
+    public static final int QUERIES = 1024;
+
+    @Param({Datasets.UNIFORM, Datasets.CLUSTERED, Datasets.SKEWED})
+    public String dataset;
+
+    @Param({"2", "3", "16"})
+    public int dimension;
+
+    @Param({"10000"})
+    public int size;
+
+    public RStarTree tree;
+    public float[][] points;
+    /**
+     * query centers, points of the dataset picked at random
+     */
+    public SpatialPoint[] queries;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void build() {
+        checkWorkingDirectory();
+        boolean wal = Constants.WAL_ENABLED;
+        Constants.WAL_ENABLED = false;          // loading is not what is measured
+        try {
+            tree = new RStarTree(dimension);
+            points = Datasets.generate(dataset, size, dimension, 42);
+            for (int i = 0; i < points.length; i++) {
+                tree.insert(new SpatialPoint(points[i], i));
+            }
+        } finally {
+            Constants.WAL_ENABLED = wal;
+        }
+
+        Random random = new Random(7);
+        queries = new SpatialPoint[QUERIES];
+        for (int q = 0; q < QUERIES; q++) {
+            queries[q] = new SpatialPoint(points[random.nextInt(size)]);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void destroy() {
+        deleteTreeFiles();
+    }
+
+    /**
+     * @return the next query center, round robin
+     */
+    public SpatialPoint nextQuery() {
+        next = (next + 1) & (QUERIES - 1);
+        return queries[next];
+    }
+
+    static void checkWorkingDirectory() {
+        if (new File(Constants.TREE_FILE).exists() || new File(Constants.TREE_DATA_DIRECTORY).exists())
+            throw new IllegalStateException("A tree exists in " + new File("").getAbsolutePath()
+                    + ", run the benchmarks in an empty directory");
+    }
+
+    static void deleteTreeFiles() {
+        File dir = new File(Constants.TREE_DATA_DIRECTORY);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+        new File(Constants.TREE_FILE).delete();
+        new File(Constants.DATA_FILE).delete();
+        new File(Constants.WAL_FILE).delete();
+    }
+}
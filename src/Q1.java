@@ -1,3 +1,6 @@
+import driver.IOperationSink;
+import driver.OperationReader;
+import driver.Workload;
 import rstar.RStarTree;
 import rstar.spatial.SpatialPoint;
 import util.Trace;
@@ -25,9 +28,9 @@ public class Q1 {
     public static void main(String[] args) {
         Q1 controller = new Q1(args);
 
-		System.out.println("Reading input file ...");
+		controller.logger.trace("Reading input file ...");
 		controller.processInput();
-		System.out.println("Finished Processing file ...");
+		controller.logger.trace("Finished Processing file ...");
 
         controller.writeRuntimeToFile(controller.insertRunTime, "Insertion_runtime.txt");
         controller.writeRuntimeToFile(controller.searchRunTime, "Search_runtime.txt");
@@ -56,160 +59,76 @@ public class Q1 {
 		this.searchRunTime = new ArrayList<Long>();
 		this.rangeRuntime = new ArrayList<Long>();
 		this.knnRuntime = new ArrayList<Long>();
+        Trace.FULL_POLICY = Trace.BLOCK;         // the search results go through the log
         logger = Trace.getLogger(this.getClass().getSimpleName());
 	}
 
 
 	protected void processInput() {
-        float opType, oid, k;
-		double range;
-        float[] point;
-        long start, end;
-        int lineNum = 0;
-
         try {
-            BufferedReader input =  new BufferedReader(new FileReader(this.inputFile));
-            String line;
-            String[] lineSplit;
-
-			while ((line = input.readLine()) != null) {
-				lineNum++;
-                lineSplit = line.split(",");
-                opType = Float.parseFloat(lineSplit[0]);
-
-				switch ((int)opType) {
-				case 0:
-				{       //insertion
-					try {
-                        if (lineSplit.length != (this.dimension + 2)) {
-                            throw new AssertionError();
-                        }
-
-                        oid = Float.parseFloat(lineSplit[1]);
-                        point = extractPoint(lineSplit, 2);
-
-                        start = System.currentTimeMillis();
-						tree.insert(new SpatialPoint(point, oid));
-                        end = System.currentTimeMillis();
-
-                        this.updateTimeTaken(opType, (end - start));
-                        break;
-
-                    } catch (Exception e) {
-                        logger.traceError("Exception while processing line " + lineNum +
-                                ". Skipped Insertion. message: "+e.getMessage());
-                        break;
-                    }
-                    catch (AssertionError error){
-                        logger.traceError("Error while processing line " + lineNum +
-                                ".Skipped Insertion. message: "+ error.getMessage());
-                        break;
-                    }
+            new OperationReader(new File(this.inputFile), this.dimension).read(new IOperationSink() {
+                @Override
+                public void operation(long line, int type, float oid, float[] cords, double param) {
+                    process(line, type, oid, cords, param);
                 }
 
-                    case 1:
-				{     //point search
-                    try{
-                        if (lineSplit.length != this.dimension + 1) {
-                            throw new AssertionError();
-                        }
-                        point = extractPoint(lineSplit, 1);
+                @Override
+                public void invalid(long line) {
+                    logger.traceError("Invalid operation at line " + line + ". Skipped .. ");
+                }
+            }, Runtime.getRuntime().availableProcessors());
+            tree.save();
+		}
+		catch (Exception e) {
+			logger.traceError("Error while reading input file. Error Details: " + e.getMessage());
+		}
+	}
 
-                        start = System.currentTimeMillis();
-                        oid = tree.pointSearch(new SpatialPoint(point));
-                        end = System.currentTimeMillis();
+    private void process(long lineNum, int opType, float oid, float[] cords, double param) {
+        long start, end;
+        String[] names = {"Insertion", "Point Search", "range search", "knn search"};
+        try {
+            SpatialPoint point = opType == Workload.INSERT
+                    ? new SpatialPoint(cords.clone(), oid)
+                    : new SpatialPoint(cords.clone());
+            switch (opType) {
+                case Workload.INSERT:
+                    start = System.nanoTime();
+                    tree.insert(point);
+                    end = System.nanoTime();
+                    break;
 
+                case Workload.POINT_SEARCH:
+                    start = System.nanoTime();
+                    oid = tree.pointSearch(point);
+                    end = System.nanoTime();
+                    if (logger.isEnabled(Trace.INFO))
                         logger.trace("search result: " + oid);
-                        this.updateTimeTaken(opType, (end - start));
-                    } catch (Exception e) {
-                        logger.traceError("Exception while processing line " + lineNum +
-                                ". Skipped Point Search. message: "+e.getMessage());
-                    }
-                    catch (AssertionError error){
-                        logger.traceError("Error while processing line " + lineNum +
-                                ". Skipped Point Search. message: "+error.getMessage());
-                    }
                     break;
-                }
 
-                    case 2:
-				{   //range search
-                    try{
-                        if (lineSplit.length != this.dimension + 2) {
-                            throw new AssertionError();
-                        }
-
-                        point = extractPoint(lineSplit, 1);
-                        range = Double.parseDouble(lineSplit[this.dimension + 1]);
-                        SpatialPoint center = new SpatialPoint(point);
-
-                        start = System.currentTimeMillis();
-                        List<SpatialPoint> result = tree.rangeSearch(center, range);
-                        end = System.currentTimeMillis();
-
-                        logger.trace("Range Search(" + range + ", " + center + "): " + Utils.SpatialPointListToString(result));
-                        this.updateTimeTaken(opType, (end - start));
-                    } catch (Exception e) {
-                        logger.traceError("Exception while processing line " + lineNum +
-                                ". Skipped range search. message: "+e.getMessage());
-                    }
-                    catch (AssertionError error){
-                        logger.traceError("Error while processing line " + lineNum +
-                                ". Skipped range search. message: "+error.getMessage());
-                    }
+                case Workload.RANGE_SEARCH: {
+                    start = System.nanoTime();
+                    List<SpatialPoint> result = tree.rangeSearch(point, param);
+                    end = System.nanoTime();
+                    if (logger.isEnabled(Trace.INFO))
+                        logger.trace("Range Search(" + param + ", " + point + "): " + Utils.SpatialPointListToString(result));
                     break;
                 }
 
-                    case 3:
-				{   //knn search
-                    try{
-                        if (lineSplit.length != this.dimension + 2) {
-                            throw new AssertionError();
-                        }
-
-                        point = extractPoint(lineSplit, 1);
-                        k = Float.parseFloat(lineSplit[this.dimension + 1]);
-                        SpatialPoint center = new SpatialPoint(point);
-
-                        start = System.currentTimeMillis();
-                        List<SpatialPoint> result = tree.knnSearch(center, (int)k);
-                        end = System.currentTimeMillis();
-
-                        logger.trace("Knn Search(" + k + ", " + center + "): " + Utils.SpatialPointListToString(result));
-                        this.updateTimeTaken(opType, (end - start));
-                    } catch (Exception e) {
-                        logger.traceError("Exception while processing line " + lineNum +
-                                ". Skipped knn search. message: "+e.getMessage());
-                    }
-                    catch (AssertionError error){
-                        logger.traceError("Error while processing line " + lineNum +
-                                ". Skipped knn search. message: "+error.getMessage());
-                    }
-					break;
-				}
-
-				default:
-					logger.traceError("Invalid query type " + opType + " at line " + lineNum + ". Skipped .. ");
-					break;
-				}
-			}
-			input.close();
-            tree.save();
-		}
-		catch (Exception e) {
-			logger.traceError("Error while reading input file. Line " + lineNum + " Skipped\nError Details:");
-		}
-	}
-
-    private float[] extractPoint(String[] points, int startPos) throws NumberFormatException
-    {
-        float[] tmp = new float[this.dimension];
-        for (int i = startPos, lineSplitLength = points.length;
-             ((i < lineSplitLength) && (i < (startPos + this.dimension))); i++)
-        {
-            tmp[i-startPos] = Float.parseFloat(points[i]);
+                default: {
+                    start = System.nanoTime();
+                    List<SpatialPoint> result = tree.knnSearch(point, (int) param);
+                    end = System.nanoTime();
+                    if (logger.isEnabled(Trace.INFO))
+                        logger.trace("Knn Search(" + (float) param + ", " + point + "): " + Utils.SpatialPointListToString(result));
+                    break;
+                }
+            }
+            this.updateTimeTaken(opType, (end - start) / 1000);
+        } catch (Exception e) {
+            logger.traceError("Exception while processing line " + lineNum +
+                    ". Skipped " + names[opType] + ". message: " + e.getMessage());
         }
-        return tmp;
     }
 
     protected void updateTimeTaken(float type, long time) {
@@ -243,19 +162,19 @@ public class Q1 {
 
 		String result = "\n"+this.getClass().getSimpleName()+" --RESULTS--";
 
-		String temp = "\n\nInsertion operations:(in milliseconds) "+ generateRuntimeReport(insertRunTime);
+		String temp = "\n\nInsertion operations:(in microseconds) "+ generateRuntimeReport(insertRunTime);
         logger.trace(temp);
         result += temp;
-		temp = "\n\nSearch operations:(in milliseconds) "+ generateRuntimeReport(searchRunTime);
+		temp = "\n\nSearch operations:(in microseconds) "+ generateRuntimeReport(searchRunTime);
         logger.trace(temp);
         result += temp;
-		temp = "\n\nRange search operations: (in milliseconds) " + generateRuntimeReport(rangeRuntime);
+		temp = "\n\nRange search operations: (in microseconds) " + generateRuntimeReport(rangeRuntime);
         logger.trace(temp);
         result += temp;
-		temp = "\n\nKNN search operations: (in milliseconds) " + generateRuntimeReport(knnRuntime);
+		temp = "\n\nKNN search operations: (in microseconds) " + generateRuntimeReport(knnRuntime);
         logger.trace(temp);
         result += temp;
-		temp = "\n\nCombined operations:(in milliseconds) "+ generateRuntimeReport(combined);
+		temp = "\n\nCombined operations:(in microseconds) "+ generateRuntimeReport(combined);
         logger.trace( temp);
         result += temp;
 
@@ -0,0 +1,22 @@
+package driver;
+
+/**
+ * receives the operations read by an OperationReader, in file order
+ */
+public interface IOperationSink {
+    /**
+     * @param line number (from 1) of the operation's line, or its
+     *             record number in a binary file
+     * @param type Workload.INSERT, POINT_SEARCH, RANGE_SEARCH or KNN_SEARCH
+     * @param oid oid of an inserted point, 0 otherwise
+     * @param cords the point or search center; the array is reused,
+     *              copy it to keep it past this call
+     * @param param range of a range search, k of a kNN search, else 0
+     */
+    void operation(long line, int type, float oid, float[] cords, double param);
+
+    /**
+     * @param line number (from 1) of a line that is not a valid operation
+     */
+    void invalid(long line);
+}
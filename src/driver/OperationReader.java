@@ -0,0 +1,494 @@
+package driver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * reads an operation file in the Q1 text format or its binary
+ * equivalent without going through Strings. the file is memory
+ * mapped chunk by chunk, a chunk is parsed into primitive arrays
+ * and its operations are handed to the sink in file order. with
+ * several threads the chunks are parsed in parallel, a few ahead
+ * of the one being consumed; parsed chunks are recycled, so once
+ * they have grown reading allocates nothing.
+ *
+ * numbers of up to 15 significant digits and a decimal exponent
+ * within 22 are converted with a single double operation, which
+ * is exact; rounding that double to float gives the same float as
+ * Float.parseFloat unless it lies exactly between two floats.
+ * those and anything else fall back to Float.parseFloat.
+ *
+ * binary format, little endian: [int magic][int dimension], then
+ * per operation [byte type][float oid][double param][float cords...]
+ */
+public class OperationReader {
+    public static final int BINARY_MAGIC = 0x52514231;      // "RQB1"
+    private static final int BINARY_HEADER = 8;
+    private static final int CHUNK_SIZE = 4 << 20;
+    /**
+     * longest text line accepted; a chunk maps this much past its
+     * end to finish its last line
+     */
+    private static final int MAX_LINE = 64 << 10;
+    private static final double[] POW10 = new double[23];
+    /**
+     * low bits of a double's fraction that a float drops, and their
+     * value when the double lies halfway between two floats
+     */
+    private static final long FLOAT_DROPPED = (1L << 29) - 1;
+    private static final long FLOAT_HALF = 1L << 28;
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private final File file;
+    private final int dimension;
+    private final boolean binary;
+    private final long size;
+
+    /**
+     * @throws IllegalArgumentException if the file is binary and
+     * holds operations of another dimension
+     */
+    public OperationReader(File file, int dimension) throws IOException {
+        this.file = file;
+        this.dimension = dimension;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            this.size = raf.length();
+            boolean magic = false;
+            if (size >= BINARY_HEADER) {
+                ByteBuffer header = ByteBuffer.allocate(BINARY_HEADER).order(ByteOrder.LITTLE_ENDIAN);
+                raf.getChannel().read(header, 0);
+                magic = header.getInt(0) == BINARY_MAGIC;
+                if (magic && header.getInt(4) != dimension)
+                    throw new IllegalArgumentException(file + " holds operations of dimension " + header.getInt(4));
+            }
+            this.binary = magic;
+        } finally {
+            raf.close();
+        }
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * reads every operation on the calling thread
+     * @return number of valid operations
+     */
+    public long read(IOperationSink sink) throws IOException {
+        return read(sink, 1);
+    }
+
+    /**
+     * parses the chunks on threads threads, the sink is still
+     * called from the calling thread and in file order
+     * @return number of valid operations
+     */
+    public long read(IOperationSink sink, int threads) throws IOException {
+        int chunks = (int) ((dataSize() + chunkBytes() - 1) / chunkBytes());
+        float[] cords = new float[dimension];
+        long operations = 0;
+        long line = 0;
+
+        if (threads <= 1) {
+            Chunk chunk = new Chunk();
+            for (int c = 0; c < chunks; c++) {
+                parse(c, chunk);
+                operations += feed(chunk, sink, cords, line);
+                line += chunk.lines;
+            }
+            return operations;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            int inFlight = threads * 2;
+            ArrayDeque<Chunk> free = new ArrayDeque<Chunk>();
+            for (int i = 0; i < inFlight; i++) {
+                free.add(new Chunk());
+            }
+            ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+            int next = 0;
+            while (next < chunks || !pending.isEmpty()) {
+                while (next < chunks && !free.isEmpty()) {
+                    pending.add(pool.submit(parseTask(next++, free.poll())));
+                }
+                Chunk chunk = await(pending.poll());
+                operations += feed(chunk, sink, cords, line);
+                line += chunk.lines;
+                free.add(chunk);
+            }
+            return operations;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * converts the text operations of csv into the binary format;
+     * invalid lines are dropped
+     * @return number of operations written
+     */
+    public static long writeBinary(File csv, File out, final int dimension) throws IOException {
+        final FileChannel channel = new FileOutputStream(out).getChannel();
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(BINARY_MAGIC).putInt(dimension);
+            final int record = 1 + 4 + 8 + 4 * dimension;
+            final IOException[] failure = new IOException[1];
+            long operations = new OperationReader(csv, dimension).read(new IOperationSink() {
+                @Override
+                public void operation(long line, int type, float oid, float[] cords, double param) {
+                    if (failure[0] != null)
+                        return;
+                    try {
+                        if (buffer.remaining() < record)
+                            drain(buffer, channel);
+                        buffer.put((byte) type).putFloat(oid).putDouble(param);
+                        for (int i = 0; i < dimension; i++) {
+                            buffer.putFloat(cords[i]);
+                        }
+                    } catch (IOException e) {
+                        failure[0] = e;
+                    }
+                }
+
+                @Override
+                public void invalid(long line) {
+                    System.err.println("Invalid operation at line " + line + ". Skipped .. ");
+                }
+            }, Runtime.getRuntime().availableProcessors());
+            if (failure[0] != null)
+                throw failure[0];
+            drain(buffer, channel);
+            return operations;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void drain(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private Callable<Chunk> parseTask(final int index, final Chunk chunk) {
+        return new Callable<Chunk>() {
+            @Override
+            public Chunk call() throws IOException {
+                parse(index, chunk);
+                return chunk;
+            }
+        };
+    }
+
+    private static Chunk await(Future<Chunk> parsed) throws IOException {
+        try {
+            return parsed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading operations");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(String.valueOf(e.getCause()));
+        }
+    }
+
+    private long feed(Chunk chunk, IOperationSink sink, float[] cords, long firstLine) {
+        long operations = 0;
+        for (int op = 0; op < chunk.count; op++) {
+            if (chunk.types[op] < 0) {
+                sink.invalid(firstLine + chunk.lineOf[op] + 1);
+                continue;
+            }
+            System.arraycopy(chunk.cords, op * dimension, cords, 0, dimension);
+            sink.operation(firstLine + chunk.lineOf[op] + 1, chunk.types[op], chunk.oids[op], cords, chunk.params[op]);
+            operations++;
+        }
+        return operations;
+    }
+
+    /* CHUNKS */
+
+    private long dataSize() {
+        return binary ? size - BINARY_HEADER : size;
+    }
+
+    /**
+     * binary chunks hold whole records
+     */
+    private long chunkBytes() {
+        if (!binary)
+            return CHUNK_SIZE;
+        int record = recordSize();
+        return Math.max(1, CHUNK_SIZE / record) * (long) record;
+    }
+
+    private int recordSize() {
+        return 1 + 4 + 8 + 4 * dimension;
+    }
+
+    private void parse(int index, Chunk chunk) throws IOException {
+        chunk.clear();
+        long start = index * chunkBytes();
+        long end = Math.min(dataSize(), start + chunkBytes());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (binary) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY,
+                        BINARY_HEADER + start, end - start);
+                parseBinary(buffer.order(ByteOrder.LITTLE_ENDIAN), chunk);
+            } else {
+                // one byte before, to see whether a line starts at start
+                long from = Math.max(0, start - 1);
+                long to = Math.min(size, end + MAX_LINE);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+                parseText(buffer, (int) (start - from), (int) (end - from), to == size, chunk);
+            }
+        } finally {
+            raf.close();        // mappings stay valid
+        }
+    }
+
+    private void parseBinary(ByteBuffer buffer, Chunk chunk) {
+        int record = recordSize();
+        for (int at = 0; at + record <= buffer.limit(); at += record) {
+            int op = chunk.add(dimension);
+            chunk.types[op] = buffer.get(at);
+            chunk.oids[op] = buffer.getFloat(at + 1);
+            chunk.params[op] = buffer.getDouble(at + 5);
+            for (int i = 0; i < dimension; i++) {
+                chunk.cords[op * dimension + i] = buffer.getFloat(at + 13 + 4 * i);
+            }
+            chunk.lineOf[op] = chunk.lines++;
+        }
+    }
+
+    /**
+     * parses the lines that start in [start, end) of buffer
+     * @param eof whether buffer runs to the end of the file
+     */
+    private void parseText(ByteBuffer buffer, int start, int end, boolean eof, Chunk chunk) throws IOException {
+        int at = start;
+        if (at > 0) {
+            // the line running into this chunk belongs to the previous one
+            while (at <= end && buffer.get(at - 1) != '\n') {
+                at++;
+            }
+        }
+        int limit = buffer.limit();
+        while (at < end) {
+            int lineEnd = at;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            if (lineEnd == limit && !eof)
+                throw new IOException("Line longer than " + MAX_LINE + " bytes in " + file);
+            int contentEnd = lineEnd;
+            if (contentEnd > at && buffer.get(contentEnd - 1) == '\r')
+                contentEnd--;
+            if (contentEnd > at)                // blank lines are skipped
+                parseLine(buffer, at, contentEnd, chunk);
+            chunk.lines++;
+            at = lineEnd + 1;
+        }
+    }
+
+    private void parseLine(ByteBuffer buffer, int from, int to, Chunk chunk) {
+        int op = chunk.add(dimension);
+        chunk.lineOf[op] = chunk.lines;
+        chunk.types[op] = -1;
+
+        int fields = 0;
+        int type = -1;
+        int expected = 0;
+        int at = from;
+        while (at <= to) {
+            int fieldEnd = at;
+            while (fieldEnd < to && buffer.get(fieldEnd) != ',') {
+                fieldEnd++;
+            }
+            float value = parseFloat(buffer, at, fieldEnd, chunk);
+            if (chunk.error)
+                return;
+
+            if (fields == 0) {
+                if (value != (int) value)
+                    return;                     // not an operation type
+                type = (int) value;
+                if (type == Workload.INSERT || type == Workload.RANGE_SEARCH || type == Workload.KNN_SEARCH)
+                    expected = dimension + 2;
+                else if (type == Workload.POINT_SEARCH)
+                    expected = dimension + 1;
+                else
+                    return;
+            } else if (fields >= expected) {
+                return;                         // too many fields
+            } else if (type == Workload.INSERT) {
+                if (fields == 1)
+                    chunk.oids[op] = value;
+                else
+                    chunk.cords[op * dimension + fields - 2] = value;
+            } else if (fields <= dimension) {
+                chunk.cords[op * dimension + fields - 1] = value;
+            } else {
+                chunk.params[op] = value;
+            }
+            fields++;
+            at = fieldEnd + 1;
+        }
+        if (fields == expected)
+            chunk.types[op] = (byte) type;
+    }
+
+    /**
+     * parses the number in [from, to) of buffer, sets chunk.error
+     * if it isn't one
+     */
+    private static float parseFloat(ByteBuffer buffer, int from, int to, Chunk chunk) {
+        int at = from;
+        while (at < to && buffer.get(at) == ' ') {
+            at++;
+        }
+        int last = to;
+        while (last > at && buffer.get(last - 1) == ' ') {
+            last--;
+        }
+        boolean negative = false;
+        if (at < last && (buffer.get(at) == '-' || buffer.get(at) == '+')) {
+            negative = buffer.get(at) == '-';
+            at++;
+        }
+
+        long mantissa = 0;
+        int exponent = 0;
+        int digits = 0;
+        boolean mantissaDigits = false;
+        boolean dot = false;
+        boolean fast = at < last;
+        for (; at < last && fast; at++) {
+            byte b = buffer.get(at);
+            if (b >= '0' && b <= '9') {
+                mantissaDigits = true;
+                if (mantissa != 0 || b != '0')
+                    digits++;
+                mantissa = mantissa * 10 + (b - '0');
+                if (dot)
+                    exponent--;
+                fast = digits <= 15;
+            } else if (b == '.' && !dot) {
+                dot = true;
+            } else if ((b == 'e' || b == 'E') && at + 1 < last) {
+                int e = 0;
+                boolean negativeE = false;
+                int i = at + 1;
+                if (buffer.get(i) == '-' || buffer.get(i) == '+') {
+                    negativeE = buffer.get(i) == '-';
+                    i++;
+                }
+                fast = i < last;
+                for (; i < last && fast; i++) {
+                    byte d = buffer.get(i);
+                    fast = d >= '0' && d <= '9' && e < 1000;
+                    e = e * 10 + (d - '0');
+                }
+                exponent += negativeE ? -e : e;
+                at = last;
+                break;
+            } else {
+                fast = false;
+            }
+        }
+
+        // ".", "-." and "e5" have no digits; left to Float.parseFloat, which rejects them
+        if (fast && mantissaDigits && exponent >= -22 && exponent <= 22) {
+            double value = exponent < 0 ? mantissa / POW10[-exponent] : mantissa * POW10[exponent];
+            double magnitude = Math.abs(value);
+            boolean halfway = (Double.doubleToRawLongBits(value) & FLOAT_DROPPED) == FLOAT_HALF;
+            if (value == 0 || (!halfway && magnitude >= Float.MIN_NORMAL && magnitude <= Float.MAX_VALUE)) {
+                chunk.error = false;
+                return (float) (negative ? -value : value);
+            }
+        }
+        return slowParseFloat(buffer, from, to, chunk);
+    }
+
+    private static float slowParseFloat(ByteBuffer buffer, int from, int to, Chunk chunk) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        try {
+            chunk.error = false;
+            return Float.parseFloat(new String(bytes, "US-ASCII").trim());
+        } catch (NumberFormatException e) {
+            chunk.error = true;
+            return 0;
+        } catch (java.io.UnsupportedEncodingException e) {
+            chunk.error = true;
+            return 0;
+        }
+    }
+
+    /**
+     * the parsed operations of one chunk, invalid ones with type -1
+     */
+    private static class Chunk {
+        byte[] types = new byte[1024];
+        float[] oids = new float[1024];
+        double[] params = new double[1024];
+        int[] lineOf = new int[1024];
+        float[] cords = new float[0];
+        int count;
+        int lines;
+        boolean error;
+
+        void clear() {
+            count = 0;
+            lines = 0;
+        }
+
+        /**
+         * @return index of a new zeroed operation
+         */
+        int add(int dimension) {
+            if (count == types.length) {
+                types = Arrays.copyOf(types, count << 1);
+                oids = Arrays.copyOf(oids, count << 1);
+                params = Arrays.copyOf(params, count << 1);
+                lineOf = Arrays.copyOf(lineOf, count << 1);
+            }
+            if (cords.length < (count + 1) * dimension)
+                cords = Arrays.copyOf(cords, Math.max(types.length, 1024) * dimension);
+            oids[count] = 0;
+            params[count] = 0;
+            Arrays.fill(cords, count * dimension, (count + 1) * dimension, 0f);
+            return count++;
+        }
+    }
+}
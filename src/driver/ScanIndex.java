@@ -0,0 +1,84 @@
+package driver;
+
+import rstar.interfaces.ISpatialQuery;
+import rstar.spatial.SpatialPoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * answers every query by scanning all points. slow but obviously
+ * right, the oracle the tree's results are checked against.
+ * range searches use the same box (center +- range in every
+ * dimension) as the tree.
+ */
+public class ScanIndex implements ISpatialQuery {
+    private final List<SpatialPoint> points = new ArrayList<SpatialPoint>();
+
+    @Override
+    public int insert(SpatialPoint point) {
+        points.add(point);
+        return 1;
+    }
+
+    @Override
+    public float pointSearch(SpatialPoint point) {
+        for (SpatialPoint p : points) {
+            if (Arrays.equals(p.getCords(), point.getCords()))
+                return p.getOid();
+        }
+        return -1;
+    }
+
+    /**
+     * @return oids of all points equal to point
+     */
+    public List<Float> pointOids(SpatialPoint point) {
+        List<Float> oids = new ArrayList<Float>();
+        for (SpatialPoint p : points) {
+            if (Arrays.equals(p.getCords(), point.getCords()))
+                oids.add(p.getOid());
+        }
+        return oids;
+    }
+
+    @Override
+    public List<SpatialPoint> rangeSearch(SpatialPoint center, double range) {
+        float[] c = center.getCords();
+        List<SpatialPoint> result = new ArrayList<SpatialPoint>();
+        for (SpatialPoint p : points) {
+            float[] cords = p.getCords();
+            boolean inside = true;
+            for (int i = 0; i < c.length && inside; i++) {
+                inside = cords[i] <= c[i] + (float) range && cords[i] >= c[i] - (float) range;
+            }
+            if (inside)
+                result.add(p);
+        }
+        return result;
+    }
+
+    @Override
+    public List<SpatialPoint> knnSearch(SpatialPoint center, int k) {
+        final float[] c = center.getCords();
+        SpatialPoint[] sorted = points.toArray(new SpatialPoint[points.size()]);
+        Arrays.sort(sorted, new Comparator<SpatialPoint>() {
+            @Override
+            public int compare(SpatialPoint a, SpatialPoint b) {
+                return Double.compare(distance(a.getCords(), c), distance(b.getCords(), c));
+            }
+        });
+        return new ArrayList<SpatialPoint>(Arrays.asList(sorted).subList(0, Math.min(k, sorted.length)));
+    }
+
+    static double distance(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            double d = a[i] - b[i];
+            sum += d * d;
+        }
+        return Math.sqrt(sum);
+    }
+}
@@ -0,0 +1,98 @@
+package driver;
+
+import rstar.spatial.SpatialPoint;
+import util.Trace;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * the operations of a Q1 style input file, parsed up front so
+ * replaying them measures the tree and not the parser.
+ *
+ * every line is one operation:
+ * 0,oid,cords...   insert
+ * 1,cords...       point search
+ * 2,cords...,range range search
+ * 3,cords...,k     kNN search
+ */
+public class Workload {
+    public static final int INSERT = 0;
+    public static final int POINT_SEARCH = 1;
+    public static final int RANGE_SEARCH = 2;
+    public static final int KNN_SEARCH = 3;
+    public static final String[] NAMES = {"insert", "pointSearch", "rangeSearch", "knnSearch"};
+
+    private final int dimension;
+    private byte[] types = new byte[1024];
+    /**
+     * the point of an insert (with its oid) or the center of a search
+     */
+    private SpatialPoint[] points = new SpatialPoint[1024];
+    /**
+     * range of a range search, k of a kNN search
+     */
+    private double[] params = new double[1024];
+    private int size;
+
+    public Workload(int dimension) {
+        this.dimension = dimension;
+    }
+
+    /**
+     * reads every operation of file, text or binary, parsing on all
+     * cores; malformed lines are reported and skipped
+     */
+    public static Workload load(String file, int dimension) throws IOException {
+        final Trace logger = Trace.getLogger(Workload.class.getSimpleName());
+        final Workload workload = new Workload(dimension);
+        new OperationReader(new File(file), dimension).read(new IOperationSink() {
+            @Override
+            public void operation(long line, int type, float oid, float[] cords, double param) {
+                SpatialPoint point = type == INSERT
+                        ? new SpatialPoint(cords.clone(), oid)
+                        : new SpatialPoint(cords.clone());
+                workload.add(type, point, param);
+            }
+
+            @Override
+            public void invalid(long line) {
+                logger.traceError("Invalid operation at line " + line + ". Skipped .. ");
+            }
+        }, Runtime.getRuntime().availableProcessors());
+        return workload;
+    }
+
+    public void add(int type, SpatialPoint point, double param) {
+        if (size == types.length) {
+            types = Arrays.copyOf(types, size << 1);
+            points = Arrays.copyOf(points, size << 1);
+            params = Arrays.copyOf(params, size << 1);
+        }
+        types[size] = (byte) type;
+        points[size] = point;
+        params[size] = param;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int getType(int op) {
+        return types[op];
+    }
+
+    public SpatialPoint getPoint(int op) {
+        return points[op];
+    }
+
+    public double getParam(int op) {
+        return params[op];
+    }
+}
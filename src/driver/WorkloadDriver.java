@@ -0,0 +1,615 @@
+package driver;
+
+import rstar.RStarTree;
+import rstar.interfaces.ISpatialQuery;
+import util.LatencyHistogram;
+
+import rstar.spatial.SpatialPoint;
+import util.Constants;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * replays a Q1 style workload against an R* Tree and reports the
+ * latency distribution of every operation type.
+ *
+ * the first --warmup operations run unmeasured. the rest run
+ * either closed loop, each as soon as the previous one returns, or
+ * open loop at --rate operations per second. open loop latencies
+ * are taken from the time an operation was scheduled to start, so
+ * a stall is charged to every operation queued behind it instead
+ * of being hidden (coordinated omission). closed loop runs can
+ * correct for it with --expected-interval-us.
+ *
+ * with --threads the measured operations are spread over several
+ * threads: inserts are always partitioned (each point is inserted
+ * once), searches are partitioned or, with --duplicate-reads, run
+ * by every thread. --write-ratio remixes each thread's share into
+ * the given fraction of inserts, reusing its searches as needed.
+ * a list of thread counts runs each count against a fresh tree,
+ * which needs an empty working directory. --verify replays every
+ * search of the file against the final tree and a scan over the
+ * inserted points and counts the differing results. the input may
+ * be text or the binary format of OperationReader; --to-binary
+ * writes the input in that format and exits. --metrics prints the
+ * tree's counters (see TreeMetrics) after each run.
+ *
+ * usage: WorkloadDriver <input file> <dimension> [--warmup N]
+ *        [--rate OPS_PER_SEC] [--expected-interval-us N]
+ *        [--threads N[,N...]] [--duplicate-reads] [--write-ratio W]
+ *        [--verify] [--metrics] [--json FILE] [--to-binary FILE]
+ */
+public class WorkloadDriver {
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+    /**
+     * waits shorter than this spin instead of parking
+     */
+    private static final long SPIN_NANOS = 50000;
+
+    private final ISpatialQuery tree;
+    private final Workload workload;
+    private int warmup = 0;
+    private double rate = 0;
+    private long expectedInterval = 0;
+    private int threads = 1;
+    private boolean duplicateReads = false;
+    /**
+     * share of inserts in every thread's operations, -1 keeps the file's mix
+     */
+    private double writeRatio = -1;
+
+    private final LatencyHistogram[] histograms = newHistograms();
+    private long elapsed;
+    private int measured;
+    private final AtomicInteger failed = new AtomicInteger();
+    /**
+     * inserts that ran, by operation index; the oracle gets these
+     */
+    private boolean[] inserted;
+    private int mismatches = -1;
+
+    public WorkloadDriver(ISpatialQuery tree, Workload workload) {
+        this.tree = tree;
+        this.workload = workload;
+    }
+
+    /**
+     * @param warmup number of leading operations run without being measured
+     */
+    public void setWarmup(int warmup) {
+        this.warmup = warmup;
+    }
+
+    /**
+     * @param rate operations per second for an open loop run, 0 for closed loop
+     */
+    public void setRate(double rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * @param nanos intended time between operations of a closed
+     *              loop run, used to correct its histograms
+     */
+    public void setExpectedInterval(long nanos) {
+        this.expectedInterval = nanos;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * @param duplicateReads if true every thread runs all searches,
+     *                       else each runs its share
+     */
+    public void setDuplicateReads(boolean duplicateReads) {
+        this.duplicateReads = duplicateReads;
+    }
+
+    /**
+     * @param writeRatio share of inserts between 0 and 1, or -1
+     *                   to keep the order and mix of the file
+     */
+    public void setWriteRatio(double writeRatio) {
+        this.writeRatio = writeRatio;
+    }
+
+    public LatencyHistogram getHistogram(int type) {
+        return histograms[type];
+    }
+
+    /**
+     * @return nanoseconds the measured operations took
+     */
+    public long getElapsed() {
+        return elapsed;
+    }
+
+    public void run() {
+        int size = workload.size();
+        inserted = new boolean[size];
+        int first = Math.min(warmup, size);
+        for (int op = 0; op < first; op++) {
+            execute(op);
+        }
+
+        final int[][] schedules = schedule(first);
+        final LatencyHistogram[][] threadHistograms = new LatencyHistogram[threads][];
+        final CountDownLatch ready = new CountDownLatch(threads);
+        final CountDownLatch go = new CountDownLatch(1);
+        final long[] start = new long[1];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            threadHistograms[t] = newHistograms();
+            workers[t] = new Thread("driver-" + t) {
+                @Override
+                public void run() {
+                    ready.countDown();
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    replay(schedules[thread], start[0], threadHistograms[thread]);
+                }
+            };
+            workers[t].start();
+        }
+
+        try {
+            ready.await();
+            start[0] = System.nanoTime();
+            go.countDown();
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        elapsed = System.nanoTime() - start[0];
+
+        measured = 0;
+        for (int t = 0; t < threads; t++) {
+            measured += schedules[t].length;
+            for (int type = 0; type < histograms.length; type++) {
+                histograms[type].add(threadHistograms[t][type]);
+            }
+        }
+    }
+
+    /**
+     * runs the operations of one thread. open loop, each thread
+     * keeps its share of the rate.
+     */
+    private void replay(int[] ops, long start, LatencyHistogram[] histograms) {
+        boolean openLoop = rate > 0;
+        double interval = openLoop ? 1e9 * threads / rate : 0;
+        for (int i = 0; i < ops.length; i++) {
+            int op = ops[i];
+            long begin;
+            if (openLoop) {
+                begin = start + (long) (i * interval);
+                waitUntil(begin);
+            } else {
+                begin = System.nanoTime();
+            }
+            if (!execute(op))
+                failed.incrementAndGet();
+            long latency = System.nanoTime() - begin;
+
+            if (openLoop)
+                histograms[workload.getType(op)].record(latency);
+            else
+                histograms[workload.getType(op)].recordCorrected(latency, expectedInterval);
+        }
+    }
+
+    private static LatencyHistogram[] newHistograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[Workload.NAMES.length];
+        for (int t = 0; t < histograms.length; t++) {
+            histograms[t] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    /**
+     * splits the operations from first on over the threads
+     * @return the operation indexes of every thread, in order
+     */
+    private int[][] schedule(int first) {
+        List<Integer> inserts = new ArrayList<Integer>();
+        List<Integer> searches = new ArrayList<Integer>();
+        for (int op = first; op < workload.size(); op++) {
+            if (workload.getType(op) == Workload.INSERT)
+                inserts.add(op);
+            else
+                searches.add(op);
+        }
+
+        int[][] schedules = new int[threads][];
+        for (int t = 0; t < threads; t++) {
+            List<Integer> myInserts = share(inserts, t);
+            List<Integer> mySearches = duplicateReads ? searches : share(searches, t);
+            List<Integer> ops = new ArrayList<Integer>();
+
+            if (writeRatio < 0) {
+                // file order
+                int i = 0, s = 0;
+                while (i < myInserts.size() || s < mySearches.size()) {
+                    if (s == mySearches.size() || (i < myInserts.size() && myInserts.get(i) < mySearches.get(s)))
+                        ops.add(myInserts.get(i++));
+                    else
+                        ops.add(mySearches.get(s++));
+                }
+            } else if (writeRatio == 0 || myInserts.isEmpty()) {
+                ops.addAll(mySearches);
+            } else if (writeRatio >= 1 || mySearches.isEmpty()) {
+                ops.addAll(myInserts);
+            } else {
+                // every insert once, searches repeated to make up the ratio
+                int total = (int) Math.round(myInserts.size() / writeRatio);
+                int i = 0, s = 0;
+                for (int n = 0; n < total; n++) {
+                    boolean write = i < (long) Math.floor((n + 1) * writeRatio) && i < myInserts.size();
+                    if (write)
+                        ops.add(myInserts.get(i++));
+                    else
+                        ops.add(mySearches.get(s++ % mySearches.size()));
+                }
+                while (i < myInserts.size()) {
+                    ops.add(myInserts.get(i++));
+                }
+            }
+
+            schedules[t] = new int[ops.size()];
+            for (int o = 0; o < schedules[t].length; o++) {
+                schedules[t][o] = ops.get(o);
+            }
+        }
+        return schedules;
+    }
+
+    private List<Integer> share(List<Integer> ops, int thread) {
+        List<Integer> share = new ArrayList<Integer>();
+        for (int i = thread; i < ops.size(); i += threads) {
+            share.add(ops.get(i));
+        }
+        return share;
+    }
+
+    /**
+     * replays every search of the workload against the tree and
+     * against a scan over the points inserted by the run
+     * @return number of searches whose results differ
+     */
+    public int verify() {
+        ScanIndex oracle = new ScanIndex();
+        for (int op = 0; op < workload.size(); op++) {
+            if (inserted[op])
+                oracle.insert(workload.getPoint(op));
+        }
+
+        mismatches = 0;
+        for (int op = 0; op < workload.size(); op++) {
+            SpatialPoint point = workload.getPoint(op);
+            boolean same;
+            switch (workload.getType(op)) {
+                case Workload.POINT_SEARCH:
+                    float oid = tree.pointSearch(point);
+                    List<Float> oids = oracle.pointOids(point);
+                    same = oid == -1 ? oids.isEmpty() : oids.contains(oid);
+                    break;
+                case Workload.RANGE_SEARCH:
+                    double range = workload.getParam(op);
+                    same = Arrays.equals(sortedOids(tree.rangeSearch(point, range)),
+                            sortedOids(oracle.rangeSearch(point, range)));
+                    break;
+                case Workload.KNN_SEARCH:
+                    int k = (int) workload.getParam(op);
+                    same = sameDistances(tree.knnSearch(point, k), oracle.knnSearch(point, k), point);
+                    break;
+                default:
+                    continue;
+            }
+            if (!same)
+                mismatches++;
+        }
+        return mismatches;
+    }
+
+    private static float[] sortedOids(List<SpatialPoint> points) {
+        float[] oids = new float[points.size()];
+        for (int i = 0; i < oids.length; i++) {
+            oids[i] = points.get(i).getOid();
+        }
+        Arrays.sort(oids);
+        return oids;
+    }
+
+    /**
+     * kNN results may differ among equally distant points, so
+     * only the distances are compared
+     */
+    private static boolean sameDistances(List<SpatialPoint> found, List<SpatialPoint> expected, SpatialPoint center) {
+        if (found.size() != expected.size())
+            return false;
+        for (int i = 0; i < found.size(); i++) {
+            double a = ScanIndex.distance(found.get(i).getCords(), center.getCords());
+            double b = ScanIndex.distance(expected.get(i).getCords(), center.getCords());
+            if (Math.abs(a - b) > 1e-5 * Math.max(1, b))
+                return false;
+        }
+        return true;
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (remaining > SPIN_NANOS)
+                LockSupport.parkNanos(remaining - SPIN_NANOS);
+        }
+    }
+
+    /**
+     * @return false if an insert failed
+     */
+    private boolean execute(int op) {
+        switch (workload.getType(op)) {
+            case Workload.INSERT:
+                inserted[op] = tree.insert(workload.getPoint(op)) == 1;
+                return inserted[op];
+            case Workload.POINT_SEARCH:
+                tree.pointSearch(workload.getPoint(op));
+                return true;
+            case Workload.RANGE_SEARCH:
+                tree.rangeSearch(workload.getPoint(op), workload.getParam(op));
+                return true;
+            case Workload.KNN_SEARCH:
+                tree.knnSearch(workload.getPoint(op), (int) workload.getParam(op));
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the report as a table, latencies in microseconds
+     */
+    public String report() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format(Locale.ROOT, "%-12s %9s %10s", "operation", "count", "mean"));
+        for (String name : PERCENTILE_NAMES) {
+            out.append(String.format(Locale.ROOT, " %10s", name));
+        }
+        out.append(String.format(Locale.ROOT, " %10s   (microseconds)%n", "max"));
+
+        for (int t = 0; t < histograms.length; t++) {
+            LatencyHistogram h = histograms[t];
+            if (h.getCount() == 0)
+                continue;
+            out.append(String.format(Locale.ROOT, "%-12s %9d %10.1f", Workload.NAMES[t], h.getCount(), h.getMean() / 1000));
+            for (double p : PERCENTILES) {
+                out.append(String.format(Locale.ROOT, " %10.1f", h.valueAtPercentile(p) / 1000.0));
+            }
+            out.append(String.format(Locale.ROOT, " %10.1f%n", h.getMax() / 1000.0));
+        }
+        out.append(String.format(Locale.ROOT, "%d operations on %d threads in %.3f s, %.1f ops/s, %d failed inserts%n",
+                measured, threads, elapsed / 1e9, throughput(), failed.get()));
+        if (mismatches >= 0)
+            out.append(mismatches).append(" searches differ from the oracle").append(String.format("%n"));
+        return out.toString();
+    }
+
+    /**
+     * @return the run as JSON, latencies in nanoseconds, for
+     * comparing runs with other tools
+     */
+    public String toJson(String input) {
+        StringBuilder out = new StringBuilder();
+        out.append("{\n");
+        out.append("  \"input\": \"").append(input.replace("\\", "\\\\").replace("\"", "\\\"")).append("\",\n");
+        out.append("  \"dimension\": ").append(workload.getDimension()).append(",\n");
+        out.append("  \"warmup\": ").append(warmup).append(",\n");
+        out.append("  \"rate\": ").append(rate).append(",\n");
+        out.append("  \"expectedIntervalNanos\": ").append(expectedInterval).append(",\n");
+        out.append("  \"threads\": ").append(threads).append(",\n");
+        out.append("  \"duplicateReads\": ").append(duplicateReads).append(",\n");
+        out.append("  \"writeRatio\": ").append(writeRatio).append(",\n");
+        out.append("  \"operations\": ").append(measured).append(",\n");
+        out.append("  \"failed\": ").append(failed.get()).append(",\n");
+        out.append("  \"mismatches\": ").append(mismatches).append(",\n");
+        out.append("  \"elapsedNanos\": ").append(elapsed).append(",\n");
+        out.append("  \"throughput\": ").append(String.format(Locale.ROOT, "%.3f", throughput())).append(",\n");
+        out.append("  \"latencies\": {");
+        String separator = "\n";
+        for (int t = 0; t < histograms.length; t++) {
+            LatencyHistogram h = histograms[t];
+            if (h.getCount() == 0)
+                continue;
+            out.append(separator);
+            separator = ",\n";
+            out.append("    \"").append(Workload.NAMES[t]).append("\": {");
+            out.append("\"count\": ").append(h.getCount());
+            out.append(", \"mean\": ").append(String.format(Locale.ROOT, "%.1f", h.getMean()));
+            out.append(", \"min\": ").append(h.getMin());
+            for (int p = 0; p < PERCENTILES.length; p++) {
+                out.append(", \"").append(PERCENTILE_NAMES[p]).append("\": ").append(h.valueAtPercentile(PERCENTILES[p]));
+            }
+            out.append(", \"max\": ").append(h.getMax()).append("}");
+        }
+        out.append("\n  }\n}\n");
+        return out.toString();
+    }
+
+    private double throughput() {
+        return elapsed == 0 ? 0 : measured * 1e9 / elapsed;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            printUsage();
+            System.exit(1);
+        }
+        String input = args[0];
+        int dimension = Integer.parseInt(args[1]);
+        int warmup = 0;
+        double rate = 0;
+        long expectedInterval = 0;
+        int[] threadCounts = {1};
+        boolean duplicateReads = false;
+        double writeRatio = -1;
+        boolean verify = false;
+        boolean metrics = false;
+        String json = null;
+        String binary = null;
+        for (int a = 2; a < args.length; a++) {
+            if (args[a].equals("--duplicate-reads")) {
+                duplicateReads = true;
+                continue;
+            } else if (args[a].equals("--verify")) {
+                verify = true;
+                continue;
+            } else if (args[a].equals("--metrics")) {
+                metrics = true;
+                continue;
+            }
+            if (a + 1 >= args.length) {
+                printUsage();
+                System.exit(1);
+            }
+            if (args[a].equals("--warmup"))
+                warmup = Integer.parseInt(args[++a]);
+            else if (args[a].equals("--rate"))
+                rate = Double.parseDouble(args[++a]);
+            else if (args[a].equals("--expected-interval-us"))
+                expectedInterval = Long.parseLong(args[++a]) * 1000;
+            else if (args[a].equals("--threads"))
+                threadCounts = parseCounts(args[++a]);
+            else if (args[a].equals("--write-ratio"))
+                writeRatio = Double.parseDouble(args[++a]);
+            else if (args[a].equals("--json"))
+                json = args[++a];
+            else if (args[a].equals("--to-binary"))
+                binary = args[++a];
+            else {
+                printUsage();
+                System.exit(1);
+            }
+        }
+
+        if (binary != null) {
+            try {
+                long written = OperationReader.writeBinary(new File(input), new File(binary), dimension);
+                System.out.println("Wrote " + written + " operations to " + binary);
+                System.exit(0);
+            } catch (IOException e) {
+                System.err.println("IOException while converting " + input + ": " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        // every run and the oracle need a tree holding only the run's points
+        boolean freshTrees = threadCounts.length > 1 || verify;
+        if (freshTrees && treeExists()) {
+            System.err.println("A tree exists in " + new File("").getAbsolutePath()
+                    + ", several runs or --verify need an empty directory");
+            System.exit(1);
+        }
+
+        Workload workload = null;
+        try {
+            workload = Workload.load(input, dimension);
+        } catch (IOException e) {
+            System.err.println("IOException while reading " + input);
+            System.exit(1);
+        }
+
+        StringBuilder runs = new StringBuilder();
+        for (int r = 0; r < threadCounts.length; r++) {
+            RStarTree tree = new RStarTree(dimension);
+            WorkloadDriver driver = new WorkloadDriver(tree, workload);
+            driver.setWarmup(warmup);
+            driver.setRate(rate);
+            driver.setExpectedInterval(expectedInterval);
+            driver.setThreads(threadCounts[r]);
+            driver.setDuplicateReads(duplicateReads);
+            driver.setWriteRatio(writeRatio);
+            driver.run();
+            // before verify adds its own searches
+            Map<String, Long> counters = tree.getMetrics().getSnapshot();
+            if (verify)
+                driver.verify();
+            tree.save();
+
+            System.out.print(driver.report());
+            if (metrics) {
+                for (Map.Entry<String, Long> counter : counters.entrySet()) {
+                    System.out.printf("%-28s %12d%n", counter.getKey(), counter.getValue());
+                }
+            }
+            runs.append(r == 0 ? "" : ",\n").append(driver.toJson(input).trim());
+            if (freshTrees)
+                deleteTreeFiles();
+        }
+
+        if (json != null) {
+            try {
+                BufferedWriter out = new BufferedWriter(new FileWriter(json));
+                try {
+                    out.write(threadCounts.length == 1 ? runs + "\n" : "[\n" + runs + "\n]\n");
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                System.err.println("IOException while writing " + json);
+            }
+        }
+    }
+
+    private static int[] parseCounts(String list) {
+        String[] split = list.split(",");
+        int[] counts = new int[split.length];
+        for (int i = 0; i < split.length; i++) {
+            counts[i] = Integer.parseInt(split[i].trim());
+        }
+        return counts;
+    }
+
+    private static boolean treeExists() {
+        return new File(Constants.TREE_FILE).exists() || new File(Constants.TREE_DATA_DIRECTORY).exists();
+    }
+
+    private static void deleteTreeFiles() {
+        File dir = new File(Constants.TREE_DATA_DIRECTORY);
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+        new File(Constants.TREE_FILE).delete();
+        new File(Constants.DATA_FILE).delete();
+        new File(Constants.WAL_FILE).delete();
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: WorkloadDriver <path to input file> <dimension of points> [--warmup N]"
+                + " [--rate OPS_PER_SEC] [--expected-interval-us N] [--threads N[,N...]] [--duplicate-reads]"
+                + " [--write-ratio W] [--verify] [--metrics] [--json FILE] [--to-binary FILE]");
+    }
+}
@@ -0,0 +1,282 @@
+package rstar;
+
+import rstar.interfaces.IPointVisitor;
+import rstar.interfaces.ISpatialQuery;
+import rstar.nodes.NodeView;
+import rstar.spatial.HyperRectangle;
+import rstar.spatial.SpatialPoint;
+import util.MinHeap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * read-only R* Tree served from a segment file written by
+ * RStarTree.exportSegment(). the file is memory mapped, so the
+ * OS page cache is the buffer pool and opening costs one header
+ * read. nodes are read through NodeView flyweights, one per
+ * level, so the visitor and array based queries allocate nothing
+ * once the kNN heap has grown to its working size.
+ *
+ * an instance is not thread safe; give every thread its own
+ * duplicate(), which shares the mapping.
+ *
+ * segment header, little endian:
+ * [int magic][int dimension][int height][int unused]
+ * [long rootOffset][long nodeCount][long pointCount]
+ */
+public class MappedRStarTree implements ISpatialQuery {
+    public static final int SEGMENT_MAGIC = 0x52534731;     // "RSG1"
+    public static final int HEADER_SIZE = 40;
+
+    private final ByteBuffer buffer;
+    private final int dimension;
+    private final int height;
+    private final int rootOffset;
+    private final long nodeCount;
+    private final long pointCount;
+
+    private final NodeView[] views;
+    private final float[] region;
+
+    // kNN candidates by squared distance. a node is referenced
+    // by its offset, a point by ~(leafOffset << 20 | entry)
+    private final MinHeap heap = new MinHeap(64);
+    private long[] resultRefs = new long[16];
+    private final NodeView knnView;
+
+    /**
+     * maps a segment file
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if it is not a segment or
+     * too large to be mapped at once (2 GB)
+     */
+    public MappedRStarTree(File segment) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(segment, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Segment " + segment + " is larger than 2 GB");
+            if (channel.size() < HEADER_SIZE)
+                throw new IllegalArgumentException(segment + " is not a segment file");
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            this.buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            raf.close();            // the mapping stays valid
+        }
+
+        if (buffer.getInt(0) != SEGMENT_MAGIC)
+            throw new IllegalArgumentException(segment + " is not a segment file");
+        this.dimension = buffer.getInt(4);
+        this.height = buffer.getInt(8);
+        this.rootOffset = (int) buffer.getLong(16);
+        this.nodeCount = buffer.getLong(24);
+        this.pointCount = buffer.getLong(32);
+
+        this.views = newViews(buffer, dimension, height);
+        this.region = new float[dimension << 1];
+        this.knnView = new NodeView(buffer, dimension);
+    }
+
+    private MappedRStarTree(MappedRStarTree other) {
+        this.buffer = other.buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        this.dimension = other.dimension;
+        this.height = other.height;
+        this.rootOffset = other.rootOffset;
+        this.nodeCount = other.nodeCount;
+        this.pointCount = other.pointCount;
+        this.views = newViews(buffer, dimension, height);
+        this.region = new float[dimension << 1];
+        this.knnView = new NodeView(buffer, dimension);
+    }
+
+    private static NodeView[] newViews(ByteBuffer buffer, int dimension, int height) {
+        NodeView[] views = new NodeView[Math.max(height, 1)];
+        for (int i = 0; i < views.length; i++) {
+            views[i] = new NodeView(buffer, dimension);
+        }
+        return views;
+    }
+
+    /**
+     * @return a view of the same mapping for use by another thread
+     */
+    public MappedRStarTree duplicate() {
+        return new MappedRStarTree(this);
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public long getNodeCount() {
+        return nodeCount;
+    }
+
+    public long getPointCount() {
+        return pointCount;
+    }
+
+    /**
+     * the tree is read-only
+     * @return -1
+     */
+    @Override
+    public int insert(SpatialPoint point) {
+        System.err.println("Mapped R* Tree is read-only");
+        return -1;
+    }
+
+    @Override
+    public float pointSearch(SpatialPoint point) {
+        float[] cords = point.getCords();
+        for (int i = 0; i < dimension; i++) {
+            region[(i << 1) + HyperRectangle.MAX_CORD] = cords[i];
+            region[(i << 1) + HyperRectangle.MIN_CORD] = cords[i];
+        }
+        return _pointSearch(0, rootOffset, region);
+    }
+
+    private float _pointSearch(int level, int offset, float[] searchRegion) {
+        NodeView node = views[level].moveTo(offset);
+        for (int c = 0; c < node.getCount(); c++) {
+            if (!node.intersects(c, searchRegion))
+                continue;
+            if (node.isLeaf())
+                return node.getOid(c);
+            float oid = _pointSearch(level + 1, node.getChildOffset(c), searchRegion);
+            if (oid != -1)
+                return oid;
+        }
+        return -1;
+    }
+
+    @Override
+    public List<SpatialPoint> rangeSearch(SpatialPoint center, double range) {
+        float[] cords = center.getCords();
+        float[] query = new float[dimension << 1];
+        for (int i = 0; i < dimension; i++) {
+            query[(i << 1) + HyperRectangle.MAX_CORD] = cords[i] + (float) range;
+            query[(i << 1) + HyperRectangle.MIN_CORD] = cords[i] - (float) range;
+        }
+
+        final ArrayList<SpatialPoint> result = new ArrayList<SpatialPoint>();
+        rangeSearch(query, new IPointVisitor() {
+            @Override
+            public void visit(NodeView leaf, int entry) {
+                float[] found = new float[dimension];
+                leaf.copyCords(entry, found);
+                result.add(new SpatialPoint(found, leaf.getOid(entry)));
+            }
+        });
+        return result;
+    }
+
+    /**
+     * passes every point inside query to visitor
+     * @param query flat MBR
+     * @return number of points found
+     */
+    public int rangeSearch(float[] query, IPointVisitor visitor) {
+        return _rangeSearch(0, rootOffset, query, visitor);
+    }
+
+    private int _rangeSearch(int level, int offset, float[] query, IPointVisitor visitor) {
+        NodeView node = views[level].moveTo(offset);
+        int found = 0;
+        for (int c = 0; c < node.getCount(); c++) {
+            if (!node.intersects(c, query))
+                continue;
+            if (node.isLeaf()) {
+                visitor.visit(node, c);
+                found++;
+            } else {
+                found += _rangeSearch(level + 1, node.getChildOffset(c), query, visitor);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public List<SpatialPoint> knnSearch(SpatialPoint center, int k) {
+        List<SpatialPoint> result = new ArrayList<SpatialPoint>(Math.max(k, 0));
+        if (k <= 0)
+            return result;
+        int found = _knnSearch(center.getCords(), k, null);
+        for (int i = 0; i < found; i++) {
+            NodeView leaf = knnView.moveTo(leafOffsetOf(resultRefs[i]));
+            float[] cords = new float[dimension];
+            leaf.copyCords(entryOf(resultRefs[i]), cords);
+            result.add(new SpatialPoint(cords, leaf.getOid(entryOf(resultRefs[i]))));
+        }
+        return result;
+    }
+
+    /**
+     * finds the k nearest neighbours of cords, nearest first,
+     * without allocating.
+     * @param oids receives the oids, at least k long
+     * @param distances receives the euclidean distances, at least k long
+     * @return number of neighbours found, less than k only if
+     * the tree holds fewer points
+     */
+    public int knnSearch(float[] cords, int k, float[] oids, float[] distances) {
+        int found = _knnSearch(cords, k, distances);
+        for (int i = 0; i < found; i++) {
+            oids[i] = knnView.moveTo(leafOffsetOf(resultRefs[i])).getOid(entryOf(resultRefs[i]));
+        }
+        return found;
+    }
+
+    /**
+     * best first search, leaves the references of the
+     * neighbours found in resultRefs.
+     */
+    private int _knnSearch(float[] cords, int k, float[] distances) {
+        if (resultRefs.length < k)
+            resultRefs = new long[k];
+        heap.clear();
+        heap.push(0f, rootOffset);
+        int found = 0;
+        while (!heap.isEmpty() && found < k) {
+            float distance = heap.peekKey();
+            long ref = heap.pop();
+            if (ref < 0) {
+                resultRefs[found] = ref;
+                if (distances != null)
+                    distances[found] = (float) Math.sqrt(distance);
+                found++;
+            } else {
+                NodeView node = knnView.moveTo((int) ref);
+                boolean isLeaf = node.isLeaf();
+                for (int c = 0; c < node.getCount(); c++) {
+                    float d = node.minDistance(c, cords);
+                    heap.push(d, isLeaf ? pointRef(node.getOffset(), c) : node.getChildOffset(c));
+                }
+            }
+        }
+        return found;
+    }
+
+    private static long pointRef(int leafOffset, int entry) {
+        return ~(((long) leafOffset << 20) | entry);
+    }
+
+    private static int leafOffsetOf(long ref) {
+        return (int) (~ref >>> 20);
+    }
+
+    private static int entryOf(long ref) {
+        return (int) (~ref & 0xFFFFF);
+    }
+}
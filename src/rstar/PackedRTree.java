@@ -0,0 +1,499 @@
+package rstar;
+
+import rstar.interfaces.ISpatialQuery;
+import rstar.spatial.HyperRectangle;
+import rstar.spatial.SpatialPoint;
+import util.MinHeap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static rstar.spatial.HyperRectangle.MAX_CORD;
+import static rstar.spatial.HyperRectangle.MIN_CORD;
+
+/**
+ * immutable, fully packed R-tree in the style of Flatbush.
+ *
+ * points are ordered with Sort-Tile-Recursive and packed nodeSize
+ * to a node, every level filled completely except for its last
+ * node. all levels are stored contiguously, root level first, in
+ * one float array without any per node header: the children of
+ * node j of a level are nodes [j*nodeSize, (j+1)*nodeSize) of the
+ * level below, and the children of the lowest level are points.
+ *
+ * snapshot file, little endian:
+ * <pre>
+ * [int magic][int dimension][int nodeSize][int pointCount][int levels]
+ * [int levelCount[levels]]
+ * [float bounds[nodes][2*d]]   flat MBR layout, root level first
+ * [float cords[points][d]]
+ * [float oids[points]]
+ * </pre>
+ * queries keep their state in the instance: one instance per thread.
+ */
+public class PackedRTree implements ISpatialQuery {
+    public static final int SNAPSHOT_MAGIC = 0x52505431;    // "RPT1"
+
+    private final int dimension;
+    private final int nodeSize;
+    private final int pointCount;
+    private final int[] levelCounts;
+    private final int[] levelStarts;
+    private final float[] bounds;
+    private final float[] cords;
+    private final float[] oids;
+
+    private int[] stack;
+    private final MinHeap heap = new MinHeap(64);
+    private int[] resultIndexes = new int[16];
+    private long nodesVisited;
+
+    private PackedRTree(int dimension, int nodeSize, int pointCount, int[] levelCounts,
+                        float[] bounds, float[] cords, float[] oids) {
+        this.dimension = dimension;
+        this.nodeSize = nodeSize;
+        this.pointCount = pointCount;
+        this.levelCounts = levelCounts;
+        this.bounds = bounds;
+        this.cords = cords;
+        this.oids = oids;
+
+        this.levelStarts = new int[levelCounts.length];
+        for (int l = 1; l < levelCounts.length; l++) {
+            levelStarts[l] = levelStarts[l - 1] + levelCounts[l - 1];
+        }
+        this.stack = new int[Math.max(1, levelCounts.length * nodeSize)];
+    }
+
+    /**
+     * packs the given points
+     * @param points co-ordinates of every point
+     * @param pointOids oid of every point
+     * @param nodeSize entries per node, at least 2
+     */
+    public static PackedRTree build(float[][] points, float[] pointOids, int nodeSize) {
+        if (nodeSize < 2)
+            throw new IllegalArgumentException("nodeSize must be at least 2");
+        int n = points.length;
+        int dimension = n == 0 ? 0 : points[0].length;
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        strSort(points, order, 0, n, 0, nodeSize);
+
+        float[] cords = new float[n * dimension];
+        float[] oids = new float[n];
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(points[order[i]], 0, cords, i * dimension, dimension);
+            oids[i] = pointOids[order[i]];
+        }
+        return pack(dimension, nodeSize, cords, oids);
+    }
+
+    /**
+     * sorts order[from, to) by Sort-Tile-Recursive: into slabs
+     * along dim, each slab sorted recursively along the next one
+     */
+    private static void strSort(final float[][] points, Integer[] order, int from, int to, final int dim, int nodeSize) {
+        int n = to - from;
+        if (n <= nodeSize || dim >= points[order[from]].length)
+            return;
+        Arrays.sort(order, from, to, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Float.compare(points[a][dim], points[b][dim]);
+            }
+        });
+
+        int dimensionsLeft = points[order[from]].length - dim;
+        int leaves = (n + nodeSize - 1) / nodeSize;
+        int slabs = (int) Math.ceil(Math.pow(leaves, 1.0 / dimensionsLeft));
+        int slabSize = ((leaves + slabs - 1) / slabs) * nodeSize;
+        for (int start = from; start < to; start += slabSize) {
+            strSort(points, order, start, Math.min(to, start + slabSize), dim + 1, nodeSize);
+        }
+    }
+
+    /**
+     * builds the levels bottom up over points already in packing order
+     */
+    private static PackedRTree pack(int dimension, int nodeSize, float[] cords, float[] oids) {
+        int n = oids.length;
+        ArrayList<Integer> counts = new ArrayList<Integer>();
+        int count = n;
+        do {
+            count = (count + nodeSize - 1) / nodeSize;
+            counts.add(0, count);
+        } while (count > 1);
+
+        if (counts.get(counts.size() - 1) > 0xFFFFFF || counts.size() > 127)
+            throw new IllegalArgumentException("Too many points for nodeSize " + nodeSize);
+        int[] levelCounts = new int[counts.size()];
+        int nodes = 0;
+        for (int l = 0; l < levelCounts.length; l++) {
+            levelCounts[l] = counts.get(l);
+            nodes += levelCounts[l];
+        }
+
+        int width = dimension << 1;
+        float[] bounds = new float[nodes * width];
+        PackedRTree tree = new PackedRTree(dimension, nodeSize, n, levelCounts, bounds, cords, oids);
+
+        //lowest level from the points, every other level from the one below
+        int last = levelCounts.length - 1;
+        for (int l = last; l >= 0; l--) {
+            for (int j = 0; j < levelCounts[l]; j++) {
+                int node = (tree.levelStarts[l] + j) * width;
+                int first = j * nodeSize;
+                int end = Math.min(first + nodeSize, l == last ? n : levelCounts[l + 1]);
+                for (int c = first; c < end; c++) {
+                    for (int i = 0; i < dimension; i++) {
+                        float max, min;
+                        if (l == last) {
+                            max = min = cords[c * dimension + i];
+                        } else {
+                            int child = (tree.levelStarts[l + 1] + c) * width;
+                            max = bounds[child + (i << 1) + MAX_CORD];
+                            min = bounds[child + (i << 1) + MIN_CORD];
+                        }
+                        if (c == first || max > bounds[node + (i << 1) + MAX_CORD])
+                            bounds[node + (i << 1) + MAX_CORD] = max;
+                        if (c == first || min < bounds[node + (i << 1) + MIN_CORD])
+                            bounds[node + (i << 1) + MIN_CORD] = min;
+                    }
+                }
+            }
+        }
+        return tree;
+    }
+
+    /**
+     * writes this tree to a snapshot file
+     * @return 1 if successful, else -1
+     */
+    public int save(File file) {
+        int headerInts = 5 + levelCounts.length;
+        int floats = bounds.length + cords.length + oids.length;
+        ByteBuffer out = ByteBuffer.allocate((headerInts + floats) << 2).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(SNAPSHOT_MAGIC);
+        out.putInt(dimension);
+        out.putInt(nodeSize);
+        out.putInt(pointCount);
+        out.putInt(levelCounts.length);
+        for (int levelCount : levelCounts) {
+            out.putInt(levelCount);
+        }
+        out.asFloatBuffer().put(bounds).put(cords).put(oids);
+        out.rewind();
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(true);
+            raf.close();
+            return 1;
+        } catch (IOException e) {
+            System.err.println("Error while saving packed tree to " + file);
+            return -1;
+        }
+    }
+
+    /**
+     * reads a snapshot file written by save()
+     * @throws IllegalArgumentException if file is not a snapshot
+     */
+    public static PackedRTree load(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        ByteBuffer in;
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("Snapshot " + file + " is larger than 2 GB");
+            in = ByteBuffer.allocate((int) channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (in.hasRemaining()) {
+                if (channel.read(in) < 0)
+                    break;
+            }
+            in.flip();
+        } finally {
+            raf.close();
+        }
+
+        if (in.remaining() < 20 || in.getInt() != SNAPSHOT_MAGIC)
+            throw new IllegalArgumentException(file + " is not a packed tree snapshot");
+        int dimension = in.getInt();
+        int nodeSize = in.getInt();
+        int pointCount = in.getInt();
+        int[] levelCounts = new int[in.getInt()];
+        int nodes = 0;
+        for (int l = 0; l < levelCounts.length; l++) {
+            levelCounts[l] = in.getInt();
+            nodes += levelCounts[l];
+        }
+
+        float[] bounds = new float[nodes * (dimension << 1)];
+        float[] cords = new float[pointCount * dimension];
+        float[] oids = new float[pointCount];
+        in.asFloatBuffer().get(bounds).get(cords).get(oids);
+        return new PackedRTree(dimension, nodeSize, pointCount, levelCounts, bounds, cords, oids);
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public int getNodeSize() {
+        return nodeSize;
+    }
+
+    /**
+     * @return nodes read by the queries of this instance since
+     * the last resetNodesVisited(), i.e. their page reads
+     */
+    public long getNodesVisited() {
+        return nodesVisited;
+    }
+
+    public void resetNodesVisited() {
+        nodesVisited = 0;
+    }
+
+    public int getPointCount() {
+        return pointCount;
+    }
+
+    public int getHeight() {
+        return levelCounts.length;
+    }
+
+    /**
+     * @return bytes taken by the tree, same as its snapshot file
+     */
+    public long sizeInBytes() {
+        return (5L + levelCounts.length + bounds.length + cords.length + oids.length) << 2;
+    }
+
+    /**
+     * the tree is immutable
+     * @return -1
+     */
+    @Override
+    public int insert(SpatialPoint point) {
+        System.err.println("Packed R-tree is read-only");
+        return -1;
+    }
+
+    @Override
+    public float pointSearch(SpatialPoint point) {
+        float[] p = point.getCords();
+        float[] region = new HyperRectangle(p).getPoints();
+        int[] found = new int[1];
+        if (search(region, found, 1) == 0)
+            return -1;
+        return oids[found[0]];
+    }
+
+    @Override
+    public List<SpatialPoint> rangeSearch(SpatialPoint center, double range) {
+        float[] c = center.getCords();
+        float[] query = new float[dimension << 1];
+        for (int i = 0; i < dimension; i++) {
+            query[(i << 1) + MAX_CORD] = c[i] + (float) range;
+            query[(i << 1) + MIN_CORD] = c[i] - (float) range;
+        }
+
+        int total = search(query, resultIndexes, resultIndexes.length);
+        if (total > resultIndexes.length) {
+            resultIndexes = new int[total];
+            search(query, resultIndexes, total);
+        }
+        List<SpatialPoint> result = new ArrayList<SpatialPoint>(total);
+        for (int r = 0; r < total; r++) {
+            result.add(toPoint(resultIndexes[r]));
+        }
+        return result;
+    }
+
+    /**
+     * finds the points inside query without allocating
+     * @param query flat MBR
+     * @param found receives the oids of the first found.length points
+     * @return number of points inside query, which may exceed found.length
+     */
+    public int rangeSearch(float[] query, float[] found) {
+        if (resultIndexes.length < found.length)
+            resultIndexes = new int[found.length];
+        int total = search(query, resultIndexes, found.length);
+        for (int r = 0; r < Math.min(total, found.length); r++) {
+            found[r] = oids[resultIndexes[r]];
+        }
+        return total;
+    }
+
+    /**
+     * depth first walk with an explicit stack of node indexes
+     * @return number of points inside query; only the first
+     * limit are stored in out
+     */
+    private int search(float[] query, int[] out, int limit) {
+        if (pointCount == 0)
+            return 0;
+        int width = dimension << 1;
+        int last = levelCounts.length - 1;
+        int total = 0;
+
+        // stack entries are level * 2^24 + index in level
+        int top = 0;
+        stack[top++] = 0;
+        while (top > 0) {
+            int entry = stack[--top];
+            nodesVisited++;
+            int level = entry >>> 24;
+            int j = entry & 0xFFFFFF;
+            int first = j * nodeSize;
+
+            if (level == last) {
+                int end = Math.min(first + nodeSize, pointCount);
+                for (int p = first; p < end; p++) {
+                    if (pointInside(p, query)) {
+                        if (total < limit)
+                            out[total] = p;
+                        total++;
+                    }
+                }
+            } else {
+                int end = Math.min(first + nodeSize, levelCounts[level + 1]);
+                int base = levelStarts[level + 1];
+                for (int c = first; c < end; c++) {
+                    if (HyperRectangle.intersects(bounds, (base + c) * width, query)) {
+                        if (top == stack.length)
+                            stack = Arrays.copyOf(stack, top << 1);
+                        stack[top++] = ((level + 1) << 24) | c;
+                    }
+                }
+            }
+        }
+        return total;
+    }
+
+    private boolean pointInside(int p, float[] query) {
+        int at = p * dimension;
+        for (int i = 0; i < dimension; i++) {
+            float c = cords[at + i];
+            if (c > query[(i << 1) + MAX_CORD] || c < query[(i << 1) + MIN_CORD])
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public List<SpatialPoint> knnSearch(SpatialPoint center, int k) {
+        List<SpatialPoint> result = new ArrayList<SpatialPoint>(Math.max(k, 0));
+        if (k <= 0)
+            return result;
+        int found = _knnSearch(center.getCords(), k, null);
+        for (int r = 0; r < found; r++) {
+            result.add(toPoint(resultIndexes[r]));
+        }
+        return result;
+    }
+
+    /**
+     * finds the k nearest neighbours of cords, nearest first,
+     * without allocating.
+     * @param found receives the oids, at least k long
+     * @param distances receives the euclidean distances, at least k long
+     * @return number of neighbours found
+     */
+    public int knnSearch(float[] cords, int k, float[] found, float[] distances) {
+        int count = _knnSearch(cords, k, distances);
+        for (int r = 0; r < count; r++) {
+            found[r] = oids[resultIndexes[r]];
+        }
+        return count;
+    }
+
+    /**
+     * best first search. a node is queued as its level * 2^24 +
+     * index, a point as ~index. leaves the indexes of the
+     * neighbours in resultIndexes.
+     */
+    private int _knnSearch(float[] q, int k, float[] distances) {
+        if (resultIndexes.length < k)
+            resultIndexes = new int[k];
+        if (pointCount == 0)
+            return 0;
+        int width = dimension << 1;
+        int last = levelCounts.length - 1;
+
+        heap.clear();
+        heap.push(0f, 0);
+        int found = 0;
+        while (!heap.isEmpty() && found < k) {
+            float distance = heap.peekKey();
+            long ref = heap.pop();
+            if (ref < 0) {
+                resultIndexes[found] = (int) ~ref;
+                if (distances != null)
+                    distances[found] = (float) Math.sqrt(distance);
+                found++;
+                continue;
+            }
+
+            nodesVisited++;
+            int level = (int) (ref >>> 24);
+            int first = ((int) ref & 0xFFFFFF) * nodeSize;
+            if (level == last) {
+                int end = Math.min(first + nodeSize, pointCount);
+                for (int p = first; p < end; p++) {
+                    heap.push(squaredDistance(p, q), ~p);
+                }
+            } else {
+                int end = Math.min(first + nodeSize, levelCounts[level + 1]);
+                int base = levelStarts[level + 1];
+                for (int c = first; c < end; c++) {
+                    heap.push(minDistance((base + c) * width, q), ((long) (level + 1) << 24) | c);
+                }
+            }
+        }
+        return found;
+    }
+
+    private float squaredDistance(int p, float[] q) {
+        int at = p * dimension;
+        float sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            float d = cords[at + i] - q[i];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    private float minDistance(int node, float[] q) {
+        float sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            float d = Math.max(0f, Math.max(bounds[node + (i << 1) + MIN_CORD] - q[i],
+                    q[i] - bounds[node + (i << 1) + MAX_CORD]));
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    private SpatialPoint toPoint(int p) {
+        return new SpatialPoint(Arrays.copyOfRange(cords, p * dimension, (p + 1) * dimension), oids[p]);
+    }
+}
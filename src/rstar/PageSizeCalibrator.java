@@ -0,0 +1,175 @@
+package rstar;
+
+import driver.IOperationSink;
+import driver.OperationReader;
+import driver.Workload;
+import rstar.codec.CompactNodeCodec;
+import rstar.codec.JavaNodeCodec;
+import rstar.interfaces.INodeCodec;
+import rstar.spatial.HyperRectangle;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * picks the page size that minimises the query I/O for a sample
+ * of the data and the queries. for every candidate page size the
+ * sample is packed with the fanout a tree would have, the queries
+ * are run and the node reads are priced as one access latency
+ * plus the page transfer each.
+ *
+ * the sample is packed (PackedRTree) rather than inserted, so no
+ * tree files are touched; the fanout is the leaf capacity times
+ * the fill an inserted R* tree typically reaches.
+ *
+ * usage: PageSizeCalibrator <input file> <dimension> [compact]
+ * where the input file is in the Q1 format; its inserts are the
+ * sample and its range and kNN searches the queries.
+ */
+public class PageSizeCalibrator {
+    public static final int[] DEFAULT_PAGE_SIZES = {1024, 2048, 4096, 8192, 16384, 32768, 65536};
+
+    private final INodeCodec codec;
+    private int[] pageSizes = DEFAULT_PAGE_SIZES;
+    private double accessMicros = 100;          // seek / request latency per page
+    private double bytesPerMicro = 200;         // 200 MB/s
+    private float expectedFill = 0.7f;
+
+    public PageSizeCalibrator(INodeCodec codec) {
+        this.codec = codec;
+    }
+
+    public void setPageSizes(int[] pageSizes) {
+        this.pageSizes = pageSizes;
+    }
+
+    /**
+     * @param accessMicros fixed cost of reading a page
+     * @param bytesPerMicro transfer rate, bytes per microsecond (= MB/s)
+     */
+    public void setDeviceModel(double accessMicros, double bytesPerMicro) {
+        this.accessMicros = accessMicros;
+        this.bytesPerMicro = bytesPerMicro;
+    }
+
+    public void setExpectedFill(float expectedFill) {
+        this.expectedFill = expectedFill;
+    }
+
+    /**
+     * @param points sample of the indexed points
+     * @param rangeCenters centers of the sample range searches
+     * @param ranges their ranges
+     * @param knnCenters centers of the sample kNN searches
+     * @param ks their k
+     * @return the candidate page size with the least estimated
+     * I/O time per query, or -1 if there are no points or queries
+     */
+    public int calibrate(float[][] points, float[][] rangeCenters, double[] ranges,
+                         float[][] knnCenters, int[] ks) {
+        int queries = rangeCenters.length + knnCenters.length;
+        if (points.length == 0 || queries == 0)
+            return -1;
+        int dimension = points[0].length;
+        float[] oids = new float[points.length];
+        for (int i = 0; i < oids.length; i++) {
+            oids[i] = i;
+        }
+
+        int maxK = 1;
+        for (int k : ks) {
+            maxK = Math.max(maxK, k);
+        }
+        float[] query = new float[dimension << 1];
+        float[] found = new float[Math.max(maxK, 1024)];
+        float[] distances = new float[maxK];
+
+        int best = -1;
+        double bestCost = Double.MAX_VALUE;
+        System.out.printf("%10s %8s %12s %14s%n", "pagesize", "fanout", "reads/query", "micros/query");
+        for (int pageSize : pageSizes) {
+            int leafCapacity = RStarTree.capacity(codec, true, pageSize, dimension);
+            int fanout = Math.max(2, Math.round(leafCapacity * expectedFill));
+            PackedRTree packed = PackedRTree.build(points, oids, fanout);
+
+            for (int q = 0; q < rangeCenters.length; q++) {
+                float range = (float) ranges[q];
+                for (int i = 0; i < dimension; i++) {
+                    query[(i << 1) + HyperRectangle.MAX_CORD] = rangeCenters[q][i] + range;
+                    query[(i << 1) + HyperRectangle.MIN_CORD] = rangeCenters[q][i] - range;
+                }
+                packed.rangeSearch(query, found);
+            }
+            for (int q = 0; q < knnCenters.length; q++) {
+                packed.knnSearch(knnCenters[q], ks[q], found, distances);
+            }
+
+            double reads = packed.getNodesVisited() / (double) queries;
+            double cost = reads * (accessMicros + pageSize / bytesPerMicro);
+            System.out.printf("%10d %8d %12.2f %14.1f%n", pageSize, fanout, reads, cost);
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = pageSize;
+            }
+        }
+        return best;
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: PageSizeCalibrator <path to input file> <dimension of points> [compact]");
+            System.exit(1);
+        }
+        int dimension = Integer.parseInt(args[1]);
+        INodeCodec codec = args.length > 2 && args[2].equals("compact")
+                ? new CompactNodeCodec() : new JavaNodeCodec();
+
+        final ArrayList<float[]> points = new ArrayList<float[]>();
+        final ArrayList<float[]> rangeCenters = new ArrayList<float[]>();
+        final ArrayList<Double> ranges = new ArrayList<Double>();
+        final ArrayList<float[]> knnCenters = new ArrayList<float[]>();
+        final ArrayList<Integer> ks = new ArrayList<Integer>();
+        try {
+            new OperationReader(new File(args[0]), dimension).read(new IOperationSink() {
+                @Override
+                public void operation(long line, int type, float oid, float[] cords, double param) {
+                    if (type == Workload.INSERT) {
+                        points.add(cords.clone());
+                    } else if (type == Workload.RANGE_SEARCH) {
+                        rangeCenters.add(cords.clone());
+                        ranges.add(param);
+                    } else if (type == Workload.KNN_SEARCH) {
+                        knnCenters.add(cords.clone());
+                        ks.add((int) param);
+                    }
+                }
+
+                @Override
+                public void invalid(long line) {
+                    // skipped, like Q1 does
+                }
+            }, Runtime.getRuntime().availableProcessors());
+        } catch (IOException e) {
+            System.err.println("IOException while reading " + args[0]);
+            System.exit(1);
+        }
+
+        double[] rangeArray = new double[ranges.size()];
+        for (int i = 0; i < rangeArray.length; i++) {
+            rangeArray[i] = ranges.get(i);
+        }
+        int[] kArray = new int[ks.size()];
+        for (int i = 0; i < kArray.length; i++) {
+            kArray[i] = ks.get(i);
+        }
+
+        int best = new PageSizeCalibrator(codec).calibrate(points.toArray(new float[points.size()][]),
+                rangeCenters.toArray(new float[rangeCenters.size()][]), rangeArray,
+                knnCenters.toArray(new float[knnCenters.size()][]), kArray);
+        if (best == -1)
+            System.err.println("No points or no queries in " + args[0]);
+        else
+            System.out.println("best pagesize = " + best + " bytes");
+    }
+}
@@ -0,0 +1,193 @@
+package rstar;
+
+import java.util.Arrays;
+
+/**
+ * what one search did, for telling a slow query apart: overlap
+ * shows as many nodes visited per level, dead space as nodes
+ * visited but few entries returned, a big answer as many entries
+ * returned. pass one to a search of RStarTree to fill it.
+ *
+ * a profile is filled by the searching thread only; reuse it
+ * after reset().
+ */
+public class QueryProfile {
+    private String operation = "";
+    /**
+     * by depth, the root is depth 0
+     */
+    private long[] nodesVisited = new long[8];
+    private int depths;
+    private long nodesPruned;
+    private long entriesTested;
+    private long entriesReturned;
+    private long cacheReads;
+    private long diskReads;
+    private long nodeLoadNanos;
+    private long pointLoadNanos;
+    private long totalNanos;
+    private long started;
+
+    public void reset() {
+        operation = "";
+        Arrays.fill(nodesVisited, 0);
+        depths = 0;
+        nodesPruned = 0;
+        entriesTested = 0;
+        entriesReturned = 0;
+        cacheReads = 0;
+        diskReads = 0;
+        nodeLoadNanos = 0;
+        pointLoadNanos = 0;
+        totalNanos = 0;
+    }
+
+    /* RECORDING */
+
+    void start(String operation) {
+        reset();
+        this.operation = operation;
+        started = System.nanoTime();
+    }
+
+    void finish() {
+        totalNanos = System.nanoTime() - started;
+    }
+
+    void visit(int depth) {
+        if (depth >= nodesVisited.length)
+            nodesVisited = Arrays.copyOf(nodesVisited, depth << 1);
+        nodesVisited[depth]++;
+        depths = Math.max(depths, depth + 1);
+    }
+
+    /**
+     * @param count children of a directory node not descended into
+     */
+    void pruned(long count) {
+        nodesPruned += count;
+    }
+
+    /**
+     * @param tested points of a leaf compared with the query
+     * @param returned those of them in the answer
+     */
+    void leafEntries(long tested, long returned) {
+        entriesTested += tested;
+        entriesReturned += returned;
+    }
+
+    void returned(long count) {
+        entriesReturned += count;
+    }
+
+    void nodeRead(boolean fromMemory) {
+        if (fromMemory)
+            cacheReads++;
+        else
+            diskReads++;
+    }
+
+    void nodeLoadTime(long nanos) {
+        nodeLoadNanos += nanos;
+    }
+
+    void pointLoadTime(long nanos) {
+        pointLoadNanos += nanos;
+    }
+
+    /* READING */
+
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return nodes visited at each depth, the root first
+     */
+    public long[] getNodesVisited() {
+        return Arrays.copyOf(nodesVisited, depths);
+    }
+
+    public long getNodesVisitedTotal() {
+        long total = 0;
+        for (int d = 0; d < depths; d++) {
+            total += nodesVisited[d];
+        }
+        return total;
+    }
+
+    public long getNodesPruned() {
+        return nodesPruned;
+    }
+
+    public long getEntriesTested() {
+        return entriesTested;
+    }
+
+    public long getEntriesReturned() {
+        return entriesReturned;
+    }
+
+    /**
+     * @return nodes below the root found in memory (write set,
+     * pinned nodes, committed images)
+     */
+    public long getCacheReads() {
+        return cacheReads;
+    }
+
+    /**
+     * @return nodes read from their node file
+     */
+    public long getDiskReads() {
+        return diskReads;
+    }
+
+    /**
+     * @return time spent waiting for nodes
+     */
+    public long getNodeLoadNanos() {
+        return nodeLoadNanos;
+    }
+
+    /**
+     * @return time spent reading points from the data file
+     */
+    public long getPointLoadNanos() {
+        return pointLoadNanos;
+    }
+
+    /**
+     * @return time comparing entries with the query and managing
+     * the traversal, i.e. everything but loads
+     */
+    public long getFilterNanos() {
+        return Math.max(0, totalNanos - nodeLoadNanos - pointLoadNanos);
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return the profile as a small report, one fact per line
+     */
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(operation).append(String.format(": %.1f us%n", totalNanos / 1000.0));
+        for (int d = 0; d < depths; d++) {
+            report.append(String.format("  depth %-3d nodes visited %10d%n", d, nodesVisited[d]));
+        }
+        report.append(String.format("  nodes pruned              %10d%n", nodesPruned));
+        report.append(String.format("  leaf entries tested       %10d%n", entriesTested));
+        report.append(String.format("  entries returned          %10d%n", entriesReturned));
+        report.append(String.format("  nodes from memory         %10d%n", cacheReads));
+        report.append(String.format("  nodes from disk           %10d%n", diskReads));
+        report.append(String.format("  node loads (us)           %10.1f%n", nodeLoadNanos / 1000.0));
+        report.append(String.format("  point loads (us)          %10.1f%n", pointLoadNanos / 1000.0));
+        report.append(String.format("  filtering (us)            %10.1f%n", getFilterNanos() / 1000.0));
+        return report.toString();
+    }
+}
@@ -1,66 +1,289 @@
 package rstar;
 
+import rstar.codec.JavaNodeCodec;
 import rstar.dto.PointDTO;
 import rstar.dto.TreeDTO;
+import rstar.events.QueryEvent;
+import rstar.events.SplitEvent;
 import rstar.interfaces.IDtoConvertible;
+import rstar.interfaces.INodeCodec;
 import rstar.interfaces.ISpatialQuery;
 import rstar.nodes.RStarInternal;
 import rstar.nodes.RStarLeaf;
 import rstar.nodes.RStarNode;
 import rstar.nodes.RStarSplit;
+import rstar.spatial.EntryBlock;
+import rstar.spatial.GeometryKernel;
 import rstar.spatial.HyperRectangle;
 import rstar.spatial.SpatialPoint;
 import util.Constants;
+import util.Trace;
+import util.Utils;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class RStarTree implements ISpatialQuery, IDtoConvertible {
 
+    /**
+     * bytes of a page taken by everything but the entries
+     * and the node MBR
+     */
+    private static final int NODE_HEADER_SIZE = 64;
+    private static final Trace logger = Trace.getLogger(RStarTree.class.getSimpleName());
+
     private int dimension;
     private File saveFile;
     private StorageManager storage;
     private RStarNode root;
     private long rootPointer = -1;
+    private int height = 1;
+    /**
+     * header as last logged; an insert logs the header
+     * again only if it differs from these
+     */
+    private long headerRootPointer = -1;
+    private int headerHeight = 0;
+    private long headerNextId = -1;
+    /**
+     * height of the tree when its upper levels were pinned, -1 if
+     * they are not. a new root moves every level one down, so the
+     * pins are redone when the height changes.
+     */
+    private int pinnedHeight = -1;
+    private int pinLevels;
+    private long pinBudget;
     private RStarSplit splitManager;
-
-    private float _pointSearchResult = -1;
-    private ArrayList<SpatialPoint> _rangeSearchResult;
-    private List<SpatialPoint> _knnSearchResult;
-    private int bestSortOrder = -1;
+    private GeometryKernel kernel;
+    private TreeMetrics metrics;
+    private SelectivityEstimator estimator;
+    private float[] mbrScratch;
+    /**
+     * inserts run one at a time, queries run concurrently with
+     * each other. waiting for the log is done outside the lock
+     * so concurrent inserts share their fsyncs.
+     */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
 
     public RStarTree(int dimension) {
+        this(dimension, false);
+    }
+
+    /**
+     * opens the tree saved in TREE_FILE, or creates an empty one.
+     * @param dimension dimension of the indexed points
+     * @param xTreeMode if true, directory nodes that cannot be split
+     *                  without heavy overlap become X-tree supernodes.
+     *                  meant for high dimensional data.
+     * @throws IllegalArgumentException if the saved tree has
+     * another dimension
+     */
+    public RStarTree(int dimension, boolean xTreeMode) {
+        this(dimension, xTreeMode, new JavaNodeCodec());
+    }
+
+    /**
+     * @param codec codec new node pages are written with,
+     *              e.g. a CompactNodeCodec for smaller pages
+     * @see #RStarTree(int, boolean)
+     */
+    public RStarTree(int dimension, boolean xTreeMode, INodeCodec codec) {
         this.dimension = dimension;
         this.saveFile = new File(Constants.TREE_FILE);
         this.storage = new StorageManager();
-        this.splitManager = new RStarSplit(dimension, storage);
+        this.storage.setNodeCodec(codec);
+        this.metrics = storage.getMetrics();
+        if (Constants.METRICS_JMX)
+            metrics.register(saveFile.getAbsolutePath());
+        this.kernel = GeometryKernel.forDimension(dimension);
+        this.mbrScratch = new float[dimension << 1];
+        this.estimator = new SelectivityEstimator(dimension);
+        this.splitManager = new RStarSplit(dimension, storage, kernel);
+        this.splitManager.setXTreeMode(xTreeMode);
 
         storage.createDataDir(saveFile);
-        setCapacities();
+        // a saved tree brings its own page size, codec and capacities
+        setCapacities(loadTree());
+        loadRoot();
+        if (Constants.PIN_LEVELS > 0)
+            warmUp(Constants.PIN_LEVELS, Constants.PIN_BYTES);
     }
 
-    private void setCapacities(){
+    /**
+     * @param saved header of the saved tree, null for a new one.
+     *              capacities it stores win over the computed ones,
+     *              so nodes keep the M and m they were built with
+     */
+    private void setCapacities(TreeDTO saved){
         Constants.DIMENSION = dimension;
-//        Constants.MAX_CHILDREN = Constants.PAGESIZE/8;          // M = (pagesize - mbr_size)/ (size of Long = 8)
-//        Constants.MIN_CHILDREN = Constants.MAX_CHILDREN/3;      // m = M/3
-        Constants.MAX_CHILDREN = 10;
-        Constants.MIN_CHILDREN = 4;
+        if (saved != null && saved.maxChildren > 0) {
+            Constants.MAX_CHILDREN = saved.maxChildren;
+            Constants.MIN_CHILDREN = saved.minChildren;
+            Constants.MAX_LEAF_CHILDREN = saved.maxLeafChildren;
+            Constants.MIN_LEAF_CHILDREN = saved.minLeafChildren;
+            return;
+        }
+        INodeCodec codec = storage.getNodeCodec();
+        Constants.MAX_CHILDREN = capacity(codec, false, Constants.PAGESIZE, dimension);
+        Constants.MIN_CHILDREN = minChildren(Constants.MAX_CHILDREN, Constants.INTERNAL_MIN_FILL);
+        Constants.MAX_LEAF_CHILDREN = capacity(codec, true, Constants.PAGESIZE, dimension);
+        Constants.MIN_LEAF_CHILDREN = minChildren(Constants.MAX_LEAF_CHILDREN, Constants.LEAF_MIN_FILL);
+    }
+
+    /**
+     * number of entries that fit in a page after the node header
+     * (ids, counts, lsn and the node's own MBR)
+     * @return M for the given node kind, at least 4
+     */
+    public static int capacity(INodeCodec codec, boolean leaf, int pageSize, int dimension) {
+        int header = NODE_HEADER_SIZE + 8 * dimension;
+        return Math.max(4, (pageSize - header) / codec.entrySize(leaf, dimension));
+    }
+
+    /**
+     * m = fill * M, at least 2 and at most M/2 so a split of
+     * M+1 entries always has a valid distribution
+     */
+    public static int minChildren(int maxChildren, float fill) {
+        return Math.max(2, Math.min(maxChildren / 2, Math.round(maxChildren * fill)));
+    }
+
+    /**
+     * loads the top levels of the tree and keeps them in memory
+     * for as long as the tree is open, so queries reach steady
+     * state latency at once. the nodes of a level are read in
+     * parallel.
+     * @param levels number of levels from the root to pin
+     * @param byteBudget most bytes of node pages to pin; a level
+     *                   that doesn't fit is pinned only in part
+     * @return number of nodes pinned
+     */
+    public int warmUp(int levels, long byteBudget) {
+        lock.writeLock().lock();
+        try {
+            pinLevels = levels;
+            pinBudget = byteBudget;
+            return pinUpperLevels();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @see #warmUp(int, long)
+     */
+    public int warmUp(int levels) {
+        return warmUp(levels, Long.MAX_VALUE);
+    }
+
+    /**
+     * pins as much of the tree as fits, for warmUp() or after a
+     * change of height
+     */
+    private int pinUpperLevels() {
+        storage.unpinAll();
+        storage.setPinning(pinLevels, pinBudget);
+        pinnedHeight = pinLevels > 0 ? height : -1;
+        if (pinLevels == 0 || !storage.pin(root, 0))
+            return 0;
+
+        int pinned = 1;
+        List<RStarNode> level = new ArrayList<RStarNode>();
+        level.add(root);
+        for (int depth = 1; depth < pinLevels && !level.get(0).isLeaf(); depth++) {
+            List<Future<RStarNode>> pending = new ArrayList<Future<RStarNode>>();
+            for (RStarNode node : level) {
+                for (int c = 0; c < node.getChildCount(); c++) {
+                    pending.add(storage.loadNodeAsync(node.getChildPointer(c)));
+                }
+            }
+
+            List<RStarNode> next = new ArrayList<RStarNode>(pending.size());
+            for (Future<RStarNode> child : pending) {
+                try {
+                    RStarNode node = storage.awaitNode(child);
+                    if (!storage.pin(node, depth))
+                        return pinned;          // out of budget
+                    next.add(node);
+                    pinned++;
+                } catch (FileNotFoundException e) {
+                    System.err.println("Exception while loading node from disk. message = " + e.getMessage());
+                }
+            }
+            if (next.isEmpty())
+                break;
+            level = next;
+        }
+        return pinned;
     }
 
     /* QUERY FUNCTIONS */
 
     /**
-     * inserts a point in the tree and saves it on disk
+     * inserts a point in the tree and saves it on disk.
+     * with WAL_ENABLED, -1 is also returned when the log could not
+     * be forced. the insert is not undone then, as other operations
+     * may already build on it: it stays in the tree and is durable
+     * once a later force succeeds.
      * @param point the point to be inserted
      * @return 1 if successful, else -1
      */
     @Override
     public int insert(SpatialPoint point) {
-        System.out.println("inserting point with oid=" + point.getOid());
+        if (logger.isEnabled(Trace.DEBUG))
+            logger.debug("inserting point with oid=" + point.getOid());
+        long started = metrics.operationStart();
+        QueryEvent event = new QueryEvent();
+        event.begin();
+        int status = -1;
+        long lsn = 0;
+        lock.writeLock().lock();
+        try {
+            storage.beginOperation();
+            status = _insert(point);
+        } finally {
+            if (status == 1) {
+                TreeDTO header = changedHeader();
+                lsn = storage.commitOperation(header);
+                if (lsn == -1)
+                    status = -1;
+                else if (header != null)
+                    headerLogged(header);
+            }
+            if (status == 1) {
+                estimator.inserted(point.getCords());
+                if (pinnedHeight != -1 && pinnedHeight != height)
+                    pinUpperLevels();
+            } else {
+                //nothing of a failed insert reaches the disk
+                storage.abortOperation();
+                if (headerRootPointer != -1) {
+                    rootPointer = headerRootPointer;
+                    height = headerHeight;
+                }
+                reloadRoot();
+                if (pinnedHeight != -1)
+                    pinUpperLevels();
+            }
+            lock.writeLock().unlock();
+        }
+
+        if (status == 1 && !storage.awaitDurable(lsn))
+            status = -1;
+        metrics.operationDone(TreeMetrics.INSERT, started);
+        operationDone(event, "insert", status == 1 ? 1 : 0);
+        return status;
+    }
+
+    private int _insert(SpatialPoint point) {
         RStarLeaf target = chooseLeaf(point);
 
         if (target.isNotFull()) {
@@ -82,11 +305,15 @@ public class RStarTree implements ISpatialQuery, IDtoConvertible {
      * @param nodePointer pointer to node in which the given node
      *                    is to be inserted
      * @param nodeToInsert the node to be inserted
+     * @param splitNode the sibling nodeToInsert was split from. its
+     *                  entry in the target is refreshed as its MBR changed
+     * @param level level of the target node, leaves are 0
      * @return 1 of successful, else -1
      */
-    private int insertAt(Long nodePointer, RStarNode nodeToInsert) {
+    private int insertAt(Long nodePointer, RStarNode nodeToInsert, RStarNode splitNode, int level) {
         storage.saveNode(nodeToInsert);
         RStarInternal target = (RStarInternal) loadNode(nodePointer);
+        target.updateChildMbr(splitNode);
 
         if (target.isNotFull()) {
             target.insert(nodeToInsert);
@@ -99,7 +326,7 @@ public class RStarTree implements ISpatialQuery, IDtoConvertible {
             adjustParentOf(target);
             return 1;
         } else {
-            return treatInternalOverflow(target, nodeToInsert);
+            return treatInternalOverflow(target, nodeToInsert, level);
         }
     }
 
@@ -111,52 +338,71 @@ public class RStarTree implements ISpatialQuery, IDtoConvertible {
      */
     @Override
     public float pointSearch(SpatialPoint point) {
-        _pointSearchResult = -1;
-        loadRoot();
-        _pointSearch(root, point);
-        return _pointSearchResult;
+        return pointSearch(point, null);
     }
 
-    private void _pointSearch(RStarNode start, SpatialPoint point) {
-        HyperRectangle searchRegion = new HyperRectangle(point.getCords());
-        HyperRectangle intersection = start.getMBR().getIntersection(searchRegion);
+    /**
+     * @param profile filled with what the search did, may be null
+     * @see #pointSearch(SpatialPoint)
+     */
+    public float pointSearch(SpatialPoint point, QueryProfile profile) {
+        long started = metrics.operationStart();
+        QueryEvent event = new QueryEvent();
+        event.begin();
+        if (profile != null)
+            profile.start("pointSearch");
+        float oid = -1;
+        lock.readLock().lock();
+        try {
+            float[] cords = point.getCords();
+            if (kernel.containsPoint(root.getMBR().getPoints(), cords))
+                oid = _pointSearch(root, new HyperRectangle(cords).getPoints(), 0, profile);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (profile != null)
+            profile.finish();
+        metrics.operationDone(TreeMetrics.POINT_SEARCH, started);
+        operationDone(event, "pointSearch", oid == -1 ? 0 : 1);
+        return oid;
+    }
 
-        if(intersection != null) {
-            if (start.isLeaf()) {
-                float[] searchPoints = point.getCords();
+    private float _pointSearch(RStarNode start, float[] searchRegion, int depth, QueryProfile profile) {
+        EntryBlock entries = start.getEntries();
+        long[] mask = entries.newMask();
+        int matches = kernel.filter(entries, searchRegion, mask);
+        if (profile != null) {
+            profile.visit(depth);
+            if (start.isLeaf())
+                profile.leafEntries(start.getChildCount(), Math.min(matches, 1));
+            else
+                profile.pruned(start.getChildCount() - matches);
+        }
+        if (matches == 0)
+            return -1;
 
-                //lazy loading of child points
-                for (Long pointer : start.childPointers) {
-                    PointDTO dto = storage.loadPoint(pointer);
+        for (int w = 0; w < mask.length; w++) {
+            for (long word = mask[w]; word != 0; word &= word - 1) {
+                int c = (w << 6) + Long.numberOfTrailingZeros(word);
+                if (c >= start.getChildCount())         // not yet saved to disk
+                    continue;
 
-                    float[] candidates = dto.coords;
-                    boolean found = true;
-                    for (int i = 0; i < candidates.length; i++) {
-                        if (candidates[i] != searchPoints[i]){
-                            found = false;
-                            break;
-                        }
-                    }
-                    if (found) {
-                        _pointSearchResult = dto.oid;
-                        break;
-                    }
+                if (start.isLeaf()) {
+                    //a degenerate region only matches an equal point
+                    return loadPoint(start.getChildPointer(c), profile).oid;
                 }
-            } else {
-                for (Long pointer : start.childPointers) {
-                    if(_pointSearchResult != -1)         // point found
-                        break;
-
-                    try {
-                        RStarNode childNode = storage.loadNode(pointer);    //recurse down
-                        _pointSearch(childNode, point);
+                try {
+                    RStarNode childNode = loadNode(start.getChildPointer(c), profile);    //recurse down
+                    float oid = _pointSearch(childNode, searchRegion, depth + 1, profile);
+                    if (oid != -1)                      // point found
+                        return oid;
 
-                    } catch (FileNotFoundException e) {
-                        System.err.println("Exception while loading node from disk. message = "+e.getMessage());
-                    }
+                } catch (FileNotFoundException e) {
+                    System.err.println("Exception while loading node from disk. message = "+e.getMessage());
                 }
             }
         }
+        return -1;
     }
 
     /**
@@ -167,96 +413,305 @@ public class RStarTree implements ISpatialQuery, IDtoConvertible {
      */
     @Override
     public List<SpatialPoint> rangeSearch(SpatialPoint center, double range) {
+        return rangeSearch(center, range, null);
+    }
+
+    /**
+     * @param profile filled with what the search did, may be null
+     * @see #rangeSearch(SpatialPoint, double)
+     */
+    public List<SpatialPoint> rangeSearch(SpatialPoint center, double range, QueryProfile profile) {
+        long started = metrics.operationStart();
+        QueryEvent event = new QueryEvent();
+        event.begin();
+        if (profile != null)
+            profile.start("rangeSearch");
 
         float[] points = center.getCords();
-        float[][] mbrPoints = new float[dimension][2];
+        float[] mbrPoints = new float[dimension << 1];
         for (int i = 0; i < dimension; i++) {
-            mbrPoints[i][0] = points[i] + (float) range;
-            mbrPoints[i][1] = points[i] - (float) range;
+            mbrPoints[(i << 1) + HyperRectangle.MAX_CORD] = points[i] + (float) range;
+            mbrPoints[(i << 1) + HyperRectangle.MIN_CORD] = points[i] - (float) range;
         }
-        HyperRectangle searchRegion = new HyperRectangle(dimension);
-        searchRegion.setPoints(mbrPoints);
 
-        _rangeSearchResult = new ArrayList<SpatialPoint>();
-        loadRoot();
-        _rangeSearch(root, searchRegion);
-        return _rangeSearchResult;
+        ArrayList<SpatialPoint> result = new ArrayList<SpatialPoint>();
+        lock.readLock().lock();
+        try {
+            if (kernel.intersects(root.getMBR().getPoints(), mbrPoints))
+                _rangeSearch(root, mbrPoints, result, 0, profile);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (profile != null)
+            profile.finish();
+        metrics.operationDone(TreeMetrics.RANGE_SEARCH, started);
+        operationDone(event, "rangeSearch", result.size());
+        return result;
     }
 
-    private void _rangeSearch(RStarNode start, HyperRectangle searchRegion) {
-        HyperRectangle intersection = start.getMBR().getIntersection(searchRegion);
-        if (intersection != null) {
-            if (start.isLeaf()) {
-                for (Long pointer : start.childPointers) {
-                    PointDTO dto = storage.loadPoint(pointer);
-                    SpatialPoint spoint = new SpatialPoint(dto);
-                    HyperRectangle pointMbr = new HyperRectangle(dto.coords);
+    /**
+     * the reads of all qualifying children of a directory node are
+     * issued together, then the children are searched in order as
+     * they arrive
+     */
+    private void _rangeSearch(RStarNode start, float[] searchRegion, List<SpatialPoint> result,
+                              int depth, QueryProfile profile) {
+        EntryBlock entries = start.getEntries();
+        long[] mask = entries.newMask();
+        int matches = kernel.filter(entries, searchRegion, mask);
+        if (profile != null) {
+            profile.visit(depth);
+            if (start.isLeaf())
+                profile.leafEntries(start.getChildCount(), matches);
+            else
+                profile.pruned(start.getChildCount() - matches);
+        }
+        if (matches == 0)
+            return;
+
+        List<Future<RStarNode>> children = start.isLeaf() ? null : new ArrayList<Future<RStarNode>>(matches);
+        for (int w = 0; w < mask.length; w++) {
+            for (long word = mask[w]; word != 0; word &= word - 1) {
+                int c = (w << 6) + Long.numberOfTrailingZeros(word);
+                if (c >= start.getChildCount())         // not yet saved to disk
+                    continue;
 
-                    if(pointMbr.getIntersection(searchRegion) != null)
-                        _rangeSearchResult.add(spoint);
+                if (start.isLeaf()) {
+                    result.add(new SpatialPoint(loadPoint(start.getChildPointer(c), profile)));
+                } else {
+                    if (profile != null)
+                        profile.nodeRead(storage.isInMemory(start.getChildPointer(c)));
+                    children.add(storage.loadNodeAsync(start.getChildPointer(c)));
                 }
             }
-            else {
-                for (Long pointer : start.childPointers) {
-                    try {
-                        RStarNode childNode = storage.loadNode(pointer);    //recurse down
-                        _rangeSearch(childNode, searchRegion);
-
-                    } catch (FileNotFoundException e) {
-                        System.err.println("Exception while loading node from disk");
-                    }
-                }
+        }
+
+        if (children == null)
+            return;
+        for (Future<RStarNode> child : children) {
+            try {
+                long waited = profile != null ? System.nanoTime() : 0;
+                RStarNode childNode = storage.awaitNode(child);    //recurse down
+                if (profile != null)
+                    profile.nodeLoadTime(System.nanoTime() - waited);
+                _rangeSearch(childNode, searchRegion, result, depth + 1, profile);
+
+            } catch (FileNotFoundException e) {
+                System.err.println("Exception while loading node from disk");
             }
         }
     }
 
     /**
-     * searches for the k nearest neighbours of a center point
+     * searches for the k nearest neighbours of a center point.
+     * entries are visited best first by their minimum distance
+     * to center, so only nodes that can hold one of the k
+     * nearest points are loaded.
      * @param center SpatialPoint
      * @param k number of nearest neighbours required
-     * @return List of the k nearest neighbours of center.
+     * @return List of the k nearest neighbours of center, nearest first.
      */
     @Override
     public List<SpatialPoint> knnSearch(SpatialPoint center, int k) {
-        loadRoot();
-        _knnSearch(root, center, k, 1);
-        _rangeSearchResult = new ArrayList<SpatialPoint>();
-        return _knnSearchResult;
+        return knnSearch(center, k, null);
     }
 
-    private void _knnSearch(RStarNode start, SpatialPoint center, int k, float range) {
-        _rangeSearchResult = new ArrayList<SpatialPoint>();
+    /**
+     * @param profile filled with what the search did, may be null.
+     *                nodes pruned are the nodes still queued when
+     *                the k-th point was found
+     * @see #knnSearch(SpatialPoint, int)
+     */
+    public List<SpatialPoint> knnSearch(SpatialPoint center, int k, QueryProfile profile) {
+        List<SpatialPoint> result = new ArrayList<SpatialPoint>(Math.max(k, 0));
+        if (profile != null)
+            profile.start("knnSearch");
+        if (k <= 0) {
+            if (profile != null)
+                profile.finish();
+            return result;
+        }
 
-        float[] points = center.getCords();
-        float[][] mbrPoints = new float[dimension][2];
-        for (int i = 0; i < dimension; i++) {
-            mbrPoints[i][0] = points[i] + range;
-            mbrPoints[i][1] = points[i] - range;
+        long started = metrics.operationStart();
+        QueryEvent event = new QueryEvent();
+        event.begin();
+        lock.readLock().lock();
+        try {
+            _knnSearch(center.getCords(), k, result, profile);
+        } finally {
+            lock.readLock().unlock();
         }
-        HyperRectangle searchRegion = new HyperRectangle(dimension);
-        searchRegion.setPoints(mbrPoints);
+        if (profile != null)
+            profile.finish();
+        metrics.operationDone(TreeMetrics.KNN_SEARCH, started);
+        operationDone(event, "knnSearch", result.size());
+        return result;
+    }
 
-        _rangeSearch(start, searchRegion);
+    private void _knnSearch(float[] cords, int k, List<SpatialPoint> result, QueryProfile profile) {
+        PriorityQueue<KnnCandidate> queue = new PriorityQueue<KnnCandidate>();
+        Map<Long, Future<RStarNode>> prefetched = new HashMap<Long, Future<RStarNode>>();
+        float[] distances = new float[Math.max(Constants.MAX_CHILDREN, Constants.MAX_LEAF_CHILDREN)];
+        distances = expandKnnCandidates(root, 0, cords, queue, distances, prefetched, profile);
 
-        if (_rangeSearchResult.size() < k) {
-            _knnSearch(start, center, k, 2 * range);
-        } else {
-            final SpatialPoint fcenter = center;
-            Comparator<? super SpatialPoint> paramComparator = new Comparator<SpatialPoint>() {
-                @Override
-                public int compare(SpatialPoint point1, SpatialPoint point2) {
-                    float deltaDist = fcenter.distance(point1) - fcenter.distance(point2);
-                    if(deltaDist == 0)
-                        return 0;
-                    else
-                        return (int)(deltaDist /(Math.abs(deltaDist)));
+        while (!queue.isEmpty() && result.size() < k) {
+            KnnCandidate next = queue.poll();
+            if (next.isPoint) {
+                result.add(new SpatialPoint(loadPoint(next.pointer, profile)));
+            } else {
+                try {
+                    Future<RStarNode> pending = prefetched.remove(next.pointer);
+                    long waited = 0;
+                    if (profile != null) {
+                        profile.nodeRead(storage.isInMemory(next.pointer));
+                        waited = System.nanoTime();
+                    }
+                    RStarNode childNode = pending != null
+                            ? storage.awaitNode(pending) : storage.loadNode(next.pointer);
+                    if (profile != null)
+                        profile.nodeLoadTime(System.nanoTime() - waited);
+                    distances = expandKnnCandidates(childNode, next.depth, cords, queue, distances, prefetched, profile);
+                } catch (FileNotFoundException e) {
+                    System.err.println("Exception while loading node from disk. message = "+e.getMessage());
                 }
-            };
-            Collections.sort(_rangeSearchResult, paramComparator);
-            _knnSearchResult = _rangeSearchResult.subList(0, k);
+            }
+        }
+
+        for (Future<RStarNode> unused : prefetched.values()) {
+            unused.cancel(false);
+        }
+        if (profile != null) {
+            profile.returned(result.size());
+            for (KnnCandidate left : queue) {
+                if (!left.isPoint)
+                    profile.pruned(1);
+            }
         }
     }
 
+    /**
+     * queues all saved entries of node with their squared
+     * minimum distance to cords. of a directory node the
+     * KNN_PREFETCH nearest children, the likely next frontier,
+     * are read ahead into prefetched.
+     * @param depth depth of node, the root is 0
+     * @return the distance buffer, grown if node had more entries
+     */
+    private float[] expandKnnCandidates(RStarNode node, int depth, float[] cords, PriorityQueue<KnnCandidate> queue,
+                                        float[] distances, Map<Long, Future<RStarNode>> prefetched,
+                                        QueryProfile profile) {
+        EntryBlock entries = node.getEntries();
+        if (distances.length < entries.size())
+            distances = new float[entries.size()];
+        kernel.minDistances(entries, cords, distances);
+
+        boolean isLeaf = node.isLeaf();
+        int count = node.getChildCount();
+        for (int c = 0; c < count; c++) {
+            queue.add(new KnnCandidate(distances[c], node.getChildPointer(c), isLeaf, depth + 1));
+        }
+        if (profile != null) {
+            profile.visit(depth);
+            if (isLeaf)
+                profile.leafEntries(count, 0);
+        }
+
+        if (!isLeaf) {
+            //selection of the nearest few by (distance, index), count is at most a page
+            float last = -1;
+            int lastIndex = -1;
+            for (int p = 0; p < Math.min(Constants.KNN_PREFETCH, count); p++) {
+                int nearest = -1;
+                for (int c = 0; c < count; c++) {
+                    boolean after = distances[c] > last || (distances[c] == last && c > lastIndex);
+                    if (after && (nearest == -1 || distances[c] < distances[nearest]))
+                        nearest = c;
+                }
+                last = distances[nearest];
+                lastIndex = nearest;
+                long pointer = node.getChildPointer(nearest);
+                if (!prefetched.containsKey(pointer))
+                    prefetched.put(pointer, storage.loadNodeAsync(pointer));
+            }
+        }
+        return distances;
+    }
+
+    /**
+     * a queued entry of the best first knn search: either a
+     * node or a point, ordered by squared distance.
+     */
+    private static class KnnCandidate implements Comparable<KnnCandidate> {
+        final float distance;
+        final long pointer;
+        final boolean isPoint;
+        /**
+         * depth of the node, the root is 0
+         */
+        final int depth;
+
+        KnnCandidate(float distance, long pointer, boolean isPoint, int depth) {
+            this.distance = distance;
+            this.pointer = pointer;
+            this.isPoint = isPoint;
+            this.depth = depth;
+        }
+
+        @Override
+        public int compareTo(KnnCandidate other) {
+            int order = Float.compare(distance, other.distance);
+            if (order == 0 && isPoint != other.isPoint)
+                return isPoint ? -1 : 1;            // report points before equally near nodes
+            return order;
+        }
+    }
+
+    /**
+     * commits event if the operation took longer than its threshold
+     */
+    private static void operationDone(QueryEvent event, String operation, int results) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = operation;
+            event.results = results;
+            event.commit();
+        }
+    }
+
+    private void splitDone(SplitEvent event, int level, int entries, boolean supernode) {
+        event.end();
+        if (event.shouldCommit()) {
+            event.level = level;
+            event.entries = entries;
+            event.supernode = supernode;
+            event.axis = supernode ? -1 : splitManager.getLastSplitAxis();
+            event.overlap = supernode ? 0 : splitManager.getLastSplitOverlap();
+            event.commit();
+        }
+    }
+
+    /**
+     * loadNode() of a search, counted and timed in profile
+     */
+    private RStarNode loadNode(long nodeId, QueryProfile profile) throws FileNotFoundException {
+        if (profile == null)
+            return storage.loadNode(nodeId);
+        profile.nodeRead(storage.isInMemory(nodeId));
+        long start = System.nanoTime();
+        RStarNode node = storage.loadNode(nodeId);
+        profile.nodeLoadTime(System.nanoTime() - start);
+        return node;
+    }
+
+    private PointDTO loadPoint(long pointer, QueryProfile profile) {
+        if (profile == null)
+            return storage.loadPoint(pointer);
+        long start = System.nanoTime();
+        PointDTO point = storage.loadPoint(pointer);
+        profile.pointLoadTime(System.nanoTime() - start);
+        return point;
+    }
+
     private int treatLeafOverflow(RStarLeaf target, SpatialPoint point) {
         try {
             splitLeaf(target, point);
@@ -266,9 +721,9 @@ public class RStarTree implements ISpatialQuery, IDtoConvertible {
         }
     }
 
-    private int treatInternalOverflow(RStarInternal fullNode, RStarNode newChild) {
+    private int treatInternalOverflow(RStarInternal fullNode, RStarNode newChild, int level) {
         try {
-            splitInternalNode(fullNode, newChild);
+            splitInternalNode(fullNode, newChild, level);
             return 1;
         } catch (AssertionError e) {
             return -1;
@@ -283,14 +738,19 @@ public class RStarTree implements ISpatialQuery, IDtoConvertible {
      * not have any children
      */
     private void splitLeaf(RStarLeaf splittingLeaf, SpatialPoint newPoint) throws AssertionError {
+        SplitEvent event = new SplitEvent();
+        event.begin();
+        int entries = splittingLeaf.getChildCount() + 1;
         RStarLeaf newChild = splitManager.splitLeaf(splittingLeaf, newPoint);
+        metrics.split(0);
+        splitDone(event, 0, entries, false);
         if (splittingLeaf.getNodeId() == rootPointer) {
             //we just split root
             root = splittingLeaf;
             createRoot(newChild);
         } else {
             newChild.setParentId(splittingLeaf.getParentId());
-            insertAt(splittingLeaf.getParentId(), newChild);
+            insertAt(splittingLeaf.getParentId(), newChild, splittingLeaf, 1);
         }
     }
 
@@ -298,18 +758,32 @@ public class RStarTree implements ISpatialQuery, IDtoConvertible {
      * splits an internal node and inserts a new node
      * @param splittingNode the node to be split
      * @param node the node to be inserted
+     * @param level level of splittingNode
      */
-    private void splitInternalNode(RStarInternal splittingNode, RStarNode node) {
+    private void splitInternalNode(RStarInternal splittingNode, RStarNode node, int level) {
         RStarNode createdNode;
+        SplitEvent event = new SplitEvent();
+        event.begin();
+        int entries = splittingNode.getChildCount() + 1;
         try {
             createdNode = splitManager.splitInternalNode(splittingNode, node);
-            if (splittingNode.getNodeId() == rootPointer) {
+            splitDone(event, level, entries, createdNode == null);
+            if (createdNode == null) {
+                //splittingNode was extended to a supernode
+                metrics.supernodeExtended();
+                if (splittingNode.getNodeId() == rootPointer) {
+                    root = splittingNode;
+                }
+                adjustParentOf(splittingNode);
+            } else if (splittingNode.getNodeId() == rootPointer) {
                 //we just split root
+                metrics.split(level);
                 root = splittingNode;
                 createRoot(createdNode);
             } else {
+                metrics.split(level);
                 createdNode.setParentId(splittingNode.getParentId());
-                insertAt(splittingNode.getParentId(), createdNode);
+                insertAt(splittingNode.getParentId(), createdNode, splittingNode, level + 1);
             }
         } catch (FileNotFoundException e) {
             System.err.println("Exception while loading node from disk. message: "+e.getMessage());
@@ -331,6 +805,7 @@ public class RStarTree implements ISpatialQuery, IDtoConvertible {
         storage.saveNode(newRoot);
         root = newRoot;
         rootPointer = newRoot.getNodeId();
+        height++;
     }
 
     /**
@@ -348,20 +823,25 @@ public class RStarTree implements ISpatialQuery, IDtoConvertible {
     }
 
     /**
-     * updates mbr of all ancestor of a node
+     * updates mbr of all ancestor of a node. stops at the first
+     * ancestor whose entry for the child was already up to date,
+     * and saves the last changed ancestor without going further
+     * if its own MBR stayed the same.
      * @param target updation starts from the parent of target
      */
     private void adjustParentOf(RStarNode target) {
         if (target.getNodeId() != rootPointer) {
-            RStarNode parent = loadNode(target.getParentId());
-            HyperRectangle mbr = parent.getMBR();
-            mbr.update(target.getMBR());
-            parent.setMbr(mbr);
+            RStarInternal parent = (RStarInternal) loadNode(target.getParentId());
+            float[] parentMbr = parent.getMBR().getPoints();
+            System.arraycopy(parentMbr, 0, mbrScratch, 0, mbrScratch.length);
+            if (!parent.updateChildMbr(target))
+                return;
             storage.saveNode(parent);
             if (parent.getNodeId() == rootPointer) {
                 root = parent;
             }
-            adjustParentOf(parent);
+            if (!Arrays.equals(mbrScratch, parentMbr))
+                adjustParentOf(parent);
         }
     }
 
@@ -376,8 +856,13 @@ public class RStarTree implements ISpatialQuery, IDtoConvertible {
      */
     private void loadRoot() {
         if (root == null) {
-            //empty tree
-            root = loadNode(rootPointer);
+            if (rootPointer != -1) {
+                try {
+                    root = storage.loadNode(rootPointer);
+                } catch (FileNotFoundException e) {
+                    System.err.println("Error while loading R* Tree root from file " + storage.constructFilename(rootPointer));
+                }
+            }
             if (root == null)            // still null -> empty tree
             {
                 root = new RStarLeaf(dimension);
@@ -387,6 +872,26 @@ public class RStarTree implements ISpatialQuery, IDtoConvertible {
         }
     }
 
+    /**
+     * drops the cached root in favour of its last saved version.
+     * a root that was never saved is replaced by an empty leaf.
+     */
+    private void reloadRoot() {
+        RStarNode saved = null;
+        try {
+            saved = storage.loadNode(rootPointer);
+        } catch (FileNotFoundException e) {
+            // root never reached the disk
+        }
+        root = null;
+        if (saved != null) {
+            root = saved;
+        } else {
+            rootPointer = -1;
+            loadRoot();
+        }
+    }
+
     /**
      * loads Nodes from disk using their nodeId
      * @param nodeId the nodeId attribute of the Node
@@ -415,7 +920,171 @@ public class RStarTree implements ISpatialQuery, IDtoConvertible {
      * @return 1 if successful, -1 otherwise
      */
     public int save() {
-        return storage.saveTree(this.toDTO(), saveFile);
+        lock.writeLock().lock();
+        try {
+            return storage.saveTree(this.toDTO(), saveFile);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * writes the tree as a single read-only segment file,
+     * to be served by MappedRStarTree
+     * @return 1 if successful, -1 otherwise
+     */
+    public int exportSegment(File segment) {
+        lock.readLock().lock();
+        try {
+            return storage.writeSegment(root, dimension, segment);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * packs all points of the tree into an immutable PackedRTree
+     * and writes its snapshot to file
+     * @param nodeSize entries per packed node
+     * @return 1 if successful, -1 otherwise
+     */
+    public int exportPacked(File file, int nodeSize) {
+        ArrayList<float[]> points = new ArrayList<float[]>();
+        ArrayList<Float> oids = new ArrayList<Float>();
+        lock.readLock().lock();
+        try {
+            collectPoints(root, points, oids);
+        } catch (FileNotFoundException e) {
+            System.err.println("Exception while loading node from disk. message = " + e.getMessage());
+            return -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        float[] oidArray = new float[oids.size()];
+        for (int i = 0; i < oidArray.length; i++) {
+            oidArray[i] = oids.get(i);
+        }
+        return PackedRTree.build(points.toArray(new float[points.size()][]), oidArray, nodeSize).save(file);
+    }
+
+    private void collectPoints(RStarNode node, List<float[]> points, List<Float> oids) throws FileNotFoundException {
+        for (int c = 0; c < node.getChildCount(); c++) {
+            if (node.isLeaf()) {
+                points.add(node.getEntries().copyPoint(c));
+                oids.add(storage.loadPoint(node.getChildPointer(c)).oid);
+            } else {
+                collectPoints(storage.loadNode(node.getChildPointer(c)), points, oids);
+            }
+        }
+    }
+
+    /**
+     * @return the header if it changed since it was last
+     * logged, else null
+     */
+    private TreeDTO changedHeader() {
+        if (rootPointer == headerRootPointer && height == headerHeight && Utils.peekNextId() == headerNextId)
+            return null;
+        return toDTO();
+    }
+
+    private void headerLogged(TreeDTO header) {
+        headerRootPointer = header.rootPointer;
+        headerHeight = header.height;
+        headerNextId = header.nextId;
+    }
+
+    /**
+     * walks the tree and describes its shape, see TreeAnalyzer.
+     * inserts wait until the walk is done.
+     * @return the analysis, null if a node failed to load
+     */
+    public TreeAnalyzer analyze() {
+        TreeAnalyzer analyzer = new TreeAnalyzer(dimension);
+        lock.readLock().lock();
+        try {
+            analyzer.analyze(root, storage);
+            return analyzer;
+        } catch (FileNotFoundException e) {
+            System.err.println("Exception while loading node from disk. message: " + e.getMessage());
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * estimates the points a range search of window returns
+     * without running it, see SelectivityEstimator. the first
+     * estimate reads the whole tree to build the histogram.
+     * @return the estimate, null if a node failed to load
+     */
+    public SelectivityEstimator.Estimate estimateCount(HyperRectangle window) {
+        lock.readLock().lock();
+        try {
+            if (!buildEstimator())
+                return null;
+            return estimator.estimateCount(window.getPoints());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * estimates what a range search of window costs, counting
+     * the levels pinned by warmUp() as in memory
+     * @return estimated time in microseconds, -1 if a node
+     * failed to load
+     */
+    public double estimateCost(HyperRectangle window) {
+        lock.readLock().lock();
+        try {
+            if (!buildEstimator())
+                return -1;
+            if (estimator.isStale(height))
+                estimator.describe(root, height, storage);
+            return estimator.estimateCost(window.getPoints(), pinnedHeight == -1 ? 0 : pinLevels);
+        } catch (FileNotFoundException e) {
+            System.err.println("Exception while loading node from disk. message: " + e.getMessage());
+            return -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the estimator behind estimateCount() and
+     * estimateCost(), e.g. to set its device model
+     */
+    public SelectivityEstimator getSelectivityEstimator() {
+        return estimator;
+    }
+
+    /**
+     * builds the estimator on first use. called under the read
+     * lock, so concurrent searches build it one at a time.
+     */
+    private boolean buildEstimator() {
+        synchronized (estimator) {
+            if (estimator.isBuilt())
+                return true;
+            try {
+                estimator.build(root, height, storage);
+                return true;
+            } catch (FileNotFoundException e) {
+                System.err.println("Exception while loading node from disk. message: " + e.getMessage());
+                return false;
+            }
+        }
+    }
+
+    /**
+     * @return the counters of this tree, also registered over JMX
+     * when METRICS_JMX is set
+     */
+    public TreeMetrics getMetrics() {
+        return metrics;
     }
 
     /**
@@ -426,24 +1095,56 @@ public class RStarTree implements ISpatialQuery, IDtoConvertible {
      */
     @Override
     public TreeDTO toDTO() {
-        return new TreeDTO(dimension, Constants.PAGESIZE, rootPointer);
+        TreeDTO tree = new TreeDTO(dimension, Constants.PAGESIZE, rootPointer, height, Utils.peekNextId());
+        tree.codec = storage.getNodeCodec().getId();
+        tree.maxChildren = Constants.MAX_CHILDREN;
+        tree.minChildren = Constants.MIN_CHILDREN;
+        tree.maxLeafChildren = Constants.MAX_LEAF_CHILDREN;
+        tree.minLeafChildren = Constants.MIN_LEAF_CHILDREN;
+        return tree;
     }
 
-    /*private void loadTree() {
+    /**
+     * reads the header saved in saveFile, if any: root, height
+     * and the next free node id. nodes are loaded lazily from
+     * the root on, so the tree is queryable right away. a tree
+     * saved with another codec than the given one keeps its own.
+     * @return the saved header, null if there is none
+     * @throws IllegalArgumentException if the saved tree has
+     * another dimension
+     */
+    private TreeDTO loadTree() {
         if (saveFile.exists() && saveFile.length() != 0) {
-            try {
-                TreeDTO treeData = storage.loadTree(saveFile);
-                if (treeData != null) {             //update tree fields from saveFile
-                    this.dimension = treeData.dimension;
-                    this.pagesize = treeData.pagesize;
-                    this.rootPointer = treeData.rootPointer;
-                    System.out.printf("Tree loaded successfully from %s. dimension = %d and pagesize = %d bytes%n",
-                            saveFile.getName(), dimension, pagesize);
+            TreeDTO treeData = storage.loadTree(saveFile);
+            if (treeData != null) {             //update tree fields from saveFile
+                if (treeData.dimension != dimension) {
+                    throw new IllegalArgumentException("Tree in " + saveFile.getName() + " has dimension "
+                            + treeData.dimension + ", not " + dimension);
+                }
+                Constants.PAGESIZE = treeData.pagesize;
+                this.rootPointer = treeData.rootPointer;
+                this.height = treeData.height;
+                Utils.advanceIdSeed(treeData.nextId);
+                if (treeData.codec != null && !treeData.codec.equals(storage.getNodeCodec().getId())) {
+                    INodeCodec saved = StorageManager.codecForId(treeData.codec);
+                    if (saved != null) {
+                        System.err.println("Tree in " + saveFile.getName() + " was written with codec "
+                                + treeData.codec + ", keeping it");
+                        storage.setNodeCodec(saved);
+                    } else {
+                        System.err.println("Unknown codec " + treeData.codec + " in " + saveFile.getName()
+                                + ", writing new pages with " + storage.getNodeCodec().getId());
+                    }
                 }
-            } catch (FileNotFoundException e) {
-                System.err.println("Failed to load R* Tree from "+saveFile.getName());
-            }
 
+                headerRootPointer = rootPointer;
+                headerHeight = height;
+                headerNextId = treeData.nextId;
+                System.out.printf("Tree loaded successfully from %s. dimension = %d and pagesize = %d bytes%n",
+                        saveFile.getName(), dimension, treeData.pagesize);
+            }
+            return treeData;
         }
-    }*/
+        return null;
+    }
 }
@@ -0,0 +1,474 @@
+package rstar;
+
+import rstar.interfaces.IDiskQuery;
+import rstar.nodes.RStarNode;
+import rstar.spatial.EntryBlock;
+import rstar.spatial.HyperRectangle;
+import util.Constants;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * answers how many points a window holds and what searching it
+ * costs without running the search, for choosing between the
+ * index and another access path.
+ *
+ * counts come from a grid histogram over the space the tree
+ * covered when it was built. besides its count every cell keeps the
+ * MBR of its points, so a cell inside the window counts exactly, a
+ * cell missing it not at all, and only cells cut by the window are
+ * guessed, assuming their points spread evenly over their MBR. the
+ * guessed part bounds the error: see Estimate. the histogram is
+ * kept up to date by the tree on every insert.
+ *
+ * costs come from the directory: the MBRs of all directory nodes
+ * and, per parent of leaves, its number of leaves and their mean
+ * sides. these are taken again once the tree grew by a quarter or
+ * changed its height.
+ *
+ * the tree calls the updating methods under its write lock and the
+ * estimating ones under its read lock.
+ */
+public class SelectivityEstimator {
+    /**
+     * most cells of the grid
+     */
+    private static final int MAX_CELLS = 4096;
+    /**
+     * dimensions the grid divides, the others are left to the MBRs
+     * of the cells
+     */
+    private static final int MAX_GRID_DIMENSIONS = 12;
+    /**
+     * growth since the directory was described that makes it
+     * described again
+     */
+    private static final double REFRESH_GROWTH = 0.25;
+
+    private final int dimension;
+    private int gridDimensions;
+    private int cellsPerSide;
+    private float[] origin;
+    private float[] cellWidth;
+    private long[] counts;
+    /**
+     * flat MBRs of the points of each cell, dimension << 1 floats per cell
+     */
+    private float[] cellMbrs;
+    private long points;
+    private boolean built;
+    private volatile Directory directory;
+
+    private double cpuMicros = 1;               // looking at a node in memory
+    private double accessMicros = 100;          // seek / request latency per page
+    private double bytesPerMicro = 200;         // 200 MB/s
+
+    public SelectivityEstimator(int dimension) {
+        this.dimension = dimension;
+    }
+
+    /**
+     * a count estimate and the bounds it is sure of
+     */
+    public static class Estimate {
+        private final double count;
+        private final long lowerBound;
+        private final long upperBound;
+
+        Estimate(double count, long lowerBound, long upperBound) {
+            this.count = count;
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+        }
+
+        public double getCount() {
+            return count;
+        }
+
+        /**
+         * @return points in cells lying inside the window
+         */
+        public long getLowerBound() {
+            return lowerBound;
+        }
+
+        /**
+         * @return points in cells meeting the window
+         */
+        public long getUpperBound() {
+            return upperBound;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f [%d, %d]", count, lowerBound, upperBound);
+        }
+    }
+
+    /**
+     * the directory as it was when last described
+     */
+    private static class Directory {
+        private final int height;
+        private final long points;
+        /**
+         * flat MBRs of the directory nodes by level, level 1 (the
+         * parents of leaves) first
+         */
+        private final float[][] mbrs;
+        private final int[] nodes;
+        /**
+         * per parent of leaves, in the order of mbrs[0]
+         */
+        private final int[] leaves;
+        private final float[] leafSides;
+
+        Directory(int height, long points, float[][] mbrs, int[] nodes, int[] leaves, float[] leafSides) {
+            this.height = height;
+            this.points = points;
+            this.mbrs = mbrs;
+            this.nodes = nodes;
+            this.leaves = leaves;
+            this.leafSides = leafSides;
+        }
+    }
+
+    /**
+     * @param accessMicros fixed cost of reading a page or a point
+     * @param bytesPerMicro transfer rate, bytes per microsecond (= MB/s)
+     * @param cpuMicros cost of searching a node already in memory
+     */
+    public void setDeviceModel(double accessMicros, double bytesPerMicro, double cpuMicros) {
+        this.accessMicros = accessMicros;
+        this.bytesPerMicro = bytesPerMicro;
+        this.cpuMicros = cpuMicros;
+    }
+
+    public boolean isBuilt() {
+        return built;
+    }
+
+    public long getPoints() {
+        return points;
+    }
+
+    /* UPDATING */
+
+    /**
+     * sizes the grid to the root's MBR and counts every point of
+     * the tree into it, then describes the directory
+     */
+    void build(RStarNode root, int height, IDiskQuery storage) throws FileNotFoundException {
+        float[] space = root.getMBR().getPoints();
+        gridDimensions = Math.min(dimension, MAX_GRID_DIMENSIONS);
+        cellsPerSide = Math.max(2, (int) (Math.pow(MAX_CELLS, 1.0 / gridDimensions) + 1e-9));
+        int cells = 1;
+        for (int g = 0; g < gridDimensions; g++) {
+            cells *= cellsPerSide;
+        }
+        origin = new float[gridDimensions];
+        cellWidth = new float[gridDimensions];
+        for (int g = 0; g < gridDimensions; g++) {
+            float min = space[(g << 1) + HyperRectangle.MIN_CORD];
+            float max = space[(g << 1) + HyperRectangle.MAX_CORD];
+            boolean empty = min > max;                  // a tree without points
+            origin[g] = empty ? 0 : min;
+            cellWidth[g] = empty || max == min ? 1 : (max - min) / cellsPerSide;
+        }
+        counts = new long[cells];
+        cellMbrs = new float[cells * (dimension << 1)];
+        for (int cell = 0; cell < cells; cell++) {
+            int offset = cell * (dimension << 1);
+            for (int i = 0; i < dimension; i++) {
+                cellMbrs[offset + (i << 1) + HyperRectangle.MAX_CORD] = Float.NEGATIVE_INFINITY;
+                cellMbrs[offset + (i << 1) + HyperRectangle.MIN_CORD] = Float.POSITIVE_INFINITY;
+            }
+        }
+        points = 0;
+        directory = null;
+        built = true;
+        try {
+            addLeaves(root, storage, new float[dimension]);
+        } catch (FileNotFoundException e) {
+            built = false;
+            throw e;
+        }
+        describe(root, height, storage);
+    }
+
+    private void addLeaves(RStarNode node, IDiskQuery storage, float[] cords) throws FileNotFoundException {
+        if (node.isLeaf()) {
+            EntryBlock entries = node.getEntries();
+            for (int c = 0; c < node.getChildCount(); c++) {
+                for (int i = 0; i < dimension; i++) {
+                    cords[i] = entries.get(c, i, HyperRectangle.MIN_CORD);
+                }
+                inserted(cords);
+            }
+            return;
+        }
+        for (int c = 0; c < node.getChildCount(); c++) {
+            addLeaves(storage.loadNode(node.getChildPointer(c)), storage, cords);
+        }
+    }
+
+    /**
+     * counts a point the tree took in
+     */
+    void inserted(float[] cords) {
+        if (!built)
+            return;
+        int cell = cellOf(cords);
+        int offset = cell * (dimension << 1);
+        counts[cell]++;
+        for (int i = 0; i < dimension; i++) {
+            int max = offset + (i << 1) + HyperRectangle.MAX_CORD;
+            int min = offset + (i << 1) + HyperRectangle.MIN_CORD;
+            cellMbrs[max] = Math.max(cellMbrs[max], cords[i]);
+            cellMbrs[min] = Math.min(cellMbrs[min], cords[i]);
+        }
+        points++;
+    }
+
+    /**
+     * forgets a point the tree let go of. the MBR of its cell is
+     * not shrunk, so the bounds stay safe though less tight.
+     * the tree has no delete yet; this is its hook.
+     */
+    void removed(float[] cords) {
+        if (!built)
+            return;
+        int cell = cellOf(cords);
+        if (counts[cell] > 0) {
+            counts[cell]--;
+            points--;
+        }
+    }
+
+    /**
+     * @return whether the directory description is out of date
+     */
+    boolean isStale(int height) {
+        Directory described = directory;
+        return described == null || described.height != height
+                || points > described.points * (1 + REFRESH_GROWTH);
+    }
+
+    /**
+     * takes the MBRs of the directory nodes and the sizes of the
+     * leaves below each parent of leaves. only directory nodes are
+     * read, the leaves are known from their parents' entries.
+     */
+    synchronized void describe(RStarNode root, int height, IDiskQuery storage) throws FileNotFoundException {
+        if (!isStale(height))
+            return;             // another search described it meanwhile
+        if (root.isLeaf()) {
+            directory = new Directory(height, points, new float[0][], new int[0], new int[0], new float[0]);
+            return;
+        }
+        List<List<RStarNode>> levels = new ArrayList<List<RStarNode>>();
+        List<RStarNode> depth = new ArrayList<RStarNode>();
+        depth.add(root);
+        levels.add(depth);
+        for (int d = 1; d < height - 1; d++) {
+            List<RStarNode> next = new ArrayList<RStarNode>();
+            for (RStarNode node : depth) {
+                for (int c = 0; c < node.getChildCount(); c++) {
+                    next.add(storage.loadNode(node.getChildPointer(c)));
+                }
+            }
+            levels.add(0, next);
+            depth = next;
+        }
+
+        int width = dimension << 1;
+        float[][] mbrs = new float[levels.size()][];
+        int[] nodes = new int[levels.size()];
+        for (int l = 0; l < levels.size(); l++) {
+            List<RStarNode> level = levels.get(l);
+            nodes[l] = level.size();
+            mbrs[l] = new float[level.size() * width];
+            for (int n = 0; n < level.size(); n++) {
+                System.arraycopy(level.get(n).getMBR().getPoints(), 0, mbrs[l], n * width, width);
+            }
+        }
+
+        List<RStarNode> parents = levels.get(0);
+        int[] leaves = new int[parents.size()];
+        float[] leafSides = new float[parents.size() * dimension];
+        float[] mbr = new float[width];
+        for (int n = 0; n < parents.size(); n++) {
+            RStarNode parent = parents.get(n);
+            leaves[n] = parent.getChildCount();
+            for (int c = 0; c < parent.getChildCount(); c++) {
+                parent.getEntries().copyMbr(c, mbr);
+                for (int i = 0; i < dimension; i++) {
+                    leafSides[n * dimension + i] += side(mbr, 0, i) / parent.getChildCount();
+                }
+            }
+        }
+        directory = new Directory(height, points, mbrs, nodes, leaves, leafSides);
+    }
+
+    /* ESTIMATING */
+
+    /**
+     * @param window flat MBR of the search region
+     * @return points of the tree inside window
+     */
+    public Estimate estimateCount(float[] window) {
+        if (!built || points == 0)
+            return new Estimate(0, 0, 0);
+        int[] low = new int[gridDimensions];
+        int[] high = new int[gridDimensions];
+        for (int g = 0; g < gridDimensions; g++) {
+            low[g] = slot(window[(g << 1) + HyperRectangle.MIN_CORD], g);
+            high[g] = slot(window[(g << 1) + HyperRectangle.MAX_CORD], g);
+            if (low[g] > high[g])
+                return new Estimate(0, 0, 0);
+        }
+
+        double count = 0;
+        long lower = 0;
+        long upper = 0;
+        int width = dimension << 1;
+        int[] at = low.clone();
+        while (true) {
+            int cell = 0;
+            for (int g = 0; g < gridDimensions; g++) {
+                cell = cell * cellsPerSide + at[g];
+            }
+            long inCell = counts[cell];
+            int offset = cell * width;
+            if (inCell > 0 && HyperRectangle.intersects(cellMbrs, offset, window)) {
+                upper += inCell;
+                double share = 1;
+                for (int i = 0; i < dimension && share > 0; i++) {
+                    share *= coveredShare(offset, i, window);
+                }
+                if (share == 1) {
+                    lower += inCell;
+                    count += inCell;
+                } else {
+                    count += inCell * share;
+                }
+            }
+
+            // next cell of the window, the last grid dimension fastest
+            int g = gridDimensions - 1;
+            while (g >= 0 && at[g] == high[g]) {
+                at[g] = low[g];
+                g--;
+            }
+            if (g < 0)
+                break;
+            at[g]++;
+        }
+        return new Estimate(count, lower, upper);
+    }
+
+    /**
+     * expected nodes a range search of window reads: every
+     * directory node whose MBR meets the window, and per parent of
+     * leaves met, its leaves times the chance that a leaf of the
+     * mean size placed in the parent meets the window's part in it,
+     * prod_i min(1, (s_i + q_i) / W_i).
+     * @return nodes per level, leaves first
+     */
+    public double[] estimateNodeAccesses(float[] window) {
+        Directory described = directory;
+        if (described == null)
+            return new double[0];
+        double[] accesses = new double[described.mbrs.length + 1];
+        if (described.mbrs.length == 0) {
+            accesses[0] = 1;
+            return accesses;
+        }
+
+        int width = dimension << 1;
+        for (int l = 0; l < described.mbrs.length; l++) {
+            float[] mbrs = described.mbrs[l];
+            for (int n = 0; n < described.nodes[l]; n++) {
+                if (!HyperRectangle.intersects(mbrs, n * width, window))
+                    continue;
+                accesses[l + 1]++;
+                if (l > 0)
+                    continue;
+                double probability = 1;
+                for (int i = 0; i < dimension; i++) {
+                    double extent = side(mbrs, n * width, i);
+                    if (extent > 0) {
+                        double cut = Math.min(mbrs[n * width + (i << 1) + HyperRectangle.MAX_CORD],
+                                window[(i << 1) + HyperRectangle.MAX_CORD])
+                                - (double) Math.max(mbrs[n * width + (i << 1) + HyperRectangle.MIN_CORD],
+                                window[(i << 1) + HyperRectangle.MIN_CORD]);
+                        probability *= Math.min(1, (described.leafSides[n * dimension + i] + cut) / extent);
+                    }
+                }
+                accesses[0] += described.leaves[n] * probability;
+            }
+        }
+        accesses[accesses.length - 1] = 1;              // the root is always searched
+
+        // leaves split since the description share the growth
+        if (described.points > 0)
+            accesses[0] *= Math.max(1, (double) points / described.points);
+        return accesses;
+    }
+
+    /**
+     * prices the expected node reads of a range search of window
+     * and the reads of the points it returns. nodes of the top
+     * pinnedLevels levels cost cpuMicros, the others a page read
+     * besides; a point costs an access.
+     * @return estimated time in microseconds
+     */
+    public double estimateCost(float[] window, int pinnedLevels) {
+        double[] accesses = estimateNodeAccesses(window);
+        double pageMicros = accessMicros + Constants.PAGESIZE / bytesPerMicro;
+        double cost = 0;
+        for (int l = 0; l < accesses.length; l++) {
+            int depth = accesses.length - 1 - l;
+            cost += accesses[l] * (depth < pinnedLevels ? cpuMicros : cpuMicros + pageMicros);
+        }
+        return cost + estimateCount(window).getCount() * accessMicros;
+    }
+
+    /**
+     * @return grid slot of co-ordinate x of grid dimension g,
+     * co-ordinates outside the grid go to the edge slots
+     */
+    private int slot(float x, int g) {
+        double slot = Math.floor((x - (double) origin[g]) / cellWidth[g]);
+        return (int) Math.max(0, Math.min(cellsPerSide - 1, slot));
+    }
+
+    private int cellOf(float[] cords) {
+        int cell = 0;
+        for (int g = 0; g < gridDimensions; g++) {
+            cell = cell * cellsPerSide + slot(cords[g], g);
+        }
+        return cell;
+    }
+
+    /**
+     * @return share of the MBR of the cell at offset that window
+     * covers along dimension i
+     */
+    private double coveredShare(int offset, int i, float[] window) {
+        float min = cellMbrs[offset + (i << 1) + HyperRectangle.MIN_CORD];
+        float max = cellMbrs[offset + (i << 1) + HyperRectangle.MAX_CORD];
+        float windowMin = window[(i << 1) + HyperRectangle.MIN_CORD];
+        float windowMax = window[(i << 1) + HyperRectangle.MAX_CORD];
+        if (windowMin <= min && max <= windowMax)
+            return 1;
+        // the cell meets the window, so a flat cell lies in it
+        return ((double) Math.min(max, windowMax) - Math.max(min, windowMin)) / ((double) max - min);
+    }
+
+    private static double side(float[] mbr, int offset, int i) {
+        return (double) mbr[offset + (i << 1) + HyperRectangle.MAX_CORD] - mbr[offset + (i << 1) + HyperRectangle.MIN_CORD];
+    }
+}
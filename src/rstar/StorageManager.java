@@ -1,94 +1,453 @@
 package rstar;
 
+import rstar.codec.CompactNodeCodec;
+import rstar.codec.JavaNodeCodec;
 import rstar.dto.NodeDTO;
 import rstar.dto.PointDTO;
 import rstar.dto.TreeDTO;
+import rstar.events.CacheEvictionEvent;
+import rstar.events.NodeLoadEvent;
+import rstar.events.NodeSaveEvent;
 import rstar.interfaces.IDiskQuery;
+import rstar.interfaces.INodeCodec;
+import rstar.nodes.NodeView;
 import rstar.nodes.RStarInternal;
 import rstar.nodes.RStarLeaf;
 import rstar.nodes.RStarNode;
+import rstar.spatial.HyperRectangle;
 import util.Constants;
 
 import java.io.*;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * provides all disk related functionality like
  * loading and saving of nodes, points and tree.
+ *
+ * nodes saved during an operation are collected in a write set
+ * and written once at its end. with WAL_ENABLED the operation is
+ * redo logged: its node images stay in memory until the commit
+ * record is durable and only then overwrite the node files.
  */
 public class StorageManager implements IDiskQuery {
     RandomAccessFile dataStore;
     FileChannel dataChannel;
+    private long dataEnd;
+
+    private static final INodeCodec[] KNOWN_CODECS = {new JavaNodeCodec(), new CompactNodeCodec()};
+    private INodeCodec codec = KNOWN_CODECS[0];
+
+    private WriteAheadLog wal;
+    private boolean inOperation = false;
+    /**
+     * LSN of the running logged operation, -1 outside of one
+     */
+    private long operationLsn = -1;
+    /**
+     * write set of the running operation: every node saved by it,
+     * by id. a node saved several times is written out once, as
+     * it is at commit. nodes in here are returned by loadNode as is.
+     */
+    private final Map<Long, RStarNode> dirtyNodes = new LinkedHashMap<Long, RStarNode>();
+    /**
+     * images of committed operations waiting for their log
+     * records to become durable before they are written out.
+     */
+    private final ConcurrentHashMap<Long, NodeImage> committedImages = new ConcurrentHashMap<Long, NodeImage>();
+    /**
+     * tree header of a committed operation waiting for the log
+     */
+    private final AtomicReference<NodeImage> committedHeader = new AtomicReference<NodeImage>();
+    private final File treeFile = new File(Constants.TREE_FILE);
+    private final Set<Long> unsyncedNodes = new HashSet<Long>();
+    private boolean headerUnsynced = false;
+    private final Object applyLock = new Object();
+    /**
+     * threads reading node files ahead of a traversal,
+     * null if PREFETCH_THREADS is 0
+     */
+    private final ExecutorService ioPool;
+    /**
+     * upper levels kept in memory, by id. the instances are the
+     * ones the tree works on, so a committed operation replaces
+     * them with its write set and an aborted one drops them all.
+     */
+    private final ConcurrentHashMap<Long, PinnedNode> pinned = new ConcurrentHashMap<Long, PinnedNode>();
+    private int pinLevels = 0;
+    private long pinBudget = 0;
+    private long pinnedBytes = 0;
+    private final TreeMetrics metrics = new TreeMetrics();
+
+    private static class PinnedNode {
+        final RStarNode node;
+        final int depth;
+        final int bytes;
+
+        PinnedNode(RStarNode node, int depth, int bytes) {
+            this.node = node;
+            this.depth = depth;
+            this.bytes = bytes;
+        }
+    }
+
+    private static class NodeImage {
+        final long lsn;
+        final byte[] bytes;
+
+        NodeImage(long lsn, byte[] bytes) {
+            this.lsn = lsn;
+            this.bytes = bytes;
+        }
+    }
 
     public StorageManager() {
         try {
             dataStore = new RandomAccessFile(Constants.DATA_FILE, "rw");
             dataChannel = dataStore.getChannel();
-        } catch (FileNotFoundException e) {
+            dataEnd = dataStore.length();
+        } catch (IOException e) {
             System.err.println("Data File failed to be loaded/created. Exiting");
             System.exit(1);
         }
+
+        if (Constants.WAL_ENABLED) {
+            try {
+                wal = new WriteAheadLog(new File(Constants.WAL_FILE), Constants.WAL_GROUP_COMMIT_MICROS);
+                recover();
+            } catch (IOException e) {
+                System.err.println("Write ahead log failed to be loaded/recovered. Exiting");
+                System.exit(1);
+            }
+        }
+
+        if (Constants.PREFETCH_THREADS > 0) {
+            ioPool = Executors.newFixedThreadPool(Constants.PREFETCH_THREADS, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "rstar-io");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        } else {
+            ioPool = null;
+        }
+    }
+
+    /**
+     * starts an operation. until commitOperation() saved nodes
+     * only join the write set; points are written (and logged)
+     * right away.
+     */
+    public void beginOperation() {
+        inOperation = true;
+        dirtyNodes.clear();
+        if (wal != null) {
+            checkpointIfNeeded();
+            operationLsn = wal.nextLsn();
+        }
+    }
+
+    /**
+     * serializes every node of the write set once. with the log
+     * enabled the images are logged followed by a commit record,
+     * and the operation is not durable before awaitDurable()
+     * returns true. otherwise they are written to the node files.
+     * @param header the tree header if the operation changed it, else null
+     * @return LSN of the operation, 0 without a log, -1 if it could
+     * not be written. its logged images are taken back then, node
+     * files written without a log stay written.
+     */
+    public long commitOperation(TreeDTO header) {
+        if (!inOperation)
+            return 0;
+        long lsn = wal == null ? 0 : operationLsn;
+        // images of earlier operations this one replaced, to put back on failure
+        Map<Long, NodeImage> replaced = new LinkedHashMap<Long, NodeImage>();
+        NodeImage headerImage = null;
+        NodeImage replacedHeader = null;
+        try {
+            for (RStarNode node : dirtyNodes.values()) {
+                if (wal != null) {
+                    node.setLsn(lsn);
+                    byte[] image = encodeNode(node);
+                    wal.append(lsn, WriteAheadLog.NODE_IMAGE, node.getNodeId(), image);
+                    replaced.put(node.getNodeId(), committedImages.put(node.getNodeId(), new NodeImage(lsn, image)));
+                    repin(node, image.length);
+                } else {
+                    byte[] image = encodeNode(node);
+                    writeNodeFile(node.getNodeId(), image);
+                    repin(node, image.length);
+                }
+            }
+            if (header != null) {
+                if (wal != null) {
+                    byte[] image = toBytes(header);
+                    wal.append(lsn, WriteAheadLog.TREE_IMAGE, 0, image);
+                    headerImage = new NodeImage(lsn, image);
+                    replacedHeader = committedHeader.getAndSet(headerImage);
+                } else {
+                    writeFile(treeFile, toBytes(header));
+                }
+            }
+            if (wal != null)
+                wal.commit(lsn);
+        } catch (IOException e) {
+            System.err.println("Exception while saving node to disk");
+            // without a commit record recovery skips what was logged
+            for (Map.Entry<Long, NodeImage> entry : replaced.entrySet()) {
+                NodeImage image = committedImages.get(entry.getKey());
+                if (image == null || image.lsn != lsn)
+                    continue;
+                if (entry.getValue() == null)
+                    committedImages.remove(entry.getKey(), image);
+                else
+                    committedImages.replace(entry.getKey(), image, entry.getValue());
+            }
+            if (headerImage != null)
+                committedHeader.compareAndSet(headerImage, replacedHeader);
+            lsn = -1;
+        }
+        dirtyNodes.clear();
+        inOperation = false;
+        operationLsn = -1;
+        return lsn;
+    }
+
+    /**
+     * drops the write set of the running operation
+     */
+    public void abortOperation() {
+        // pinned nodes may hold changes of the operation
+        unpinAll();
+        dirtyNodes.clear();
+        inOperation = false;
+        operationLsn = -1;
+    }
+
+    /**
+     * waits until the log holds the operation with the given LSN
+     * on disk, then writes every durable node image to its file.
+     * concurrent callers share one log fsync.
+     * @return true if the operation is durable. on false its log
+     * records stay buffered and its node images in memory, both are
+     * written once a later force succeeds
+     */
+    public boolean awaitDurable(long lsn) {
+        if (wal == null)
+            return true;
+        try {
+            wal.force(lsn);
+            applyCommittedImages();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Exception while writing the write ahead log: " + e.getMessage());
+            return false;
+        }
     }
 
     @Override
     public void saveNode(RStarNode node) {
-        if (node.isLeaf()) {
-            try {
+        try {
+            if (node.isLeaf()) {
                 RStarLeaf leaf = (RStarLeaf) node;
 
                 if (leaf.hasUnsavedPoints()) {
-                    //save unsaved points to disk first.
-                    for (int i = leaf.loadedChildren.size() - 1; i >= 0; i--) {
-                        leaf.childPointers.add(savePoint(leaf.loadedChildren.remove(i).toDTO()));
+                    //save unsaved points to disk first, in entry order.
+                    for (int i = 0; i < leaf.loadedChildren.size(); i++) {
+                        leaf.addChildPointer(savePoint(leaf.loadedChildren.get(i).toDTO()));
                     }
+                    leaf.loadedChildren.clear();
                 }
+            }
 
-                FileOutputStream fos = new FileOutputStream(new File(constructFilename(leaf.getNodeId())));
-                ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                ObjectOutputStream oos = new ObjectOutputStream(bos);
-                oos.writeObject(leaf.toDTO());
-                oos.flush();
+            if (inOperation) {
+                dirtyNodes.put(node.getNodeId(), node);
+            } else {
+                writeNodeFile(node.getNodeId(), encodeNode(node));
+            }
+        } catch (IOException e) {
+            System.err.println("Exception while saving node to disk");
+        }
+    }
 
-                fos.write(bos.toByteArray());
-                oos.close();
-                fos.close();
+    @Override
+    public RStarNode loadNode(long nodeId) throws FileNotFoundException {
+        RStarNode dirty = dirtyNodes.get(nodeId);
+        if (dirty != null) {
+            metrics.cacheHit();
+            return dirty;
+        }
+        PinnedNode pin = pinned.get(nodeId);
+        if (pin != null) {
+            metrics.cacheHit();
+            return pin.node;
+        }
+        NodeImage committed = committedImages.get(nodeId);
+        if (committed != null) {
+            metrics.cacheHit();
+            return nodeFromBytes(committed.bytes, nodeId);
+        }
+        return nodeFromDisk(constructFilename(nodeId));
+    }
 
-            } catch (FileNotFoundException e) {
-                System.err.println("Exception while saving node to disk");
-            } catch (IOException e) {
-                System.err.println("Exception while saving node to disk");
+    /**
+     * starts loading a node. a node still in memory is returned
+     * at once, a node file is read by the I/O pool, so the reads
+     * of several nodes can be in flight together. the caller must
+     * hold the tree lock until the node is taken with awaitNode().
+     */
+    public Future<RStarNode> loadNodeAsync(final long nodeId) {
+        Callable<RStarNode> read = new Callable<RStarNode>() {
+            @Override
+            public RStarNode call() throws FileNotFoundException {
+                return nodeFromDisk(constructFilename(nodeId));
             }
-        } else {
-            try {
-                RStarInternal internal = (RStarInternal) node;
+        };
+        if (ioPool != null && !isInMemory(nodeId))
+            return ioPool.submit(read);
 
-                FileOutputStream fos = new FileOutputStream(new File(constructFilename(internal.getNodeId())));
-                ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                ObjectOutputStream oos = new ObjectOutputStream(bos);
-                oos.writeObject(internal.toDTO());
-                oos.flush();
+        FutureTask<RStarNode> loaded = new FutureTask<RStarNode>(new Callable<RStarNode>() {
+            @Override
+            public RStarNode call() throws FileNotFoundException {
+                return loadNode(nodeId);
+            }
+        });
+        loaded.run();
+        return loaded;
+    }
 
-                fos.write(bos.toByteArray());
-                oos.close();
-                fos.close();
+    /**
+     * @return whether loading the node is served without reading
+     * its node file
+     */
+    public boolean isInMemory(long nodeId) {
+        return dirtyNodes.containsKey(nodeId) || pinned.containsKey(nodeId)
+                || committedImages.containsKey(nodeId);
+    }
 
-            } catch (FileNotFoundException e) {
-                System.err.println("Exception while saving node to disk");
-            } catch (IOException e) {
-                System.err.println("Exception while saving node to disk");
+    /**
+     * sets how much of the tree pin() keeps in memory
+     * @param levels number of levels from the root
+     * @param budget most bytes of node pages
+     */
+    public void setPinning(int levels, long budget) {
+        this.pinLevels = levels;
+        this.pinBudget = budget;
+    }
+
+    /**
+     * keeps node in memory until unpinAll(); loadNode returns it
+     * without reading its file
+     * @param depth level of node, 0 for the root
+     * @return false if node is below the pinned levels or
+     * would exceed the byte budget
+     */
+    public boolean pin(RStarNode node, int depth) {
+        if (depth >= pinLevels)
+            return false;
+        int bytes = pageBytes(node.getNodeId());
+        PinnedNode old = pinned.get(node.getNodeId());
+        long total = pinnedBytes + bytes - (old == null ? 0 : old.bytes);
+        if (total > pinBudget)
+            return false;
+        pinned.put(node.getNodeId(), new PinnedNode(node, depth, bytes));
+        pinnedBytes = total;
+        return true;
+    }
+
+    public void unpinAll() {
+        evicted("pinned", pinned.size(), pinnedBytes);
+        pinned.clear();
+        pinnedBytes = 0;
+    }
+
+    public int getPinnedCount() {
+        return pinned.size();
+    }
+
+    public long getPinnedBytes() {
+        return pinnedBytes;
+    }
+
+    /**
+     * keeps a committed node pinned with its new contents. a new
+     * node is pinned if its parent is and it fits the levels and
+     * the budget; a new root is left to the tree to pin.
+     */
+    private void repin(RStarNode node, int bytes) {
+        if (pinLevels == 0)
+            return;
+        PinnedNode old = pinned.get(node.getNodeId());
+        int depth;
+        if (old != null) {
+            depth = old.depth;
+        } else {
+            PinnedNode parent = node.getParentId() == node.getNodeId() ? null : pinned.get(node.getParentId());
+            if (parent == null || parent.depth + 1 >= pinLevels)
+                return;
+            depth = parent.depth + 1;
+        }
+        long total = pinnedBytes + bytes - (old == null ? 0 : old.bytes);
+        if (total > pinBudget) {
+            if (old != null) {
+                pinned.remove(node.getNodeId());
+                pinnedBytes -= old.bytes;
+                evicted("pinned", 1, old.bytes);
             }
+            return;
         }
+        pinned.put(node.getNodeId(), new PinnedNode(node, depth, bytes));
+        pinnedBytes = total;
     }
 
-    @Override
-    public RStarNode loadNode(long nodeId) throws FileNotFoundException {
-        return nodeFromDisk(constructFilename(nodeId));
+    /**
+     * size of the newest page of a node
+     */
+    private int pageBytes(long nodeId) {
+        NodeImage committed = committedImages.get(nodeId);
+        if (committed != null)
+            return committed.bytes.length;
+        return (int) nodeFile(nodeId).length();
+    }
+
+    /**
+     * waits for a node started with loadNodeAsync()
+     */
+    public RStarNode awaitNode(Future<RStarNode> pending) throws FileNotFoundException {
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FileNotFoundException("Interrupted while loading node");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof FileNotFoundException)
+                throw (FileNotFoundException) e.getCause();
+            throw new FileNotFoundException(String.valueOf(e.getCause()));
+        }
     }
 
     /**
      * saves a Spatial Point to dataFile on disk and
      * returns the offset of the point in the file.
+     * inside an operation the point is logged as well.
      *
      * @param pointDTO DTO of the point to be saved
      * @return the location where the point was saved in
@@ -97,16 +456,14 @@ public class StorageManager implements IDiskQuery {
     @Override
     public long savePoint(PointDTO pointDTO) {
         try {
-            long pos = dataStore.length();
-            dataStore.seek(pos);
-
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            ObjectOutputStream oos = new ObjectOutputStream(bos);
-            oos.writeObject(pointDTO);
-            oos.flush();
-
-            dataChannel.write(ByteBuffer.wrap(bos.toByteArray()));
-            oos.close();
+            byte[] bytes = toBytes(pointDTO);
+            long pos = dataEnd;
+            writeFully(dataChannel, bytes, pos);
+            dataEnd += bytes.length;
+            metrics.written(bytes.length);
+
+            if (operationLsn != -1)
+                wal.append(operationLsn, WriteAheadLog.POINT_IMAGE, pos, bytes);
             return pos;
         } catch (IOException e) {
             System.err.println("Exception occurred while saving data to disk.");
@@ -124,8 +481,8 @@ public class StorageManager implements IDiskQuery {
     @Override
     public PointDTO loadPoint(long pointer) {
         try {
-            dataStore.seek(pointer);
-            ObjectInputStream ois = getPointObjectStream();
+            metrics.pointLoad();
+            ObjectInputStream ois = getPointObjectStream(pointer);
             PointDTO pointDTO = (PointDTO) ois.readObject();
             ois.close();
             return pointDTO;
@@ -138,28 +495,286 @@ public class StorageManager implements IDiskQuery {
         return null;
     }
 
+    /**
+     * reads a node file with one sequential read of its full length,
+     * so a supernode spanning several pages costs a single I/O.
+     */
     private RStarNode nodeFromDisk(String filename) throws FileNotFoundException {
         try {
-            FileInputStream fis = new FileInputStream(filename);
-            ObjectInputStream ois = new ObjectInputStream(fis);
-            NodeDTO dto = (NodeDTO) ois.readObject();
-            ois.close();
+            NodeLoadEvent event = new NodeLoadEvent();
+            event.begin();
+            File file = new File(filename);
+            byte[] pages = new byte[(int) file.length()];
+            DataInputStream fis = new DataInputStream(new FileInputStream(file));
+            fis.readFully(pages);
+            fis.close();
+            event.end();
+            metrics.cacheMiss(pages.length);
+            if (event.shouldCommit()) {
+                event.nodeId = nodeIdFromFilename(filename);
+                event.bytes = pages.length;
+                event.commit();
+            }
+
+            return nodeFromBytes(pages, nodeIdFromFilename(filename));
+        } catch (FileNotFoundException e) {
+            throw e;
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+        }
+        return null;
+    }
+
+    private RStarNode nodeFromBytes(byte[] bytes, long nodeId) {
+        try {
+            NodeDTO dto = decodeNode(bytes);
 
-            RStarNode result;
             if (dto.isLeaf)
-                result = new RStarLeaf(dto, nodeIdFromFilename(filename));
+                return new RStarLeaf(dto, nodeId);
             else
-                result = new RStarInternal(dto, nodeIdFromFilename(filename));
-
-            return result;
+                return new RStarInternal(dto, nodeId);
         } catch (IOException e) {
             System.err.println(e.getMessage());
-        } catch (ClassNotFoundException e) {
-            System.err.println("ClassNotFoundException occurred while loading node from disk");
         }
         return null;
     }
 
+    /**
+     * sets the codec new node pages are written with. pages
+     * of any known codec stay readable.
+     */
+    public void setNodeCodec(INodeCodec codec) {
+        this.codec = codec;
+    }
+
+    public INodeCodec getNodeCodec() {
+        return codec;
+    }
+
+    /**
+     * @param id an id returned by INodeCodec.getId()
+     * @return a codec with the settings named by id,
+     * null if id is unknown
+     */
+    public static INodeCodec codecForId(String id) {
+        if ("java".equals(id))
+            return new JavaNodeCodec();
+        if (id.equals("compact") || id.startsWith("compact+")) {
+            boolean compress = id.contains("+deflate");
+            int quantizeBits = id.contains("+q16") ? 16 : id.contains("+q8") ? 8 : 0;
+            return new CompactNodeCodec(compress, quantizeBits);
+        }
+        return null;
+    }
+
+    public TreeMetrics getMetrics() {
+        return metrics;
+    }
+
+    private byte[] encodeNode(RStarNode node) throws IOException {
+        return codec.encode(node.toDTO());
+    }
+
+    private NodeDTO decodeNode(byte[] page) throws IOException {
+        if (codec.canDecode(page))
+            return codec.decode(page);
+        for (INodeCodec known : KNOWN_CODECS) {
+            if (known.canDecode(page))
+                return known.decode(page);
+        }
+        throw new IOException("Unknown node page format");
+    }
+
+    private File nodeFile(long nodeId) {
+        return new File(constructFilename(nodeId));
+    }
+
+    private void writeNodeFile(long nodeId, byte[] bytes) throws IOException {
+        NodeSaveEvent event = new NodeSaveEvent();
+        event.begin();
+        writeFile(nodeFile(nodeId), bytes);
+        event.end();
+        if (event.shouldCommit()) {
+            event.nodeId = nodeId;
+            event.bytes = bytes.length;
+            event.commit();
+        }
+        metrics.nodeWritten(bytes.length);
+    }
+
+    private static void evicted(String cache, int nodes, long bytes) {
+        if (nodes == 0)
+            return;
+        CacheEvictionEvent event = new CacheEvictionEvent();
+        if (event.shouldCommit()) {
+            event.cache = cache;
+            event.nodes = nodes;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * writes a file through a temporary file and a rename,
+     * so readers never see a half written page.
+     */
+    private void writeFile(File target, byte[] bytes) throws IOException {
+        File temp = new File(target.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(temp);
+        fos.write(bytes);
+        fos.close();
+        if (!temp.renameTo(target))
+            throw new IOException("Failed to replace " + target);
+    }
+
+    /**
+     * writes every committed node image covered by the durable
+     * part of the log. an image replaced by a later operation
+     * is left for that operation.
+     */
+    private void applyCommittedImages() throws IOException {
+        synchronized (applyLock) {
+            long durableLsn = wal.getDurableLsn();
+            int applied = 0;
+            long appliedBytes = 0;
+            for (Map.Entry<Long, NodeImage> entry : committedImages.entrySet()) {
+                NodeImage image = entry.getValue();
+                if (image.lsn <= durableLsn) {
+                    writeNodeFile(entry.getKey(), image.bytes);
+                    committedImages.remove(entry.getKey(), image);
+                    unsyncedNodes.add(entry.getKey());
+                    applied++;
+                    appliedBytes += image.bytes.length;
+                }
+            }
+            evicted("committed", applied, appliedBytes);
+            NodeImage header = committedHeader.get();
+            if (header != null && header.lsn <= durableLsn) {
+                writeFile(treeFile, header.bytes);
+                committedHeader.compareAndSet(header, null);
+                headerUnsynced = true;
+            }
+        }
+    }
+
+    /**
+     * once the log outgrows WAL_CHECKPOINT_BYTES and every logged
+     * image has reached its file, syncs the written files and
+     * empties the log.
+     */
+    private void checkpointIfNeeded() {
+        if (wal.size() < Constants.WAL_CHECKPOINT_BYTES || !committedImages.isEmpty())
+            return;
+        synchronized (applyLock) {
+            if (!committedImages.isEmpty() || committedHeader.get() != null)
+                return;
+            try {
+                syncNodeFiles(unsyncedNodes);
+                if (headerUnsynced)
+                    syncFile(treeFile);
+                dataChannel.force(true);
+                if (wal.truncate()) {
+                    unsyncedNodes.clear();
+                    headerUnsynced = false;
+                }
+            } catch (IOException e) {
+                System.err.println("Checkpoint failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * redoes the committed operations found in the log. a node
+     * image is only written if it is newer than the page on disk.
+     */
+    private void recover() throws IOException {
+        List<WriteAheadLog.Record> records = wal.recover();
+        if (records.isEmpty()) {
+            wal.truncate();
+            return;
+        }
+
+        new File(Constants.TREE_DATA_DIRECTORY).mkdirs();
+        Set<Long> written = new HashSet<Long>();
+        byte[] header = null;
+        for (WriteAheadLog.Record record : records) {
+            if (record.type == WriteAheadLog.POINT_IMAGE) {
+                writeFully(dataChannel, record.payload, record.id);
+                dataEnd = Math.max(dataEnd, record.id + record.payload.length);
+            } else if (record.type == WriteAheadLog.NODE_IMAGE) {
+                if (pageLsn(record.id) < record.lsn) {
+                    writeNodeFile(record.id, record.payload);
+                    written.add(record.id);
+                }
+            } else if (record.type == WriteAheadLog.TREE_IMAGE) {
+                header = record.payload;            // the last one wins
+            }
+        }
+        if (header != null) {
+            writeFile(treeFile, header);
+            syncFile(treeFile);
+        }
+        syncNodeFiles(written);
+        dataChannel.force(true);
+        wal.truncate();
+        System.out.println("Recovered " + records.size() + " log records");
+    }
+
+    /**
+     * @return LSN of a node file, -1 if missing or unreadable
+     */
+    private long pageLsn(long nodeId) {
+        File file = nodeFile(nodeId);
+        if (!file.exists())
+            return -1;
+        try {
+            byte[] page = new byte[(int) file.length()];
+            DataInputStream fis = new DataInputStream(new FileInputStream(file));
+            fis.readFully(page);
+            fis.close();
+            return decodeNode(page).lsn;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private void syncNodeFiles(Set<Long> nodeIds) throws IOException {
+        for (Long nodeId : nodeIds) {
+            syncFile(nodeFile(nodeId));
+        }
+        //make the renames durable as well
+        try {
+            FileChannel dir = FileChannel.open(new File(Constants.TREE_DATA_DIRECTORY).toPath(), StandardOpenOption.READ);
+            dir.force(true);
+            dir.close();
+        } catch (IOException e) {
+            // directories can't be opened for sync on every platform
+        }
+    }
+
+    private static void syncFile(File file) throws IOException {
+        if (!file.exists())
+            return;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.getChannel().force(true);
+        raf.close();
+    }
+
+    private static byte[] toBytes(Object dto) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(dto);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    private static void writeFully(FileChannel channel, byte[] bytes, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
     /**
      * saves the R* Tree to saveFile.
      * doesn't use RandomAccessFile
@@ -171,16 +786,9 @@ public class StorageManager implements IDiskQuery {
     public int saveTree(TreeDTO tree, File saveFile) {
         int status = -1;
         try {
-            if(saveFile.exists()) {
-                saveFile.delete();
-            }
-
-            FileOutputStream fos = new FileOutputStream(saveFile);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-
-            oos.writeObject(tree);
-            oos.flush();
-            oos.close();
+            writeFile(saveFile, toBytes(tree));
+            if (wal != null)
+                syncFile(saveFile);
             status = 1;             // successful saveNode
         } catch (IOException e) {
             System.err.println("Error while saving Tree to " + saveFile.toURI());
@@ -200,7 +808,9 @@ public class StorageManager implements IDiskQuery {
             FileInputStream fis = new FileInputStream(saveFile);
             ObjectInputStream ois = new ObjectInputStream(fis);
 
-            return (TreeDTO) ois.readObject();
+            TreeDTO tree = (TreeDTO) ois.readObject();
+            ois.close();
+            return tree;
 
         } catch (IOException e) {
             System.err.println("Exception while loading tree from " + saveFile);
@@ -210,6 +820,81 @@ public class StorageManager implements IDiskQuery {
         return null;
     }
 
+    /**
+     * writes the subtree under root to a single segment file
+     * that MappedRStarTree serves. children are written before
+     * their parent, so every child offset is known when its
+     * parent is written.
+     * @return 1 if successful, else -1
+     */
+    public int writeSegment(RStarNode root, int dimension, File segment) {
+        try {
+            RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            // position, node count, point count, height
+            long[] progress = {MappedRStarTree.HEADER_SIZE, 0, 0, 0};
+            long rootOffset = writeSegmentNode(root, dimension, channel, progress, 1);
+
+            ByteBuffer header = ByteBuffer.allocate(MappedRStarTree.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MappedRStarTree.SEGMENT_MAGIC);
+            header.putInt(dimension);
+            header.putInt((int) progress[3]);
+            header.putInt(0);
+            header.putLong(rootOffset);
+            header.putLong(progress[1]);
+            header.putLong(progress[2]);
+            writeFully(channel, header.array(), 0);
+            channel.force(true);
+            raf.close();
+            return 1;
+        } catch (IOException e) {
+            System.err.println("Exception while writing segment " + segment + ": " + e.getMessage());
+            return -1;
+        }
+    }
+
+    private long writeSegmentNode(RStarNode node, int dimension, FileChannel channel, long[] progress, int level)
+            throws IOException {
+        boolean leaf = node.isLeaf();
+        int count = node.getChildCount();
+        float[][] columns = node.getEntries().getColumns();
+        ByteBuffer out = ByteBuffer.allocate(NodeView.sizeOf(leaf, count, dimension)).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(leaf ? 1 : 0);
+        out.putInt(count);
+
+        if (leaf) {
+            for (int i = 0; i < count; i++) {
+                out.putFloat(loadPoint(node.getChildPointer(i)).oid);
+            }
+            for (int d = 0; d < dimension; d++) {
+                float[] column = columns[(d << 1) + HyperRectangle.MIN_CORD];
+                for (int i = 0; i < count; i++) {
+                    out.putFloat(column[i]);
+                }
+            }
+            progress[2] += count;
+        } else {
+            for (int i = 0; i < count; i++) {
+                RStarNode child = loadNode(node.getChildPointer(i));
+                out.putLong(writeSegmentNode(child, dimension, channel, progress, level + 1));
+            }
+            for (int c = 0; c < dimension << 1; c++) {
+                float[] column = columns[c];
+                for (int i = 0; i < count; i++) {
+                    out.putFloat(column[i]);
+                }
+            }
+        }
+
+        long offset = progress[0];
+        writeFully(channel, out.array(), offset);
+        progress[0] += out.capacity();
+        progress[1]++;
+        progress[3] = Math.max(progress[3], level);
+        return offset;
+    }
+
     public String constructFilename(long nodeId) {
         return Constants.TREE_DATA_DIRECTORY + "/" + Constants.NODE_FILE_PREFIX + nodeId + Constants.NODE_FILE_SUFFIX;
     }
@@ -220,16 +905,28 @@ public class StorageManager implements IDiskQuery {
         return Long.parseLong(filename.substring((Constants.TREE_DATA_DIRECTORY+"/"+Constants.NODE_FILE_PREFIX).length(), i2));
     }
 
-    private ObjectInputStream getPointObjectStream() throws IOException {
+    /**
+     * reads through positional channel reads, so concurrent
+     * readers don't share the file pointer.
+     */
+    private ObjectInputStream getPointObjectStream(final long pointer) throws IOException {
         return new ObjectInputStream(new InputStream() {
+            private long position = pointer;
+
             @Override
             public int read() throws IOException {
-                return dataStore.read();
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == 1 ? one[0] & 0xff : -1;
             }
 
             @Override
             public int read(byte[] b, int off, int len) throws IOException {
-                return dataStore.read(b, off, len);
+                int n = dataChannel.read(ByteBuffer.wrap(b, off, len), position);
+                if (n > 0) {
+                    position += n;
+                    metrics.read(n);
+                }
+                return n;
             }
         });
     }
@@ -0,0 +1,410 @@
+package rstar;
+
+import rstar.interfaces.IDiskQuery;
+import rstar.nodes.RStarInternal;
+import rstar.nodes.RStarNode;
+import rstar.spatial.EntryBlock;
+import rstar.spatial.GeometryKernel;
+import rstar.spatial.HyperRectangle;
+import util.Constants;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * walks a tree and describes its shape per level, to tell when
+ * insert order or the split policy left it in need of a rebuild:
+ * how full the nodes are, how much siblings overlap, how much of
+ * a directory node covers nothing, and what a query of a given
+ * size is expected to cost.
+ *
+ * use RStarTree.analyze() on an open tree, or run this class on
+ * the tree saved in the working directory.
+ *
+ * usage: TreeAnalyzer <dimension> [range...]
+ */
+public class TreeAnalyzer {
+    /**
+     * upper bounds of the fill buckets, as a share of capacity;
+     * nodes below the minimum fill are counted apart
+     */
+    private static final double[] FILL_BUCKETS = {0.5, 0.75, 1.0};
+
+    private final int dimension;
+    private final GeometryKernel kernel;
+    /**
+     * leaves first
+     */
+    private final List<Level> levels = new ArrayList<Level>();
+    private float[] space;
+
+    public TreeAnalyzer(int dimension) {
+        this.dimension = dimension;
+        this.kernel = GeometryKernel.forDimension(dimension);
+    }
+
+    /**
+     * statistics of the nodes of one level
+     */
+    public static class Level {
+        private int level;
+        private long nodes;
+        private long entries;
+        private long underfull;
+        private final long[] fillBuckets = new long[FILL_BUCKETS.length];
+        private double minFill = Double.MAX_VALUE;
+        private double maxFill;
+        private double fillSum;
+        private double marginSum;
+        private double volumeSum;
+        private long siblingPairs;
+        private long overlappingPairs;
+        private double overlapSum;
+        private long deadSpaceNodes;
+        private double deadSpaceSum;
+        /**
+         * MBRs of directory nodes, for the cost estimate
+         */
+        private final List<float[]> mbrs = new ArrayList<float[]>();
+        /**
+         * summed sides of leaves per dimension: leaves are most of
+         * the tree, so the estimate uses their mean sides instead
+         * of keeping every MBR
+         */
+        private final double[] leafSides;
+
+        Level(int dimension) {
+            leafSides = new double[dimension];
+        }
+
+        /**
+         * @return leaves are level 0
+         */
+        public int getLevel() {
+            return level;
+        }
+
+        public long getNodes() {
+            return nodes;
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+
+        public double getMinFill() {
+            return nodes == 0 ? 0 : minFill;
+        }
+
+        public double getMaxFill() {
+            return maxFill;
+        }
+
+        public double getMeanFill() {
+            return nodes == 0 ? 0 : fillSum / nodes;
+        }
+
+        /**
+         * @return nodes below the minimum fill, the root aside
+         */
+        public long getUnderfull() {
+            return underfull;
+        }
+
+        /**
+         * @return nodes per fill bucket: from the minimum to 50%,
+         * to 75% and to 100% of capacity
+         */
+        public long[] getFillBuckets() {
+            return fillBuckets.clone();
+        }
+
+        public double getMarginSum() {
+            return marginSum;
+        }
+
+        public double getVolumeSum() {
+            return volumeSum;
+        }
+
+        /**
+         * @return pairs of nodes of this level sharing a parent
+         */
+        public long getSiblingPairs() {
+            return siblingPairs;
+        }
+
+        public long getOverlappingPairs() {
+            return overlappingPairs;
+        }
+
+        /**
+         * @return summed intersection volume of all sibling pairs
+         */
+        public double getOverlapSum() {
+            return overlapSum;
+        }
+
+        /**
+         * @return sibling overlap relative to the volume of the level
+         */
+        public double getOverlapRatio() {
+            return volumeSum == 0 ? 0 : overlapSum / volumeSum;
+        }
+
+        /**
+         * @return mean share of a node's MBR not covered by its
+         * children, NaN for leaves whose entries are points
+         */
+        public double getDeadSpaceRatio() {
+            return deadSpaceNodes == 0 ? Double.NaN : deadSpaceSum / deadSpaceNodes;
+        }
+    }
+
+    /**
+     * walks the tree below root. the caller keeps the tree from
+     * changing meanwhile.
+     */
+    public void analyze(RStarNode root, IDiskQuery storage) throws FileNotFoundException {
+        levels.clear();
+        space = root.getMBR().getPoints().clone();
+
+        List<RStarNode> depth = new ArrayList<RStarNode>();
+        depth.add(root);
+        float[] a = new float[dimension << 1];
+        float[] b = new float[dimension << 1];
+        Level level = new Level(dimension);
+        while (true) {
+            // sibling figures of the next depth are gathered from the entries of this one
+            Level below = new Level(dimension);
+            List<RStarNode> next = new ArrayList<RStarNode>();
+            for (RStarNode node : depth) {
+                visit(node, node == root, level);
+                if (node.isLeaf())
+                    continue;
+                siblings(node.getEntries(), node.getChildCount(), below, a, b);
+                deadSpace(node, level, a, b);
+                for (int c = 0; c < node.getChildCount(); c++) {
+                    RStarNode child = storage.loadNode(node.getChildPointer(c));
+                    if (child.isLeaf())
+                        visit(child, false, below);     // leaves aren't queued, their level ends the walk
+                    else
+                        next.add(child);
+                }
+            }
+            levels.add(0, level);
+            if (next.isEmpty()) {
+                if (below.nodes > 0)
+                    levels.add(0, below);
+                break;
+            }
+            level = below;
+            depth = next;
+        }
+        for (int l = 0; l < levels.size(); l++) {
+            levels.get(l).level = l;
+        }
+    }
+
+    private void visit(RStarNode node, boolean isRoot, Level level) {
+        float[] mbr = node.getMBR().getPoints();
+        int count = node.getChildCount();
+        int capacity;
+        int minimum;
+        if (node.isLeaf()) {
+            capacity = Constants.MAX_LEAF_CHILDREN;
+            minimum = Constants.MIN_LEAF_CHILDREN;
+        } else {
+            capacity = Constants.MAX_CHILDREN * ((RStarInternal) node).getPageCount();
+            minimum = Constants.MIN_CHILDREN;
+        }
+        double fill = (double) count / capacity;
+
+        level.nodes++;
+        level.entries += count;
+        level.fillSum += fill;
+        level.minFill = Math.min(level.minFill, fill);
+        level.maxFill = Math.max(level.maxFill, fill);
+        if (count < minimum && !isRoot) {
+            level.underfull++;
+        } else {
+            int bucket = 0;
+            while (bucket < FILL_BUCKETS.length - 1 && fill > FILL_BUCKETS[bucket]) {
+                bucket++;
+            }
+            level.fillBuckets[bucket]++;
+        }
+        if (count == 0)
+            return;             // an empty root has an empty (infinite) MBR
+        level.marginSum += kernel.margin(mbr);
+        level.volumeSum += kernel.volume(mbr);
+        if (node.isLeaf()) {
+            for (int i = 0; i < dimension; i++) {
+                level.leafSides[i] += extent(mbr, i);
+            }
+        } else {
+            level.mbrs.add(mbr.clone());
+        }
+    }
+
+    /**
+     * adds the pairwise overlap of the entries of one directory
+     * node to the level of its children
+     */
+    private void siblings(EntryBlock entries, int count, Level children, float[] a, float[] b) {
+        for (int i = 0; i < count; i++) {
+            entries.copyMbr(i, a);
+            for (int j = i + 1; j < count; j++) {
+                entries.copyMbr(j, b);
+                double overlap = kernel.overlapVolume(a, b);
+                children.siblingPairs++;
+                if (overlap > 0) {
+                    children.overlappingPairs++;
+                    children.overlapSum += overlap;
+                }
+            }
+        }
+    }
+
+    /**
+     * share of a directory node's MBR its children leave empty. the
+     * covered volume is the children's volume less their pairwise
+     * overlap, a lower bound of their union.
+     */
+    private void deadSpace(RStarNode node, Level level, float[] a, float[] b) {
+        double volume = kernel.volume(node.getMBR().getPoints());
+        if (volume == 0)
+            return;
+        EntryBlock entries = node.getEntries();
+        double covered = 0;
+        for (int i = 0; i < node.getChildCount(); i++) {
+            entries.copyMbr(i, a);
+            covered += kernel.volume(a);
+            for (int j = i + 1; j < node.getChildCount(); j++) {
+                entries.copyMbr(j, b);
+                covered -= kernel.overlapVolume(a, b);
+            }
+        }
+        covered = Math.min(Math.max(covered, 0), volume);
+        level.deadSpaceNodes++;
+        level.deadSpaceSum += 1 - covered / volume;
+    }
+
+    /**
+     * @return the levels, leaves first
+     */
+    public List<Level> getLevels() {
+        return levels;
+    }
+
+    public int getHeight() {
+        return levels.size();
+    }
+
+    /**
+     * expected nodes a range search reads on the given level, for a
+     * search box of side 2 * range placed uniformly in the space the
+     * root covers: a node is read when the box meets its MBR, with
+     * probability prod_i min(1, (s_i + q_i) / W_i). leaves are
+     * priced as that many leaves of their mean sides.
+     */
+    public double expectedNodeAccesses(int level, double range) {
+        double side = 2 * range;
+        Level nodes = levels.get(level);
+        if (nodes.mbrs.isEmpty()) {
+            if (nodes.nodes == 0)
+                return 0;
+            double probability = 1;
+            for (int i = 0; i < dimension; i++) {
+                double width = extent(space, i);
+                if (width > 0)
+                    probability *= Math.min(1, (nodes.leafSides[i] / nodes.nodes + side) / width);
+            }
+            return nodes.nodes * probability;
+        }
+        double expected = 0;
+        for (float[] mbr : nodes.mbrs) {
+            double probability = 1;
+            for (int i = 0; i < dimension; i++) {
+                double width = extent(space, i);
+                if (width > 0)
+                    probability *= Math.min(1, (extent(mbr, i) + side) / width);
+            }
+            expected += probability;
+        }
+        return expected;
+    }
+
+    /**
+     * @return expected nodes of all levels a range search reads
+     */
+    public double expectedNodeAccesses(double range) {
+        double expected = 0;
+        for (int level = 0; level < levels.size(); level++) {
+            expected += expectedNodeAccesses(level, range);
+        }
+        return expected;
+    }
+
+    private static double extent(float[] mbr, int i) {
+        return (double) mbr[(i << 1) + HyperRectangle.MAX_CORD] - mbr[(i << 1) + HyperRectangle.MIN_CORD];
+    }
+
+    /**
+     * @param ranges range search sizes to estimate the cost of
+     */
+    public String report(double[] ranges) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("height %d%n", levels.size()));
+        report.append(String.format("%-5s %8s %10s %6s %6s %6s %9s %9s %9s %9s %9s %8s %9s %12s%n",
+                "level", "nodes", "entries", "fill", "min", "max", "underfull", "<=50%", "<=75%", "<=100%",
+                "overlaps", "overlap", "deadspace", "margin"));
+        for (int l = levels.size() - 1; l >= 0; l--) {
+            Level level = levels.get(l);
+            long[] buckets = level.fillBuckets;
+            report.append(String.format("%-5d %8d %10d %6.2f %6.2f %6.2f %9d %9d %9d %9d %9s %8.4f %9s %12.4g%n",
+                    level.level, level.nodes, level.entries, level.getMeanFill(), level.getMinFill(),
+                    level.getMaxFill(), level.underfull, buckets[0], buckets[1], buckets[2],
+                    level.overlappingPairs + "/" + level.siblingPairs, level.getOverlapRatio(),
+                    Double.isNaN(level.getDeadSpaceRatio()) ? "-" : String.format("%.4f", level.getDeadSpaceRatio()),
+                    level.marginSum));
+        }
+        for (double range : ranges) {
+            report.append(String.format("expected node accesses, range %g: %.1f", range, expectedNodeAccesses(range)));
+            for (int l = levels.size() - 1; l >= 0; l--) {
+                report.append(String.format("%s%.1f", l == levels.size() - 1 ? " (" : " + ", expectedNodeAccesses(l, range)));
+            }
+            report.append(String.format(")%n"));
+        }
+        return report.toString();
+    }
+
+    @Override
+    public String toString() {
+        return report(new double[0]);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 1) {
+            System.err.println("Usage: TreeAnalyzer <dimension of points> [range...]");
+            System.exit(1);
+        }
+        if (!new File(Constants.TREE_FILE).exists()) {
+            System.err.println("No tree in " + new File("").getAbsolutePath());
+            System.exit(1);
+        }
+        int dimension = Integer.parseInt(args[0]);
+        double[] ranges = new double[args.length - 1];
+        for (int i = 1; i < args.length; i++) {
+            ranges[i - 1] = Double.parseDouble(args[i]);
+        }
+        Constants.PIN_LEVELS = 0;               // no need to warm up
+        RStarTree tree = new RStarTree(dimension);
+        TreeAnalyzer analyzer = tree.analyze();
+        if (analyzer == null)
+            System.exit(1);
+        System.out.print(analyzer.report(ranges));
+    }
+}
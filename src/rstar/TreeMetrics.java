@@ -0,0 +1,320 @@
+package rstar;
+
+import rstar.interfaces.ITreeMetrics;
+import util.Constants;
+import util.LatencyHistogram;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * counters of one tree. counters are LongAdders and latencies go to
+ * one of a fixed number of histogram stripes picked by thread, each
+ * updated under its own lock, so concurrent searches rarely contend
+ * on them and the memory stays the same however many threads come
+ * and go; a snapshot sums them up. while disabled every recording
+ * method returns after one volatile read.
+ */
+public class TreeMetrics implements ITreeMetrics {
+    public static final int INSERT = 0;
+    public static final int POINT_SEARCH = 1;
+    public static final int RANGE_SEARCH = 2;
+    public static final int KNN_SEARCH = 3;
+    public static final String[] OPERATION_NAMES = {"insert", "pointSearch", "rangeSearch", "knnSearch"};
+    /**
+     * splits above this level are counted with it
+     */
+    private static final int MAX_LEVEL = 31;
+    private static final double[] PERCENTILES = {50, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p99", "p999"};
+    /**
+     * most histogram stripes, about 240 KB each
+     */
+    private static final int MAX_STRIPES = 16;
+
+    private volatile boolean enabled = Constants.METRICS_ENABLED;
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder pointLoads = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder nodesWritten = new LongAdder();
+    private final LongAdder supernodes = new LongAdder();
+    private final LongAdder[] splits = new LongAdder[MAX_LEVEL + 1];
+    /**
+     * histogram stripes, each with one histogram per operation type
+     * and locked on itself. a power of two.
+     */
+    private final LatencyHistogram[][] histograms;
+
+    public TreeMetrics() {
+        for (int i = 0; i < splits.length; i++) {
+            splits[i] = new LongAdder();
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = Math.min(MAX_STRIPES, Integer.highestOneBit(Math.max(1, processors * 2 - 1)));
+        histograms = new LatencyHistogram[stripes][OPERATION_NAMES.length];
+        for (LatencyHistogram[] stripe : histograms) {
+            for (int op = 0; op < stripe.length; op++) {
+                stripe[op] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * registers these metrics with the platform MBean server as
+     * rstar:type=RStarTree,name=name, replacing what an earlier
+     * tree registered under that name
+     */
+    public void register(String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName("rstar:type=RStarTree,name=" + ObjectName.quote(name));
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            server.registerMBean(new StandardMBean(this, ITreeMetrics.class), objectName);
+        } catch (JMException e) {
+            System.err.println("Metrics failed to be registered. message: " + e.getMessage());
+        }
+    }
+
+    /* RECORDING */
+
+    void cacheHit() {
+        if (enabled)
+            cacheHits.increment();
+    }
+
+    void cacheMiss(long bytes) {
+        if (enabled) {
+            cacheMisses.increment();
+            bytesRead.add(bytes);
+        }
+    }
+
+    void pointLoad() {
+        if (enabled)
+            pointLoads.increment();
+    }
+
+    void read(long bytes) {
+        if (enabled)
+            bytesRead.add(bytes);
+    }
+
+    void nodeWritten(long bytes) {
+        if (enabled) {
+            nodesWritten.increment();
+            bytesWritten.add(bytes);
+        }
+    }
+
+    void written(long bytes) {
+        if (enabled)
+            bytesWritten.add(bytes);
+    }
+
+    /**
+     * @param level level of the split node, leaves are 0
+     */
+    void split(int level) {
+        if (enabled)
+            splits[Math.min(level, MAX_LEVEL)].increment();
+    }
+
+    void supernodeExtended() {
+        if (enabled)
+            supernodes.increment();
+    }
+
+    /**
+     * @return start time for operationDone(), 0 when disabled
+     */
+    long operationStart() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    void operationDone(int operation, long start) {
+        if (start != 0 && enabled) {
+            long nanos = System.nanoTime() - start;
+            LatencyHistogram[] stripe = stripe();
+            synchronized (stripe) {
+                stripe[operation].record(nanos);
+            }
+        }
+    }
+
+    /**
+     * @return the stripe of the current thread
+     */
+    private LatencyHistogram[] stripe() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;        // spread sequential ids
+        return histograms[(hash >>> 16) & (histograms.length - 1)];
+    }
+
+    /* READING */
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    @Override
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    @Override
+    public long getNodeLoads() {
+        return cacheHits.sum() + cacheMisses.sum();
+    }
+
+    @Override
+    public long getPointLoads() {
+        return pointLoads.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getNodesWritten() {
+        return nodesWritten.sum();
+    }
+
+    @Override
+    public long[] getSplitsPerLevel() {
+        int levels = 0;
+        long[] counts = new long[splits.length];
+        for (int i = 0; i < splits.length; i++) {
+            counts[i] = splits[i].sum();
+            if (counts[i] != 0)
+                levels = i + 1;
+        }
+        long[] used = new long[levels];
+        System.arraycopy(counts, 0, used, 0, levels);
+        return used;
+    }
+
+    @Override
+    public long getSupernodeExtensions() {
+        return supernodes.sum();
+    }
+
+    @Override
+    public long[] getOperationCounts() {
+        long[] counts = new long[OPERATION_NAMES.length];
+        for (int op = 0; op < counts.length; op++) {
+            counts[op] = latencies(op).getCount();
+        }
+        return counts;
+    }
+
+    @Override
+    public double[] getP99LatencyMicros() {
+        double[] p99 = new double[OPERATION_NAMES.length];
+        for (int op = 0; op < p99.length; op++) {
+            p99[op] = latencies(op).valueAtPercentile(99) / 1000.0;
+        }
+        return p99;
+    }
+
+    @Override
+    public double latencyMicros(String operation, double percentile) {
+        for (int op = 0; op < OPERATION_NAMES.length; op++) {
+            if (OPERATION_NAMES[op].equals(operation))
+                return latencies(op).valueAtPercentile(percentile) / 1000.0;
+        }
+        throw new IllegalArgumentException("Unknown operation " + operation);
+    }
+
+    /**
+     * @return the latencies of operation recorded by all threads
+     */
+    public LatencyHistogram latencies(int operation) {
+        LatencyHistogram all = new LatencyHistogram();
+        for (LatencyHistogram[] stripe : histograms) {
+            synchronized (stripe) {
+                all.add(stripe[operation]);
+            }
+        }
+        return all;
+    }
+
+    /**
+     * @return counters, splits per level and, per operation, its
+     * count, mean and percentiles in nanoseconds
+     */
+    @Override
+    public Map<String, Long> getSnapshot() {
+        Map<String, Long> snapshot = new LinkedHashMap<String, Long>();
+        snapshot.put("nodeLoads", getNodeLoads());
+        snapshot.put("cacheHits", getCacheHits());
+        snapshot.put("cacheMisses", getCacheMisses());
+        snapshot.put("pointLoads", getPointLoads());
+        snapshot.put("bytesRead", getBytesRead());
+        snapshot.put("bytesWritten", getBytesWritten());
+        snapshot.put("nodesWritten", getNodesWritten());
+        snapshot.put("supernodeExtensions", getSupernodeExtensions());
+        long[] levels = getSplitsPerLevel();
+        for (int level = 0; level < levels.length; level++) {
+            snapshot.put("splits.level" + level, levels[level]);
+        }
+        for (int op = 0; op < OPERATION_NAMES.length; op++) {
+            LatencyHistogram latencies = latencies(op);
+            snapshot.put(OPERATION_NAMES[op] + ".count", latencies.getCount());
+            snapshot.put(OPERATION_NAMES[op] + ".meanNanos", (long) latencies.getMean());
+            for (int p = 0; p < PERCENTILES.length; p++) {
+                snapshot.put(OPERATION_NAMES[op] + "." + PERCENTILE_NAMES[p] + "Nanos",
+                        latencies.valueAtPercentile(PERCENTILES[p]));
+            }
+            snapshot.put(OPERATION_NAMES[op] + ".maxNanos", latencies.getMax());
+        }
+        return snapshot;
+    }
+
+    @Override
+    public void reset() {
+        cacheHits.reset();
+        cacheMisses.reset();
+        pointLoads.reset();
+        bytesRead.reset();
+        bytesWritten.reset();
+        nodesWritten.reset();
+        supernodes.reset();
+        for (LongAdder level : splits) {
+            level.reset();
+        }
+        for (LatencyHistogram[] stripe : histograms) {
+            synchronized (stripe) {
+                for (LatencyHistogram latencies : stripe) {
+                    latencies.reset();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package rstar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * redo-only write ahead log with group commit.
+ *
+ * every tree operation gets an LSN. all page images written by the
+ * operation are appended as records carrying that LSN, followed by
+ * a COMMIT record. records are buffered in memory; force(lsn) makes
+ * them durable. concurrent callers of force() share fsyncs: one of
+ * them becomes the leader and flushes everything buffered so far,
+ * the others wait for it and return without an fsync of their own.
+ * records of a failed flush are kept and written by the next one.
+ *
+ * file layout: header [magic int][next lsn long], then records
+ * [length int][lsn long][type byte][id long][payload][crc int]
+ * where length counts everything after itself, crc covers lsn..payload.
+ */
+public class WriteAheadLog {
+    public static final byte NODE_IMAGE = 1;
+    public static final byte POINT_IMAGE = 2;
+    public static final byte COMMIT = 3;
+    public static final byte TREE_IMAGE = 4;
+
+    private static final int MAGIC = 0x52574C31;        // "RWL1"
+    private static final int HEADER_SIZE = 4 + 8;
+    private static final int RECORD_OVERHEAD = 4 + 8 + 1 + 8 + 4;
+
+    private final RandomAccessFile logFile;
+    private final FileChannel channel;
+    private final long groupCommitNanos;
+
+    private final Object lock = new Object();
+    private ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer flushBuffer = ByteBuffer.allocate(64 * 1024);
+    private long nextLsn = 1;
+    private long bufferedLsn = 0;        // highest lsn whose records are in buffer
+    private long durableLsn = 0;         // highest lsn known to be on disk
+    private boolean flushing = false;
+    private long logSize;
+
+    /**
+     * a redo record read back during recovery
+     */
+    public static class Record {
+        public final long lsn;
+        public final byte type;
+        public final long id;
+        public final byte[] payload;
+
+        Record(long lsn, byte type, long id, byte[] payload) {
+            this.lsn = lsn;
+            this.type = type;
+            this.id = id;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * @param file the log file, created if missing
+     * @param groupCommitMicros how long a commit leader waits for
+     *                          other commits to join its fsync
+     */
+    public WriteAheadLog(File file, long groupCommitMicros) throws IOException {
+        this(new RandomAccessFile(file, "rw"), null, groupCommitMicros);
+    }
+
+    /**
+     * @param channel writes and forces of the log go through it,
+     *                the file's own channel if null
+     */
+    WriteAheadLog(RandomAccessFile logFile, FileChannel channel, long groupCommitMicros) throws IOException {
+        this.logFile = logFile;
+        this.channel = channel != null ? channel : logFile.getChannel();
+        this.groupCommitNanos = groupCommitMicros * 1000;
+        if (logFile.length() < HEADER_SIZE) {
+            writeHeader();
+        }
+        logSize = logFile.length();
+    }
+
+    /**
+     * @return a new LSN for the operation about to start
+     */
+    public long nextLsn() {
+        synchronized (lock) {
+            return nextLsn++;
+        }
+    }
+
+    /**
+     * buffers a record. records of one operation must be
+     * appended by one thread, ending with commit().
+     */
+    public void append(long lsn, byte type, long id, byte[] payload) {
+        synchronized (lock) {
+            int length = RECORD_OVERHEAD - 4 + payload.length;
+            ensureBuffer(4 + length);
+            int start = buffer.position();
+            buffer.putInt(length);
+            buffer.putLong(lsn);
+            buffer.put(type);
+            buffer.putLong(id);
+            buffer.put(payload);
+            CRC32 crc = new CRC32();
+            crc.update(buffer.array(), start + 4, length - 4);
+            buffer.putInt((int) crc.getValue());
+        }
+    }
+
+    /**
+     * buffers the COMMIT record of an operation. the operation is
+     * durable once force(lsn) returns.
+     */
+    public void commit(long lsn) {
+        append(lsn, COMMIT, 0, new byte[0]);
+        synchronized (lock) {
+            bufferedLsn = Math.max(bufferedLsn, lsn);
+        }
+    }
+
+    public long getDurableLsn() {
+        synchronized (lock) {
+            return durableLsn;
+        }
+    }
+
+    public long size() {
+        synchronized (lock) {
+            return logSize + buffer.position();
+        }
+    }
+
+    /**
+     * blocks until every record up to lsn is on disk.
+     * @throws IOException if the log could not be written, or
+     * the operation with lsn never committed
+     */
+    public void force(long lsn) throws IOException {
+        while (true) {
+            synchronized (lock) {
+                if (durableLsn >= lsn)
+                    return;
+                if (lsn > bufferedLsn)
+                    throw new IOException("operation " + lsn + " has no commit record");
+                if (flushing) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("interrupted while waiting for log flush");
+                    }
+                    continue;
+                }
+                flushing = true;
+            }
+            //this thread is the leader of the next group
+            flushGroup();
+        }
+    }
+
+    private void flushGroup() throws IOException {
+        long target;
+        ByteBuffer toWrite;
+        try {
+            if (groupCommitNanos > 0) {
+                long deadline = System.nanoTime() + groupCommitNanos;
+                long wait;
+                while ((wait = deadline - System.nanoTime()) > 0) {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (lock) {
+            target = bufferedLsn;
+            toWrite = buffer;
+            buffer = flushBuffer;
+            buffer.clear();
+            flushBuffer = toWrite;
+        }
+
+        IOException failure = null;
+        try {
+            toWrite.flip();
+            long position = logSize;
+            while (toWrite.hasRemaining()) {
+                position += channel.write(toWrite, position);
+            }
+            channel.force(false);
+            logSize = position;
+        } catch (IOException e) {
+            failure = e;
+        }
+
+        synchronized (lock) {
+            if (failure == null)
+                durableLsn = Math.max(durableLsn, target);
+            else
+                requeue(toWrite);
+            flushing = false;
+            lock.notifyAll();
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * reads the log and returns the records of all committed
+     * operations in the order they committed. records are grouped
+     * by LSN, so those of an aborted operation, which never gets a
+     * COMMIT, are left out. a torn or corrupt tail ends the log.
+     */
+    public List<Record> recover() throws IOException {
+        List<Record> committed = new ArrayList<Record>();
+        Map<Long, List<Record>> operations = new HashMap<Long, List<Record>>();
+
+        logFile.seek(0);
+        if (logFile.length() < HEADER_SIZE || logFile.readInt() != MAGIC) {
+            writeHeader();
+            return committed;
+        }
+        long headerLsn = logFile.readLong();
+        long maxLsn = headerLsn - 1;
+
+        long position = HEADER_SIZE;
+        long length = logFile.length();
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        while (position + 4 <= length) {
+            lengthBuffer.clear();
+            channel.read(lengthBuffer, position);
+            int recordLength = lengthBuffer.getInt(0);
+            if (recordLength < RECORD_OVERHEAD - 4 || position + 4 + recordLength > length)
+                break;
+
+            ByteBuffer record = ByteBuffer.allocate(recordLength);
+            while (record.hasRemaining()) {
+                if (channel.read(record, position + 4 + record.position()) < 0)
+                    break;
+            }
+            record.flip();
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, recordLength - 4);
+            if ((int) crc.getValue() != record.getInt(recordLength - 4))
+                break;
+
+            long lsn = record.getLong();
+            byte type = record.get();
+            long id = record.getLong();
+            byte[] payload = new byte[recordLength - (RECORD_OVERHEAD - 4)];
+            record.get(payload);
+
+            if (type == COMMIT) {
+                List<Record> operation = operations.remove(lsn);
+                if (operation != null)
+                    committed.addAll(operation);
+            } else {
+                List<Record> operation = operations.get(lsn);
+                if (operation == null) {
+                    operation = new ArrayList<Record>();
+                    operations.put(lsn, operation);
+                }
+                operation.add(new Record(lsn, type, id, payload));
+            }
+            maxLsn = Math.max(maxLsn, lsn);
+            position += 4 + recordLength;
+        }
+
+        synchronized (lock) {
+            nextLsn = maxLsn + 1;
+            durableLsn = maxLsn;
+            bufferedLsn = maxLsn;
+        }
+        return committed;
+    }
+
+    /**
+     * empties the log. only call once every page it protects
+     * has been forced to disk and no operation is in flight.
+     * @return false if a flush is running and the log was left alone
+     */
+    public boolean truncate() throws IOException {
+        synchronized (lock) {
+            if (flushing || buffer.position() != 0)
+                return false;
+            channel.truncate(0);
+            writeHeader();
+            channel.force(true);
+            logSize = HEADER_SIZE;
+            return true;
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+        logFile.close();
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putLong(nextLsn);
+        header.flip();
+        channel.write(header, 0);
+        logSize = HEADER_SIZE;
+    }
+
+    /**
+     * puts the records of a failed flush back in front of those
+     * buffered since, so the next flush writes them again from
+     * the same log position
+     */
+    private void requeue(ByteBuffer failed) {
+        int length = failed.limit();
+        failed.limit(failed.capacity());
+        failed.position(length);
+        if (failed.remaining() < buffer.position()) {
+            ByteBuffer bigger = ByteBuffer.allocate(length + buffer.capacity());
+            failed.flip();
+            bigger.put(failed);
+            failed = bigger;
+        }
+        buffer.flip();
+        failed.put(buffer);
+        buffer.clear();
+        flushBuffer = buffer;
+        buffer = failed;
+    }
+
+    private void ensureBuffer(int bytes) {
+        if (buffer.remaining() < bytes) {
+            int capacity = Math.max(buffer.capacity() << 1, buffer.position() + bytes);
+            ByteBuffer bigger = ByteBuffer.allocate(capacity);
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+    }
+}
@@ -0,0 +1,388 @@
+package rstar.codec;
+
+import rstar.dto.MbrDTO;
+import rstar.dto.NodeDTO;
+import rstar.interfaces.INodeCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static rstar.spatial.HyperRectangle.MAX_CORD;
+import static rstar.spatial.HyperRectangle.MIN_CORD;
+
+/**
+ * compact binary page codec.
+ *
+ * co-ordinates are stored frame-of-reference: as the distance of
+ * their order preserving integer form to the matching bound of the
+ * node MBR, varint encoded. neighbouring values share their high
+ * bits with the node bound, so most take one to three bytes instead
+ * of four, and the encoding stays lossless. leaves store every point
+ * once instead of as a degenerate MBR. child pointers are delta
+ * encoded varints.
+ *
+ * with quantizeBits set, the child MBRs of internal nodes are
+ * stored as 8 or 16 bit grid positions inside the node MBR,
+ * rounded outward: decoded entries always contain the real child
+ * MBR, so searches stay exact and only descend a little more
+ * often. a node whose entries stick out of its MBR is written
+ * unquantized.
+ *
+ * with compress set, pages that shrink are deflated on top.
+ *
+ * page: [byte 'C' or 'Z'] then, deflated for 'Z':
+ * <pre>
+ * [flags: leaf, quantized 8, quantized 16][dimension][count][pageCount][splitHistory][lsn][parentId]
+ * [float mbr[2*d]]
+ * [child pointer deltas[count]]
+ * leaf:     [cord distances[d][count]]
+ * internal: [bound distances[2*d][count]] or [grid positions[2*d][count]]
+ * </pre>
+ */
+public class CompactNodeCodec implements INodeCodec {
+    private static final byte PLAIN = 'C';
+    private static final byte DEFLATED = 'Z';
+    private static final int LEAF = 1;
+    private static final int QUANTIZED_8 = 2;
+    private static final int QUANTIZED_16 = 4;
+
+    private final boolean compress;
+    private final int quantizeBits;
+
+    public CompactNodeCodec() {
+        this(false, 0);
+    }
+
+    public CompactNodeCodec(boolean compress) {
+        this(compress, 0);
+    }
+
+    /**
+     * @param compress deflate pages on top of the encoding
+     * @param quantizeBits 8 or 16 to quantize internal entries, 0 not to
+     */
+    public CompactNodeCodec(boolean compress, int quantizeBits) {
+        if (quantizeBits != 0 && quantizeBits != 8 && quantizeBits != 16)
+            throw new IllegalArgumentException("quantizeBits must be 0, 8 or 16");
+        this.compress = compress;
+        this.quantizeBits = quantizeBits;
+    }
+
+    public int getQuantizeBits() {
+        return quantizeBits;
+    }
+
+    /**
+     * "compact", followed by "+deflate" and "+q8" or "+q16"
+     * for the settings in use
+     */
+    @Override
+    public String getId() {
+        return "compact" + (compress ? "+deflate" : "") + (quantizeBits != 0 ? "+q" + quantizeBits : "");
+    }
+
+    /**
+     * worst case: a 10 byte pointer delta, then 5 bytes per
+     * co-ordinate distance or 1-2 bytes per quantized bound
+     */
+    @Override
+    public int entrySize(boolean leaf, int dimension) {
+        if (leaf)
+            return 10 + 5 * dimension;
+        if (quantizeBits != 0)
+            return 10 + 2 * dimension * (quantizeBits >> 3);
+        return 10 + 10 * dimension;
+    }
+
+    @Override
+    public byte[] encode(NodeDTO node) throws IOException {
+        int dimension = node.mbr.points.length >> 1;
+        int count = node.childCount;
+        float[] mbr = node.mbr.points;
+
+        int flags = node.isLeaf ? LEAF : 0;
+        if (!node.isLeaf && quantizeBits != 0 && entriesInside(node.entries, count, mbr))
+            flags |= quantizeBits == 8 ? QUANTIZED_8 : QUANTIZED_16;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + count * dimension * 4);
+        out.write(PLAIN);
+        writeVarLong(out, flags);
+        writeVarLong(out, dimension);
+        writeVarLong(out, count);
+        writeVarLong(out, node.pageCount);
+        writeVarLong(out, node.splitHistory);
+        writeVarLong(out, node.lsn);
+        writeVarLong(out, zigzag(node.parentId));
+        for (float bound : mbr) {
+            writeInt(out, Float.floatToRawIntBits(bound));
+        }
+
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            writeVarLong(out, zigzag(node.children[i] - previous));
+            previous = node.children[i];
+        }
+
+        if ((flags & (QUANTIZED_8 | QUANTIZED_16)) != 0) {
+            writeQuantized(out, node.entries, count, mbr, (flags & QUANTIZED_8) != 0 ? 8 : 16);
+        } else {
+            for (int j = 0; j < dimension << 1; j++) {
+                int cord = j & 1;
+                if (node.isLeaf && cord == MAX_CORD)
+                    continue;                   // points: max column equals min column
+                float[] column = node.entries[j];
+                long reference = sortable(mbr[j]);
+                for (int i = 0; i < count; i++) {
+                    long distance = cord == MIN_CORD ? sortable(column[i]) - reference
+                                                     : reference - sortable(column[i]);
+                    writeVarLong(out, zigzag(distance));
+                }
+            }
+        }
+
+        byte[] page = out.toByteArray();
+        return compress ? deflate(page) : page;
+    }
+
+    @Override
+    public NodeDTO decode(byte[] page) throws IOException {
+        if (!canDecode(page))
+            throw new IOException("Not a compact node page");
+        ByteBuffer in = page[0] == DEFLATED ? ByteBuffer.wrap(inflate(page)) : ByteBuffer.wrap(page, 1, page.length - 1);
+
+        int flags = (int) readVarLong(in);
+        boolean leaf = (flags & LEAF) != 0;
+        int dimension = (int) readVarLong(in);
+        int count = (int) readVarLong(in);
+        int pageCount = (int) readVarLong(in);
+        long splitHistory = readVarLong(in);
+        long lsn = readVarLong(in);
+        long parentId = unzigzag(readVarLong(in));
+        float[] mbr = new float[dimension << 1];
+        for (int j = 0; j < mbr.length; j++) {
+            mbr[j] = Float.intBitsToFloat(in.getInt());
+        }
+
+        long[] children = new long[count];
+        long previous = 0;
+        for (int i = 0; i < count; i++) {
+            previous += unzigzag(readVarLong(in));
+            children[i] = previous;
+        }
+
+        float[][] entries = new float[dimension << 1][count];
+        if ((flags & (QUANTIZED_8 | QUANTIZED_16)) != 0) {
+            readQuantized(in, entries, count, mbr, (flags & QUANTIZED_8) != 0 ? 8 : 16);
+        } else {
+            for (int j = 0; j < dimension << 1; j++) {
+                int cord = j & 1;
+                if (leaf && cord == MAX_CORD)
+                    continue;
+                float[] column = entries[j];
+                long reference = sortable(mbr[j]);
+                for (int i = 0; i < count; i++) {
+                    long distance = unzigzag(readVarLong(in));
+                    column[i] = fromSortable(cord == MIN_CORD ? reference + distance : reference - distance);
+                }
+                if (leaf)
+                    System.arraycopy(column, 0, entries[j - MIN_CORD + MAX_CORD], 0, count);
+            }
+        }
+
+        NodeDTO node = new NodeDTO(parentId, leaf, new MbrDTO(mbr), children, count, entries, splitHistory, pageCount, lsn);
+        if ((flags & QUANTIZED_8) != 0)
+            node.setQuantizeBits(8);
+        else if ((flags & QUANTIZED_16) != 0)
+            node.setQuantizeBits(16);
+        return node;
+    }
+
+    @Override
+    public boolean canDecode(byte[] page) {
+        return page.length > 0 && (page[0] == PLAIN || page[0] == DEFLATED);
+    }
+
+    private static boolean entriesInside(float[][] entries, int count, float[] mbr) {
+        for (int j = 0; j < mbr.length; j += 2) {
+            float max = mbr[j + MAX_CORD];
+            float min = mbr[j + MIN_CORD];
+            for (int i = 0; i < count; i++) {
+                if (entries[j + MAX_CORD][i] > max || entries[j + MIN_CORD][i] < min)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeQuantized(ByteArrayOutputStream out, float[][] entries, int count, float[] mbr, int bits) {
+        int levels = (1 << bits) - 1;
+        for (int j = 0; j < mbr.length; j++) {
+            float min = mbr[(j & ~1) + MIN_CORD];
+            float max = mbr[(j & ~1) + MAX_CORD];
+            for (int i = 0; i < count; i++) {
+                int code = quantize(entries[j][i], j & 1, levels, min, max);
+                if (bits == 16)
+                    out.write(code >>> 8);
+                out.write(code);
+            }
+        }
+    }
+
+    /**
+     * rounds a lower bound down and an upper bound up to the
+     * nearest grid position that still contains it. the nearest,
+     * so a value decoded from a grid position keeps its position
+     * and rewriting a page doesn't widen its entries.
+     * @param cord MIN_CORD or MAX_CORD
+     */
+    private static int quantize(float value, int cord, int levels, float min, float max) {
+        double scale = max > min ? levels / ((double) max - min) : 0;
+        double position = (value - (double) min) * scale;
+        int code;
+        if (cord == MIN_CORD) {
+            code = Math.max(0, Math.min(levels, (int) Math.floor(position)));
+            while (code > 0 && dequantize(code, levels, min, max) > value)
+                code--;
+            while (code < levels && dequantize(code + 1, levels, min, max) <= value)
+                code++;
+        } else {
+            code = Math.max(0, Math.min(levels, (int) Math.ceil(position)));
+            while (code < levels && dequantize(code, levels, min, max) < value)
+                code++;
+            while (code > 0 && dequantize(code - 1, levels, min, max) >= value)
+                code--;
+        }
+        return code;
+    }
+
+    /**
+     * @param value a bound of a child MBR, inside the node MBR
+     * @param cord MIN_CORD or MAX_CORD
+     * @param min lower bound of the node MBR in the same dimension
+     * @param max upper bound of the node MBR in the same dimension
+     * @param bits 8 or 16
+     * @return the bound as a quantized page stores it
+     */
+    public static float quantizedBound(float value, int cord, float min, float max, int bits) {
+        int levels = (1 << bits) - 1;
+        return dequantize(quantize(value, cord, levels, min, max), levels, min, max);
+    }
+
+    private static void readQuantized(ByteBuffer in, float[][] entries, int count, float[] mbr, int bits) {
+        int levels = (1 << bits) - 1;
+        for (int j = 0; j < mbr.length; j++) {
+            float min = mbr[(j & ~1) + MIN_CORD];
+            float max = mbr[(j & ~1) + MAX_CORD];
+            for (int i = 0; i < count; i++) {
+                int code = in.get() & 0xFF;
+                if (bits == 16)
+                    code = (code << 8) | (in.get() & 0xFF);
+                entries[j][i] = dequantize(code, levels, min, max);
+            }
+        }
+    }
+
+    /**
+     * grid position to value; monotonic in code and exact at both ends
+     */
+    private static float dequantize(int code, int levels, float min, float max) {
+        if (code == 0)
+            return min;
+        if (code == levels)
+            return max;
+        return (float) (min + ((double) max - min) * code / levels);
+    }
+
+    /**
+     * maps a float to an int with the same order, so the
+     * difference of two maps grows with the distance of the floats
+     */
+    static long sortable(float value) {
+        int bits = Float.floatToRawIntBits(value);
+        return bits ^ ((bits >> 31) & 0x7FFFFFFF);
+    }
+
+    static float fromSortable(long sortable) {
+        int bits = (int) sortable;
+        return Float.intBitsToFloat(bits ^ ((bits >> 31) & 0x7FFFFFFF));
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarLong(ByteBuffer in) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    static void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 24);
+        out.write(value >>> 16);
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static byte[] deflate(byte[] page) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(page, 1, page.length - 1);
+        deflater.finish();
+        byte[] buffer = new byte[page.length + 5];
+        buffer[0] = DEFLATED;
+        writeLength(buffer, page.length - 1);
+        int size = 5 + deflater.deflate(buffer, 5, buffer.length - 5);
+        boolean shrunk = deflater.finished() && size < page.length;
+        deflater.end();
+        if (!shrunk)
+            return page;
+        byte[] result = new byte[size];
+        System.arraycopy(buffer, 0, result, 0, size);
+        return result;
+    }
+
+    private static byte[] inflate(byte[] page) throws IOException {
+        int length = ((page[1] & 0xFF) << 24) | ((page[2] & 0xFF) << 16) | ((page[3] & 0xFF) << 8) | (page[4] & 0xFF);
+        byte[] body = new byte[length];
+        Inflater inflater = new Inflater();
+        inflater.setInput(page, 5, page.length - 5);
+        try {
+            if (inflater.inflate(body) != length)
+                throw new IOException("Truncated compressed node page");
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed node page");
+        } finally {
+            inflater.end();
+        }
+        return body;
+    }
+
+    private static void writeLength(byte[] buffer, int length) {
+        buffer[1] = (byte) (length >>> 24);
+        buffer[2] = (byte) (length >>> 16);
+        buffer[3] = (byte) (length >>> 8);
+        buffer[4] = (byte) length;
+    }
+}
@@ -0,0 +1,55 @@
+package rstar.codec;
+
+import rstar.dto.NodeDTO;
+import rstar.interfaces.INodeCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * the default codec: plain java serialization of the NodeDTO
+ */
+public class JavaNodeCodec implements INodeCodec {
+    @Override
+    public byte[] encode(NodeDTO node) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(node);
+        oos.close();
+        return bos.toByteArray();
+    }
+
+    @Override
+    public NodeDTO decode(byte[] page) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(page));
+        try {
+            return (NodeDTO) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("ClassNotFoundException occurred while loading node from disk");
+        } finally {
+            ois.close();
+        }
+    }
+
+    /**
+     * a long child pointer plus 2*d float bounds
+     */
+    @Override
+    public int entrySize(boolean leaf, int dimension) {
+        return 8 + 8 * dimension;
+    }
+
+    @Override
+    public boolean canDecode(byte[] page) {
+        // every serialization stream starts with STREAM_MAGIC 0xACED
+        return page.length > 1 && page[0] == (byte) 0xAC && page[1] == (byte) 0xED;
+    }
+
+    @Override
+    public String getId() {
+        return "java";
+    }
+}
@@ -1,17 +1,46 @@
 package rstar.dto;
 
-import java.util.ArrayList;
-
 public class NodeDTO extends AbstractDTO {
-    public ArrayList<Long> children;
+    /**
+     * the id java computed before the quantizeBits accessors were
+     * added, so node pages of the java codec stay readable
+     */
+    private static final long serialVersionUID = -3045876404688413604L;
+
+    public long[] children;
+    public int childCount;
+    public float[][] entries;
     public MbrDTO mbr;
     public boolean isLeaf;
     public long parentId;
+    public long splitHistory;
+    public int pageCount;
+    public long lsn;
+    /**
+     * bits of the grid the entries were decoded from, 0 if they
+     * are exact. private transient, so pages of the java codec
+     * keep their serial form.
+     */
+    private transient int quantizeBits;
 
-    public NodeDTO(long parentId, boolean leaf, MbrDTO mbr, ArrayList<Long> children) {
+    public NodeDTO(long parentId, boolean leaf, MbrDTO mbr, long[] children, int childCount, float[][] entries,
+                   long splitHistory, int pageCount, long lsn) {
         this.parentId = parentId;
         isLeaf = leaf;
         this.mbr = mbr;
         this.children = children;
+        this.childCount = childCount;
+        this.entries = entries;
+        this.splitHistory = splitHistory;
+        this.pageCount = pageCount;
+        this.lsn = lsn;
+    }
+
+    public int getQuantizeBits() {
+        return quantizeBits;
+    }
+
+    public void setQuantizeBits(int quantizeBits) {
+        this.quantizeBits = quantizeBits;
     }
 }
@@ -1,13 +1,37 @@
 package rstar.dto;
 
 public class TreeDTO extends AbstractDTO {
+    // pinned to the value before codec and capacities were
+    // added, so headers saved by older builds still load
+    private static final long serialVersionUID = 496635443837835846L;
+
     public int dimension;
     public int pagesize;
     public long rootPointer;
+    public int height;
+    /**
+     * lowest node id not handed out yet
+     */
+    public long nextId;
+    /**
+     * id of the codec node pages were written with,
+     * null in headers of older builds
+     */
+    public String codec;
+    /**
+     * M and m of internal nodes and leaves the tree was built
+     * with, 0 in headers of older builds
+     */
+    public int maxChildren;
+    public int minChildren;
+    public int maxLeafChildren;
+    public int minLeafChildren;
 
-    public TreeDTO(int dimension, int pagesize, long rootPointer) {
+    public TreeDTO(int dimension, int pagesize, long rootPointer, int height, long nextId) {
         this.dimension = dimension;
         this.pagesize = pagesize;
         this.rootPointer = rootPointer;
+        this.height = height;
+        this.nextId = nextId;
     }
 }
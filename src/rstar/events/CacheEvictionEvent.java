@@ -0,0 +1,30 @@
+package rstar.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * nodes dropped from memory: the pinned upper levels when they are
+ * redone, or committed images once written to their node files
+ */
+@Name("rstar.CacheEviction")
+@Label("Cache Eviction")
+@Category({"R*-Tree", "Storage"})
+@Description("Nodes dropped from the pinned set or the committed images")
+@StackTrace(false)
+public class CacheEvictionEvent extends Event {
+    @Label("Cache")
+    public String cache;
+
+    @Label("Nodes")
+    public int nodes;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
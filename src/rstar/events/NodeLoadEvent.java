@@ -0,0 +1,26 @@
+package rstar.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * a node file read. nodes served from memory are not recorded.
+ */
+@Name("rstar.NodeLoad")
+@Label("Node Load")
+@Category({"R*-Tree", "Storage"})
+@Description("A node read from its node file")
+@StackTrace(false)
+public class NodeLoadEvent extends Event {
+    @Label("Node Id")
+    public long nodeId;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
@@ -0,0 +1,27 @@
+package rstar.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * a node file written, by an insert without the log or when
+ * committed images are applied
+ */
+@Name("rstar.NodeSave")
+@Label("Node Save")
+@Category({"R*-Tree", "Storage"})
+@Description("A node written to its node file")
+@StackTrace(false)
+public class NodeSaveEvent extends Event {
+    @Label("Node Id")
+    public long nodeId;
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+}
@@ -0,0 +1,28 @@
+package rstar.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * an insert or search that took longer than the threshold, which
+ * recordings can change (rstar.Query#threshold)
+ */
+@Name("rstar.Query")
+@Label("Slow Tree Operation")
+@Category({"R*-Tree", "Operations"})
+@Description("An insert or search of an R*-tree that exceeded the threshold")
+@Threshold("20 ms")
+@StackTrace(false)
+public class QueryEvent extends Event {
+    @Label("Operation")
+    public String operation;
+
+    @Label("Results")
+    @Description("Points returned, 1 for a successful insert or a found point")
+    public int results;
+}
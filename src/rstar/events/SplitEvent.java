@@ -0,0 +1,37 @@
+package rstar.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * a node split, or in X-tree mode a directory node extended to a
+ * supernode instead (axis -1)
+ */
+@Name("rstar.Split")
+@Label("Node Split")
+@Category({"R*-Tree", "Structure"})
+@Description("An overflowing node split in two or extended to a supernode")
+@StackTrace(false)
+public class SplitEvent extends Event {
+    @Label("Level")
+    @Description("Level of the split node, leaves are 0")
+    public int level;
+
+    @Label("Entries")
+    @Description("Entries distributed, including the one that overflowed the node")
+    public int entries;
+
+    @Label("Axis")
+    public int axis;
+
+    @Label("Overlap")
+    @Description("Overlap of the two halves relative to the volume they cover")
+    public double overlap;
+
+    @Label("Supernode")
+    public boolean supernode;
+}
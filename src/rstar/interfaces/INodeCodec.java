@@ -0,0 +1,34 @@
+package rstar.interfaces;
+
+import rstar.dto.NodeDTO;
+
+import java.io.IOException;
+
+/**
+ * turns node DTOs into the bytes of a node page and back.
+ * every codec marks its pages with its own first byte, so pages
+ * written by different codecs can be read side by side.
+ */
+public interface INodeCodec {
+    byte[] encode(NodeDTO node) throws IOException;
+
+    NodeDTO decode(byte[] page) throws IOException;
+
+    /**
+     * @return true if page was written by this codec
+     */
+    boolean canDecode(byte[] page);
+
+    /**
+     * @return most bytes one entry of a node takes in a page
+     * written by this codec
+     */
+    int entrySize(boolean leaf, int dimension);
+
+    /**
+     * @return name of this codec and its settings, kept in the
+     * tree header so a tree is reopened with the codec it was
+     * written with
+     */
+    String getId();
+}
@@ -0,0 +1,16 @@
+package rstar.interfaces;
+
+import rstar.nodes.NodeView;
+
+/**
+ * receives the points found by a query on a mapped tree
+ * without them being copied out of the mapping.
+ */
+public interface IPointVisitor {
+    /**
+     * @param leaf view of the leaf holding the point, only
+     *             valid during this call
+     * @param entry index of the point in leaf
+     */
+    void visit(NodeView leaf, int entry);
+}
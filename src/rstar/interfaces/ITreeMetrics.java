@@ -0,0 +1,72 @@
+package rstar.interfaces;
+
+import java.util.Map;
+
+/**
+ * counters of a tree, as seen over JMX
+ */
+public interface ITreeMetrics {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    /**
+     * nodes served from memory: the write set, pinned nodes and
+     * committed images not yet checkpointed
+     */
+    long getCacheHits();
+
+    /**
+     * nodes read from their node file
+     */
+    long getCacheMisses();
+
+    long getNodeLoads();
+
+    long getPointLoads();
+
+    /**
+     * bytes of node files and points read
+     */
+    long getBytesRead();
+
+    /**
+     * bytes of node files and points written
+     */
+    long getBytesWritten();
+
+    long getNodesWritten();
+
+    /**
+     * @return splits per level, leaves are level 0
+     */
+    long[] getSplitsPerLevel();
+
+    /**
+     * directory nodes extended to X-tree supernodes instead of split
+     */
+    long getSupernodeExtensions();
+
+    /**
+     * @return count of insert, pointSearch, rangeSearch and knnSearch
+     */
+    long[] getOperationCounts();
+
+    /**
+     * @return p99 latency of insert, pointSearch, rangeSearch and knnSearch
+     */
+    double[] getP99LatencyMicros();
+
+    /**
+     * @param operation insert, pointSearch, rangeSearch or knnSearch
+     * @param percentile from 0 to 100
+     */
+    double latencyMicros(String operation, double percentile);
+
+    /**
+     * @return every counter and latency summary by name
+     */
+    Map<String, Long> getSnapshot();
+
+    void reset();
+}
@@ -0,0 +1,141 @@
+package rstar.nodes;
+
+import java.nio.ByteBuffer;
+
+import static rstar.spatial.HyperRectangle.MAX_CORD;
+import static rstar.spatial.HyperRectangle.MIN_CORD;
+
+/**
+ * flyweight over one node of a segment file. moveTo() points
+ * the view at another node; nothing is copied or allocated.
+ *
+ * node layout, little endian, 8 byte aligned:
+ * <pre>
+ * [int leaf][int count]
+ * internal: long childOffset[count], float bounds[2*d][count]
+ * leaf:     float oid[count],        float cords[d][count]
+ * </pre>
+ * bound columns are in the flat MBR order of HyperRectangle,
+ * one column per bound like EntryBlock.
+ */
+public class NodeView {
+    private final ByteBuffer buffer;
+    private final int dimension;
+    private int offset;
+    private int count;
+    private boolean leaf;
+    private int dataStart;          // first child offset or oid
+    private int columnStart;        // first bound or co-ordinate column
+
+    public NodeView(ByteBuffer buffer, int dimension) {
+        this.buffer = buffer;
+        this.dimension = dimension;
+    }
+
+    /**
+     * @return size in bytes of a node with count entries
+     */
+    public static int sizeOf(boolean leaf, int count, int dimension) {
+        int size = 8 + (leaf ? 4 * count + 4 * dimension * count
+                             : 8 * count + 8 * dimension * count);
+        return (size + 7) & ~7;
+    }
+
+    public NodeView moveTo(int offset) {
+        this.offset = offset;
+        this.leaf = buffer.getInt(offset) != 0;
+        this.count = buffer.getInt(offset + 4);
+        this.dataStart = offset + 8;
+        this.columnStart = dataStart + (leaf ? 4 : 8) * count;
+        return this;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public boolean isLeaf() {
+        return leaf;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * @return offset of the node of an internal entry
+     */
+    public int getChildOffset(int entry) {
+        return (int) buffer.getLong(dataStart + (entry << 3));
+    }
+
+    /**
+     * @return a bound of an internal entry
+     */
+    public float getBound(int entry, int dim, int cord) {
+        return buffer.getFloat(columnStart + ((((dim << 1) + cord) * count + entry) << 2));
+    }
+
+    public float getOid(int entry) {
+        return buffer.getFloat(dataStart + (entry << 2));
+    }
+
+    /**
+     * @return a co-ordinate of a leaf entry
+     */
+    public float getCord(int entry, int dim) {
+        return buffer.getFloat(columnStart + ((dim * count + entry) << 2));
+    }
+
+    /**
+     * copies the co-ordinates of a leaf entry into dst
+     */
+    public void copyCords(int entry, float[] dst) {
+        for (int i = 0; i < dimension; i++) {
+            dst[i] = getCord(entry, i);
+        }
+    }
+
+    /**
+     * @param query flat MBR
+     * @return true if the entry intersects (or, in a leaf, lies in) query
+     */
+    public boolean intersects(int entry, float[] query) {
+        if (leaf) {
+            for (int i = 0; i < dimension; i++) {
+                float c = getCord(entry, i);
+                if (c > query[(i << 1) + MAX_CORD] || c < query[(i << 1) + MIN_CORD])
+                    return false;
+            }
+        } else {
+            for (int i = 0; i < dimension; i++) {
+                if (getBound(entry, i, MIN_CORD) > query[(i << 1) + MAX_CORD] ||
+                        getBound(entry, i, MAX_CORD) < query[(i << 1) + MIN_CORD])
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return squared minimum distance of cords to the entry
+     */
+    public float minDistance(int entry, float[] cords) {
+        float sum = 0;
+        for (int i = 0; i < dimension; i++) {
+            float d;
+            if (leaf) {
+                d = getCord(entry, i) - cords[i];
+            } else {
+                d = Math.max(0f, Math.max(getBound(entry, i, MIN_CORD) - cords[i],
+                        cords[i] - getBound(entry, i, MAX_CORD)));
+            }
+            sum += d * d;
+        }
+        return sum;
+    }
+}
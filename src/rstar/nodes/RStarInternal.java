@@ -1,28 +1,41 @@
 package rstar.nodes;
 
+import rstar.codec.CompactNodeCodec;
 import rstar.dto.NodeDTO;
+import rstar.spatial.EntryBlock;
 import rstar.spatial.HyperRectangle;
 import rstar.spatial.SpatialPoint;
 import util.Constants;
 
-import java.util.ArrayList;
-
 public class RStarInternal extends RStarNode {
-//    private ArrayList<RStarNode> children;
+    /**
+     * number of pages this node spans. greater than 1 for
+     * X-tree supernodes, which hold pageCount * MAX_CHILDREN children.
+     */
+    private int pageCount = 1;
+    /**
+     * bits of the grid the entries were read from, 0 if exact
+     */
+    private int quantizeBits;
 
     public RStarInternal(int dimension) {
         createId();
         _dimension = dimension;
-        childPointers = new ArrayList<Long>(Constants.MAX_CHILDREN);
+        childPointers = new long[Constants.MAX_CHILDREN];
+        entries = new EntryBlock(dimension, Constants.MAX_CHILDREN);
         mbr = new HyperRectangle(dimension);
     }
 
     public RStarInternal(NodeDTO dto, long nodeId) {
         this.nodeId = nodeId;
         this.setParentId(dto.parentId);
-        this.childPointers = dto.children;
-//        children = new ArrayList<RStarNode>(Constants.MAX_CHILDREN);
+        setChildPointers(dto.children, dto.childCount);
+        this.splitHistory = dto.splitHistory;
+        this.pageCount = Math.max(1, dto.pageCount);
+        this.lsn = dto.lsn;
+        this.entries = new EntryBlock(dto.entries, dto.childCount);
         this.mbr = new HyperRectangle(dto.mbr);
+        this.quantizeBits = dto.getQuantizeBits();
     }
 
     @Override
@@ -32,14 +45,15 @@ public class RStarInternal extends RStarNode {
 
     @Override
     public boolean isNotFull() {
-        return childPointers.size() < Constants.MAX_CHILDREN;
+        return childCount < Constants.MAX_CHILDREN * pageCount;
     }
 
     @Override
     public <T> int insert(T newChild) {
         if (this.isNotFull() && newChild instanceof RStarNode) {
             ((RStarNode) newChild).setParentId(this.nodeId);
-            childPointers.add(((RStarNode) newChild).getNodeId());
+            addChildPointer(((RStarNode) newChild).getNodeId());
+            entries.add(((RStarNode) newChild).getMBR().getPoints());
             mbr.update(((RStarNode) newChild).getMBR());
             return 1;
         }
@@ -56,14 +70,84 @@ public class RStarInternal extends RStarNode {
         this.mbr = mbr;
     }
 
+    public int getPageCount() {
+        return pageCount;
+    }
+
+    public boolean isSupernode() {
+        return pageCount > 1;
+    }
+
+    /**
+     * sets the page count to the fewest pages that hold
+     * the given number of children
+     */
+    public void fitPageCount(int children) {
+        pageCount = Math.max(1, (children + Constants.MAX_CHILDREN - 1) / Constants.MAX_CHILDREN);
+    }
+
+    /**
+     * extends this node by one page instead of splitting it
+     */
+    public void growSupernode() {
+        pageCount++;
+    }
+
+    /**
+     * copies the current MBR of child into its entry and
+     * enlarges the MBR of this node to cover it
+     * @param child a child of this node
+     * @return false if child is not a child of this node or
+     * its entry was already up to date
+     */
+    public boolean updateChildMbr(RStarNode child) {
+        int index = indexOfChild(child.getNodeId());
+        if (index == -1)
+            return false;
+        float[] childMbr = child.getMBR().getPoints();
+        if (entries.matches(index, childMbr) || matchesQuantized(index, childMbr))
+            return false;
+        entries.set(index, childMbr);
+        mbr.update(child.getMBR());
+        return true;
+    }
+
+    /**
+     * @return true if the entry was read from a quantized page and
+     * is what that page would store for childMbr, so rewriting the
+     * entry would change nothing on disk
+     */
+    private boolean matchesQuantized(int index, float[] childMbr) {
+        if (quantizeBits == 0)
+            return false;
+        float[] bounds = mbr.getPoints();
+        for (int c = 0; c < childMbr.length; c++) {
+            float min = bounds[(c & ~1) + HyperRectangle.MIN_CORD];
+            float max = bounds[(c & ~1) + HyperRectangle.MAX_CORD];
+            if (childMbr[c] < min || childMbr[c] > max)
+                return false;
+            if (entries.get(index, c >> 1, c & 1) != CompactNodeCodec.quantizedBound(childMbr[c], c & 1, min, max, quantizeBits))
+                return false;
+        }
+        return true;
+    }
+
     public double deltaV_onInclusion(SpatialPoint newPoint) {
-        HyperRectangle pointmbr = new HyperRectangle(_dimension);
-        pointmbr.update(newPoint);
-        return mbr.deltaV_onInclusion(pointmbr);
+        float[] mbrPoints = mbr.getPoints();
+        float[] cords = newPoint.getCords();
+        double vol = 1;
+        double enlarged = 1;
+        for (int i = 0, j = 0; i < cords.length; i++, j += 2) {
+            vol *= mbrPoints[j + HyperRectangle.MAX_CORD] - mbrPoints[j + HyperRectangle.MIN_CORD];
+            enlarged *= Math.max(mbrPoints[j + HyperRectangle.MAX_CORD], cords[i]) -
+                    Math.min(mbrPoints[j + HyperRectangle.MIN_CORD], cords[i]);
+        }
+        return enlarged - vol;
     }
 
     @Override
     public NodeDTO toDTO() {
-        return new NodeDTO(getParentId(), false, mbr.toDTO(), childPointers);
+        return new NodeDTO(getParentId(), false, mbr.toDTO(), childPointers, childCount, entries.getColumns(),
+                splitHistory, pageCount, lsn);
     }
 }
@@ -1,6 +1,7 @@
 package rstar.nodes;
 
 import rstar.dto.NodeDTO;
+import rstar.spatial.EntryBlock;
 import rstar.spatial.HyperRectangle;
 import rstar.spatial.SpatialPoint;
 import util.Constants;
@@ -14,15 +15,19 @@ public class RStarLeaf extends RStarNode {
         createId();
         _dimension = dimension;
         loadedChildren = new ArrayList<SpatialPoint>();
-        childPointers = new ArrayList<Long>();
+        childPointers = new long[Constants.MAX_LEAF_CHILDREN];
+        entries = new EntryBlock(dimension, Constants.MAX_LEAF_CHILDREN);
         mbr = new HyperRectangle(dimension);
     }
 
     public RStarLeaf(NodeDTO dto, long nodeId) {
         this.nodeId = nodeId;
         this.setParentId(dto.parentId);
-        _dimension = Constants.DIMENSION;
-        childPointers = dto.children;
+        _dimension = dto.mbr.points.length >> 1;
+        setChildPointers(dto.children, dto.childCount);
+        splitHistory = dto.splitHistory;
+        lsn = dto.lsn;
+        entries = new EntryBlock(dto.entries, dto.childCount);
         loadedChildren = new ArrayList<SpatialPoint>();
         mbr = new HyperRectangle(dto.mbr);
     }
@@ -34,13 +39,14 @@ public class RStarLeaf extends RStarNode {
 
     @Override
     public boolean isNotFull() {
-        return ((childPointers.size() + loadedChildren.size()) < Constants.MAX_CHILDREN);
+        return ((childCount + loadedChildren.size()) < Constants.MAX_LEAF_CHILDREN);
     }
 
     @Override
     public <T> int insert(T newChild) {
         if (this.isNotFull()) {
             loadedChildren.add((SpatialPoint) newChild);
+            entries.addPoint(((SpatialPoint) newChild).getCords());
             mbr.update((SpatialPoint) newChild);
             return 1;
         }
@@ -59,7 +65,8 @@ public class RStarLeaf extends RStarNode {
 
     @Override
     public NodeDTO toDTO() {
-        return new NodeDTO(getParentId(), true, mbr.toDTO(), childPointers);
+        return new NodeDTO(getParentId(), true, mbr.toDTO(), childPointers, childCount, entries.getColumns(),
+                splitHistory, 1, lsn);
     }
 
     public boolean hasUnsavedPoints(){
@@ -2,16 +2,40 @@ package rstar.nodes;
 
 import rstar.interfaces.IDtoConvertible;
 import rstar.interfaces.IRStarNode;
+import rstar.spatial.EntryBlock;
 import rstar.spatial.HyperRectangle;
+import util.Constants;
 import util.Utils;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
 public abstract class RStarNode implements IDtoConvertible, IRStarNode{
     protected long nodeId = -1;
     protected static int _dimension;
     protected HyperRectangle mbr;
-    public ArrayList<Long> childPointers;   //ids of all children = file names are derivable from this.
+    /**
+     * ids of all children = file names are derivable from this.
+     * only the first childCount entries are valid.
+     */
+    protected long[] childPointers;
+    protected int childCount;
+    /**
+     * MBRs of the entries in child order. internal nodes keep
+     * the MBR of every child, leaves keep the co-ordinates of
+     * every point (saved ones first, then loadedChildren).
+     */
+    protected EntryBlock entries;
+    /**
+     * bit i is set if this node or one of its ancestors in the
+     * split chain was split perpendicular to dimension i.
+     * dimensions beyond 63 are not tracked.
+     */
+    protected long splitHistory;
+    /**
+     * LSN of the last logged operation that wrote this node.
+     * recovery only redoes images newer than the page on disk.
+     */
+    protected long lsn;
 
     private Long parentId;
 
@@ -42,4 +66,68 @@ public abstract class RStarNode implements IDtoConvertible, IRStarNode{
     public void setNodeId(long nodeId1){
         this.nodeId = nodeId1;
     }
-}
\ No newline at end of file
+
+    public int getChildCount() {
+        return childCount;
+    }
+
+    public long getChildPointer(int index) {
+        assert index < childCount;
+        return childPointers[index];
+    }
+
+    public void addChildPointer(long pointer) {
+        if (childCount == childPointers.length) {
+            childPointers = Arrays.copyOf(childPointers, Math.max(childCount << 1, Constants.MAX_CHILDREN));
+        }
+        childPointers[childCount++] = pointer;
+    }
+
+    public long getSplitHistory() {
+        return splitHistory;
+    }
+
+    /**
+     * records that this node was split along axis
+     */
+    public void addSplitDimension(int axis) {
+        if (axis < Long.SIZE)
+            splitHistory |= 1L << axis;
+    }
+
+    public long getLsn() {
+        return lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    public int indexOfChild(long pointer) {
+        for (int i = 0; i < childCount; i++) {
+            if (childPointers[i] == pointer)
+                return i;
+        }
+        return -1;
+    }
+
+    public EntryBlock getEntries() {
+        return entries;
+    }
+
+    /**
+     * removes all child pointers and their entry MBRs
+     */
+    public void clearChildren() {
+        childCount = 0;
+        entries.clear();
+    }
+
+    /**
+     * adopts the child array of a loaded DTO without copying it.
+     */
+    protected void setChildPointers(long[] pointers, int count) {
+        childPointers = pointers;
+        childCount = count;
+    }
+}
@@ -1,7 +1,8 @@
 package rstar.nodes;
 
 import rstar.StorageManager;
-import rstar.dto.PointDTO;
+import rstar.spatial.EntryBlock;
+import rstar.spatial.GeometryKernel;
 import rstar.spatial.HyperRectangle;
 import rstar.spatial.SpatialComparator;
 import rstar.spatial.SpatialPoint;
@@ -20,26 +21,60 @@ public class RStarSplit {
     private int dimension;
     public int bestSortOrder;
     private StorageManager disk;
+    private GeometryKernel kernel;
+    private boolean xTreeMode;
+    private int xSplitAxis;
+    private int xSplitPoint;
+    /**
+     * axis and overlap ratio of the two halves of the last split
+     */
+    private int lastSplitAxis = -1;
+    private double lastSplitOverlap;
 
-    public RStarSplit(int dimension, StorageManager storageManager) {
+    public RStarSplit(int dimension, StorageManager storageManager, GeometryKernel kernel) {
         this.dimension = dimension;
         this.disk = storageManager;
+        this.kernel = kernel;
         this.bestSortOrder = -1;
     }
 
+    /**
+     * in X-tree mode a directory node that cannot be split without
+     * heavy overlap, even along its split history, is extended into
+     * a supernode instead of being split.
+     */
+    public void setXTreeMode(boolean xTreeMode) {
+        this.xTreeMode = xTreeMode;
+    }
+
+    /**
+     * @return axis the last split sorted along, -1 before any split
+     */
+    public int getLastSplitAxis() {
+        return lastSplitAxis;
+    }
+
+    /**
+     * @return overlap of the halves of the last split relative to
+     * the volume they cover
+     */
+    public double getLastSplitOverlap() {
+        return lastSplitOverlap;
+    }
+
     public RStarLeaf chooseLeaf(RStarNode startNode, HyperRectangle newMbr) {
         if(startNode.isLeaf()) {
             return (RStarLeaf)startNode;
         }
 
         else {
-            ArrayList<Long> childPointers = startNode.childPointers;
-            assert childPointers.size() > 0;
-            ArrayList<RStarNode> children = new ArrayList<RStarNode>(childPointers.size());
+            int childCount = startNode.getChildCount();
+            assert childCount > 0;
+            ArrayList<RStarNode> children = new ArrayList<RStarNode>(childCount);
             //load all children
-            for (long childId : childPointers) {
+            for (int i = 0; i < childCount; i++) {
                 try {
-                    children.add(disk.loadNode(childId));
+                    children.add(disk.loadNode(startNode.getChildPointer(i)));
                 } catch (FileNotFoundException e) {
                     System.err.println("Exception while loading node from disk. message = "+e.getMessage());
                 }
@@ -52,8 +87,10 @@ public class RStarSplit {
                 // the candidate nodes for next recursive step
                 ArrayList<RStarNode> cands = new ArrayList<RStarNode>();
 
+                float[] union = new float[newMbr.getPoints().length];
                 for (RStarNode child : children) {
-                    HyperRectangle union = child.getMBR().union(newMbr);
+                    float[] childMbr = child.getMBR().getPoints();
+                    kernel.unionInto(childMbr, newMbr.getPoints(), union);
                     //find union's overlap with all other children
                     double deltaOverlap = 0;
 
@@ -62,8 +99,9 @@ public class RStarSplit {
                             continue;
                         }
 
-                        deltaOverlap += union.overlap(otherChild.getMBR()) -
-                                child.getMBR().overlap(otherChild.getMBR());
+                        float[] otherMbr = otherChild.getMBR().getPoints();
+                        deltaOverlap += kernel.overlapVolume(union, otherMbr) -
+                                kernel.overlapVolume(childMbr, otherMbr);
 
                     }
 
@@ -93,7 +131,7 @@ public class RStarSplit {
 
                     double deltaV;
                     for (RStarNode candNode : cands) {
-                        deltaV = candNode.getMBR().deltaV_onInclusion(newMbr);
+                        deltaV = kernel.enlargement(candNode.getMBR().getPoints(), newMbr.getPoints());
                         if(minAreas.size() == 0 || minAreas.get(0) > deltaV) {
                             minAreas.removeAll(minAreas);
                             cands2.removeAll(cands2);
@@ -113,7 +151,7 @@ public class RStarSplit {
                         double minArea = Double.MAX_VALUE;
                         RStarNode candidate = null;
                         for (RStarNode candNode : cands2) {
-                            double vol = candNode.getMBR().volume();
+                            double vol = kernel.volume(candNode.getMBR().getPoints());
                             if( vol < minArea ){
                                 minArea = vol;
                                 candidate = candNode;
@@ -129,7 +167,7 @@ public class RStarSplit {
 
                 double deltaV;
                 for (RStarNode candNode : children) {
-                    deltaV = candNode.getMBR().deltaV_onInclusion(newMbr);
+                    deltaV = kernel.enlargement(candNode.getMBR().getPoints(), newMbr.getPoints());
                     if(minAreas.size() == 0 || minAreas.get(0) > deltaV) {
                         minAreas.removeAll(minAreas);
                         cands.removeAll(cands);
@@ -149,7 +187,7 @@ public class RStarSplit {
                     double minArea = Double.MAX_VALUE;
                     RStarNode candidate = null;
                     for (RStarNode candNode : cands) {
-                        double vol = candNode.getMBR().volume();
+                        double vol = kernel.volume(candNode.getMBR().getPoints());
                         if( vol < minArea ){
                             minArea = vol;
                             candidate = candNode;
@@ -184,15 +222,15 @@ public class RStarSplit {
             final SpatialComparator compMax = new SpatialComparator(i, HyperRectangle.MAX_CORD);
             Collections.sort(maxSorting, compMax);
 
-            for (int k = 0; k <= (entries.size() - 2 * Constants.MIN_CHILDREN); k++) {
-                HyperRectangle mbr1 = new HyperRectangle(dimension, minSorting.subList(0, Constants.MIN_CHILDREN + k));
-                HyperRectangle mbr2 = new HyperRectangle(dimension, minSorting.subList(Constants.MIN_CHILDREN + k, entries.size()));
+            for (int k = 0; k <= (entries.size() - 2 * Constants.MIN_LEAF_CHILDREN); k++) {
+                HyperRectangle mbr1 = new HyperRectangle(dimension, minSorting.subList(0, Constants.MIN_LEAF_CHILDREN + k));
+                HyperRectangle mbr2 = new HyperRectangle(dimension, minSorting.subList(Constants.MIN_LEAF_CHILDREN + k, entries.size()));
 
-                margin += mbr1.margin() + mbr2.margin();
+                margin += kernel.margin(mbr1.getPoints()) + kernel.margin(mbr2.getPoints());
 
-                mbr1 = new HyperRectangle(dimension, maxSorting.subList(0, Constants.MIN_CHILDREN + k));
-                mbr2 = new HyperRectangle(dimension, maxSorting.subList(Constants.MIN_CHILDREN + k, entries.size()));
-                margin += mbr1.margin() + mbr2.margin();
+                mbr1 = new HyperRectangle(dimension, maxSorting.subList(0, Constants.MIN_LEAF_CHILDREN + k));
+                mbr2 = new HyperRectangle(dimension, maxSorting.subList(Constants.MIN_LEAF_CHILDREN + k, entries.size()));
+                margin += kernel.margin(mbr1.getPoints()) + kernel.margin(mbr2.getPoints());
             }
 
             if (margin < minMargin) {
@@ -223,11 +261,11 @@ public class RStarSplit {
                 HyperRectangle mbr1 = new HyperRectangle(dimension, minSorting.subList(0, Constants.MIN_CHILDREN + k));
                 HyperRectangle mbr2 = new HyperRectangle(dimension, minSorting.subList(Constants.MIN_CHILDREN + k, children.size()));
 
-                margin += mbr1.margin() + mbr2.margin();
+                margin += kernel.margin(mbr1.getPoints()) + kernel.margin(mbr2.getPoints());
 
                 mbr1 = new HyperRectangle(dimension, maxSorting.subList(0, Constants.MIN_CHILDREN + k));
                 mbr2 = new HyperRectangle(dimension, maxSorting.subList(Constants.MIN_CHILDREN + k, children.size()));
-                margin += mbr1.margin() + mbr2.margin();
+                margin += kernel.margin(mbr1.getPoints()) + kernel.margin(mbr2.getPoints());
             }
 
             if (margin < minMargin) {
@@ -261,12 +299,12 @@ public class RStarSplit {
         Collections.sort(maxSorting, compMax);
 
         // the split point (first set to minimum entries in the node)
-        splitPoint = Constants.MIN_CHILDREN;
+        splitPoint = Constants.MIN_LEAF_CHILDREN;
         // best value for the overlap
         double minOverlap = Double.MAX_VALUE;
         // the volume of mbr1 and mbr2
         double volume = 0.0;
-        int minEntries = Constants.MIN_CHILDREN;
+        int minEntries = Constants.MIN_LEAF_CHILDREN;
 
         bestSortOrder = -1;
 
@@ -275,23 +313,23 @@ public class RStarSplit {
             HyperRectangle mbr1 = new HyperRectangle(dimension, minSorting.subList(0, minEntries + i));
             HyperRectangle mbr2 = new HyperRectangle(dimension, minSorting.subList(minEntries + i, entries.size()));
 
-            double currentOverlap = mbr1.overlap(mbr2);
-            if (currentOverlap < minOverlap || (currentOverlap == minOverlap && (mbr1.volume() + mbr2.volume()) < volume)) {
+            double currentOverlap = kernel.overlapVolume(mbr1.getPoints(), mbr2.getPoints());
+            if (currentOverlap < minOverlap || (currentOverlap == minOverlap && (kernel.volume(mbr1.getPoints()) + kernel.volume(mbr2.getPoints())) < volume)) {
                 minOverlap = currentOverlap;
                 splitPoint = minEntries + i;
                 bestSortOrder = HyperRectangle.MIN_CORD;
-                volume = mbr1.volume() + mbr2.volume();
+                volume = kernel.volume(mbr1.getPoints()) + kernel.volume(mbr2.getPoints());
             }
             // test the sorting with respect to the maximal values
             mbr1 = new HyperRectangle(dimension, maxSorting.subList(0, minEntries + i));
             mbr2 = new HyperRectangle(dimension, maxSorting.subList(minEntries + i, entries.size()));
 
-            currentOverlap = mbr1.overlap(mbr2);
-            if (currentOverlap < minOverlap || (currentOverlap == minOverlap && (mbr1.volume() + mbr2.volume()) < volume)) {
+            currentOverlap = kernel.overlapVolume(mbr1.getPoints(), mbr2.getPoints());
+            if (currentOverlap < minOverlap || (currentOverlap == minOverlap && (kernel.volume(mbr1.getPoints()) + kernel.volume(mbr2.getPoints())) < volume)) {
                 minOverlap = currentOverlap;
                 splitPoint = minEntries + i;
                 bestSortOrder = HyperRectangle.MAX_CORD;
-                volume = mbr1.volume() + mbr2.volume();
+                volume = kernel.volume(mbr1.getPoints()) + kernel.volume(mbr2.getPoints());
             }
         }
         return splitPoint;
@@ -326,39 +364,41 @@ public class RStarSplit {
             HyperRectangle mbr1 = new HyperRectangle(dimension, minSorting.subList(0, minEntries + i));
             HyperRectangle mbr2 = new HyperRectangle(dimension, minSorting.subList(minEntries + i, children.size()));
 
-            double currentOverlap = mbr1.overlap(mbr2);
-            if (currentOverlap < minOverlap || (currentOverlap == minOverlap && (mbr1.volume() + mbr2.volume()) < volume)) {
+            double currentOverlap = kernel.overlapVolume(mbr1.getPoints(), mbr2.getPoints());
+            if (currentOverlap < minOverlap || (currentOverlap == minOverlap && (kernel.volume(mbr1.getPoints()) + kernel.volume(mbr2.getPoints())) < volume)) {
                 minOverlap = currentOverlap;
                 splitPoint = minEntries + i;
                 bestSortOrder = HyperRectangle.MIN_CORD;
-                volume = mbr1.volume() + mbr2.volume();
+                volume = kernel.volume(mbr1.getPoints()) + kernel.volume(mbr2.getPoints());
             }
             // test the sorting with respect to the maximal values
             mbr1 = new HyperRectangle(dimension, maxSorting.subList(0, minEntries + i));
             mbr2 = new HyperRectangle(dimension, maxSorting.subList(minEntries + i, children.size()));
 
-            currentOverlap = mbr1.overlap(mbr2);
-            if (currentOverlap < minOverlap || (currentOverlap == minOverlap && (mbr1.volume() + mbr2.volume()) < volume)) {
+            currentOverlap = kernel.overlapVolume(mbr1.getPoints(), mbr2.getPoints());
+            if (currentOverlap < minOverlap || (currentOverlap == minOverlap && (kernel.volume(mbr1.getPoints()) + kernel.volume(mbr2.getPoints())) < volume)) {
                 minOverlap = currentOverlap;
                 splitPoint = minEntries + i;
                 bestSortOrder = HyperRectangle.MAX_CORD;
-                volume = mbr1.volume() + mbr2.volume();
+                volume = kernel.volume(mbr1.getPoints()) + kernel.volume(mbr2.getPoints());
             }
         }
         return splitPoint;
     }
 
     public RStarLeaf splitLeaf(RStarLeaf splittingLeaf, SpatialPoint newPoint) throws AssertionError{
-        ArrayList<Long> childPointers = splittingLeaf.childPointers;
-        if (childPointers.size() <= 0) {
+        int childCount = splittingLeaf.getChildCount();
+        if (childCount <= 0) {
             throw new AssertionError();
         }
 
-        ArrayList<SpatialPoint> children = new ArrayList<SpatialPoint>(childPointers.size());
-        //load all children
-        for (long childId : childPointers) {
-            PointDTO dto = disk.loadPoint(childId);
-            children.add(new SpatialPoint(dto));
+        long[] childPointers = new long[childCount];
+        ArrayList<SpatialPoint> children = new ArrayList<SpatialPoint>(childCount + 1);
+        //the leaf keeps the co-ordinates of its points, no need to load them
+        EntryBlock entries = splittingLeaf.getEntries();
+        for (int i = 0; i < childCount; i++) {
+            childPointers[i] = splittingLeaf.getChildPointer(i);
+            children.add(new SpatialPoint(entries.copyPoint(i)));
         }
 
         children.add(newPoint);
@@ -370,48 +410,60 @@ public class RStarSplit {
         sort(sorting, comp);
 
         splittingLeaf.loadedChildren = new ArrayList<SpatialPoint>();
-        splittingLeaf.childPointers = new ArrayList<Long>();
+        splittingLeaf.clearChildren();
         RStarLeaf newChild = new RStarLeaf(dimension);
+        newChild.splitHistory = splittingLeaf.splitHistory;
+        splittingLeaf.addSplitDimension(splitAxis);
+        newChild.addSplitDimension(splitAxis);
+        RStarLeaf newPointTarget = null;
 
         HyperRectangle newMbr1 = new HyperRectangle(dimension);     //adjusted mbr for splittingLeaf
         HyperRectangle newMbr2 = new HyperRectangle(dimension);     //adjusted mbr for newChild
 
         for (int i = 0; i < sorting.length; i++) {
             SpatialPoint spatialPoint = (SpatialPoint) sorting[i];
+            RStarLeaf target = (i < splitPoint) ? splittingLeaf : newChild;
+            if (spatialPoint == newPoint) {
+                newPointTarget = target;
+            } else {
+                target.addChildPointer(childPointers[children.indexOf(spatialPoint)]);
+                target.entries.addPoint(spatialPoint.getCords());
+            }
             if (i < splitPoint) {
-                if (spatialPoint == newPoint) {
-                    splittingLeaf.loadedChildren.add(spatialPoint);
-                } else {
-                    splittingLeaf.childPointers.add(childPointers.get(children.indexOf(spatialPoint)));
-                }
                 newMbr1.update(spatialPoint);
             } else {
-                if (spatialPoint == newPoint) {
-                    newChild.loadedChildren.add(spatialPoint);
-                } else {
-                    newChild.childPointers.add(childPointers.get(children.indexOf(spatialPoint)));
-                }
                 newMbr2.update(spatialPoint);
             }
         }
+        //unsaved points come after the saved ones
+        newPointTarget.insert(newPoint);
         splittingLeaf.setMbr(newMbr1);
         newChild.setMbr(newMbr2);
+        lastSplitAxis = splitAxis;
+        lastSplitOverlap = overlapRatio(newMbr1.getPoints(), newMbr2.getPoints());
 
         disk.saveNode(splittingLeaf);
         return newChild;
     }
 
+    /**
+     * splits a full internal node after adding node to it.
+     * in X-tree mode the node may be extended to a supernode
+     * holding node instead, in which case null is returned.
+     * @return the node created by the split, or null if
+     * splittingNode became a (larger) supernode
+     */
     public RStarNode splitInternalNode(RStarInternal splittingNode, RStarNode node) throws FileNotFoundException {
         //load all children of target
-        ArrayList<Long> childPointers = splittingNode.childPointers;
-        if (childPointers.size() <= 0) {
+        int childCount = splittingNode.getChildCount();
+        if (childCount <= 0) {
             throw new AssertionError();
         }
 
-        ArrayList<RStarNode> children = new ArrayList<RStarNode>(childPointers.size());
+        ArrayList<RStarNode> children = new ArrayList<RStarNode>(childCount + 1);
         //load all children
-        for (long childNodeId : childPointers) {
-            children.add(disk.loadNode(childNodeId));
+        for (int i = 0; i < childCount; i++) {
+            children.add(disk.loadNode(splittingNode.getChildPointer(i)));
         }
 
         children.add(node);
@@ -422,8 +474,26 @@ public class RStarSplit {
         final SpatialComparator comp = new SpatialComparator(splitAxis, bestSortOrder);
         sort(sorting, comp);
 
-        splittingNode.childPointers = new ArrayList<Long>();
+        if (xTreeMode && overlapRatio(sorting, splitPoint) > Constants.MAX_OVERLAP) {
+            sorting = chooseOverlapMinimalSplit(children);
+            if (sorting == null) {
+                //every split overlaps too much, extend the node instead
+                splittingNode.growSupernode();
+                splittingNode.insert(node);
+                disk.saveNode(splittingNode);
+                return null;
+            }
+            splitAxis = xSplitAxis;
+            splitPoint = xSplitPoint;
+        }
+
+        splittingNode.clearChildren();
         RStarInternal createdNode = new RStarInternal(dimension);
+        createdNode.splitHistory = splittingNode.splitHistory;
+        splittingNode.addSplitDimension(splitAxis);
+        createdNode.addSplitDimension(splitAxis);
+        splittingNode.fitPageCount(splitPoint);
+        createdNode.fitPageCount(sorting.length - splitPoint);
 
         HyperRectangle newMbr1 = new HyperRectangle(dimension);
         HyperRectangle newMbr2 = new HyperRectangle(dimension);
@@ -431,11 +501,13 @@ public class RStarSplit {
         for (int i = 0; i < sorting.length; i++) {
             RStarNode childNode = (RStarNode) sorting[i];
             if (i < splitPoint) {
-                splittingNode.childPointers.add(childNode.getNodeId());
+                splittingNode.addChildPointer(childNode.getNodeId());
+                splittingNode.entries.add(childNode.getMBR().getPoints());
                 childNode.setParentId(splittingNode.getNodeId());
                 newMbr1.update(childNode.getMBR());
             } else {
-                createdNode.childPointers.add(childNode.getNodeId());
+                createdNode.addChildPointer(childNode.getNodeId());
+                createdNode.entries.add(childNode.getMBR().getPoints());
                 childNode.setParentId(createdNode.getNodeId());
                 newMbr2.update(childNode.getMBR());
             }
@@ -444,8 +516,75 @@ public class RStarSplit {
 
         splittingNode.setMbr(newMbr1);
         createdNode.setMbr(newMbr2);
+        lastSplitAxis = splitAxis;
+        lastSplitOverlap = overlapRatio(newMbr1.getPoints(), newMbr2.getPoints());
 
         disk.saveNode(splittingNode);
         return createdNode;
     }
+
+    /**
+     * X-tree overlap-minimal split: tries the dimensions every child
+     * was split along before, where the children's MBRs are known to
+     * be separable, accepting only splits that leave each half at
+     * least MIN_FANOUT_RATIO of the entries.
+     * sets xSplitAxis and xSplitPoint on success.
+     * @return children sorted for the chosen split, null if no split
+     * stays within MAX_OVERLAP
+     */
+    private Object[] chooseOverlapMinimalSplit(ArrayList<RStarNode> children) {
+        long commonHistory = -1L;
+        for (RStarNode child : children) {
+            commonHistory &= child.getSplitHistory();
+        }
+
+        int numEntries = children.size();
+        int minFanout = Math.max(1, (int) Math.ceil(numEntries * Constants.MIN_FANOUT_RATIO));
+        double bestOverlap = Constants.MAX_OVERLAP;
+        Object[] best = null;
+
+        for (int axis = 0; axis < Math.min(dimension, Long.SIZE); axis++) {
+            if ((commonHistory & (1L << axis)) == 0)
+                continue;
+
+            for (int order = HyperRectangle.MAX_CORD; order <= HyperRectangle.MIN_CORD; order++) {
+                Object[] sorting = children.toArray();
+                sort(sorting, new SpatialComparator(axis, order));
+
+                for (int k = minFanout; k <= numEntries - minFanout; k++) {
+                    double overlap = overlapRatio(sorting, k);
+                    if (best == null ? overlap <= bestOverlap : overlap < bestOverlap) {
+                        bestOverlap = overlap;
+                        best = sorting;
+                        xSplitAxis = axis;
+                        xSplitPoint = k;
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return overlap of the two groups sorting[0, splitPoint) and
+     * sorting[splitPoint, length) relative to the volume they cover
+     */
+    private double overlapRatio(Object[] sorting, int splitPoint) {
+        return overlapRatio(groupMbr(sorting, 0, splitPoint), groupMbr(sorting, splitPoint, sorting.length));
+    }
+
+    private double overlapRatio(float[] mbr1, float[] mbr2) {
+        double overlap = kernel.overlapVolume(mbr1, mbr2);
+        if (overlap == 0)
+            return 0;
+        return overlap / (kernel.volume(mbr1) + kernel.volume(mbr2) - overlap);
+    }
+
+    private float[] groupMbr(Object[] nodes, int from, int to) {
+        float[] mbr = ((RStarNode) nodes[from]).getMBR().getPoints().clone();
+        for (int i = from + 1; i < to; i++) {
+            kernel.unionInto(mbr, ((RStarNode) nodes[i]).getMBR().getPoints(), mbr);
+        }
+        return mbr;
+    }
 }
@@ -0,0 +1,179 @@
+package rstar.spatial;
+
+import java.util.Arrays;
+
+import static rstar.spatial.HyperRectangle.MAX_CORD;
+import static rstar.spatial.HyperRectangle.MIN_CORD;
+
+/**
+ * MBRs of all entries of one node stored struct-of-arrays:
+ * one column per bound, indexed like the flat MBR layout
+ * (column 2*i+MAX_CORD holds the max of dimension i of every entry).
+ * points are stored as degenerate MBRs with min == max.
+ *
+ * the kernels below walk one column at a time over contiguous
+ * floats with no data dependent branches in the inner loop, which
+ * is the shape C2's superword pass vectorizes.
+ */
+public class EntryBlock {
+    private float[][] columns;
+    private int size;
+
+    public EntryBlock(int dimension, int capacity) {
+        columns = new float[dimension << 1][capacity];
+    }
+
+    /**
+     * adopts columns read from disk without copying them.
+     */
+    public EntryBlock(float[][] columns, int size) {
+        this.columns = columns;
+        this.size = size;
+    }
+
+    public float[][] getColumns() {
+        return columns;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getDimension() {
+        return columns.length >> 1;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public float get(int entry, int dimension, int cord) {
+        return columns[(dimension << 1) + cord][entry];
+    }
+
+    /**
+     * appends an entry given as a flat MBR
+     */
+    public void add(float[] mbr) {
+        ensureCapacity(size + 1);
+        set(size++, mbr);
+    }
+
+    /**
+     * appends a point entry
+     */
+    public void addPoint(float[] cords) {
+        ensureCapacity(size + 1);
+        for (int i = 0; i < cords.length; i++) {
+            columns[(i << 1) + MAX_CORD][size] = cords[i];
+            columns[(i << 1) + MIN_CORD][size] = cords[i];
+        }
+        size++;
+    }
+
+    public void set(int entry, float[] mbr) {
+        for (int c = 0; c < columns.length; c++) {
+            columns[c][entry] = mbr[c];
+        }
+    }
+
+    /**
+     * @return true if the entry equals the given flat MBR
+     */
+    public boolean matches(int entry, float[] mbr) {
+        for (int c = 0; c < columns.length; c++) {
+            if (columns[c][entry] != mbr[c])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * copies the MBR of an entry into dst in the flat layout
+     */
+    public void copyMbr(int entry, float[] dst) {
+        for (int c = 0; c < columns.length; c++) {
+            dst[c] = columns[c][entry];
+        }
+    }
+
+    /**
+     * @return co-ordinates of a point entry
+     */
+    public float[] copyPoint(int entry) {
+        float[] cords = new float[columns.length >> 1];
+        for (int i = 0; i < cords.length; i++) {
+            cords[i] = columns[(i << 1) + MIN_CORD][entry];
+        }
+        return cords;
+    }
+
+    /**
+     * @return a bitmask large enough for every entry of this block
+     */
+    public long[] newMask() {
+        return new long[(size + 63) >>> 6];
+    }
+
+    /**
+     * tests the query MBR against every entry and sets bit i of mask
+     * if entry i intersects it.
+     * @param query flat MBR
+     * @param mask at least (size + 63) / 64 words
+     * @return number of qualifying entries
+     */
+    public int filter(float[] query, long[] mask) {
+        int words = GeometryKernel.initMask(mask, size);
+
+        for (int j = 0; j < columns.length; j += 2) {
+            float[] maxs = columns[j + MAX_CORD];
+            float[] mins = columns[j + MIN_CORD];
+            float qMax = query[j + MAX_CORD];
+            float qMin = query[j + MIN_CORD];
+            long any = 0;
+            for (int w = 0, base = 0; w < words; w++, base += 64) {
+                long word = mask[w];
+                int end = Math.min(64, size - base);
+                for (int i = 0; i < end; i++) {
+                    long fail = (maxs[base + i] < qMin | mins[base + i] > qMax) ? 1L : 0L;
+                    word &= ~(fail << i);
+                }
+                mask[w] = word;
+                any |= word;
+            }
+            if (any == 0) {
+                return 0;
+            }
+        }
+
+        return GeometryKernel.countMask(mask, words);
+    }
+
+    /**
+     * computes the squared minimum distance of a point to every entry.
+     * for point entries this is the squared euclidean distance.
+     * @param cords the query point
+     * @param out receives one distance per entry, at least size long
+     */
+    public void minDistances(float[] cords, float[] out) {
+        Arrays.fill(out, 0, size, 0f);
+        for (int i = 0; i < cords.length; i++) {
+            float[] maxs = columns[(i << 1) + MAX_CORD];
+            float[] mins = columns[(i << 1) + MIN_CORD];
+            float p = cords[i];
+            for (int e = 0; e < size; e++) {
+                float d = Math.max(0f, Math.max(mins[e] - p, p - maxs[e]));
+                out[e] += d * d;
+            }
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (columns.length > 0 && columns[0].length < capacity) {
+            int newCapacity = Math.max(capacity, columns[0].length << 1);
+            for (int c = 0; c < columns.length; c++) {
+                columns[c] = Arrays.copyOf(columns[c], newCapacity);
+            }
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package rstar.spatial;
+
+import util.Constants;
+
+/**
+ * geometric primitives used on the insert and query paths,
+ * working on the flat MBR layout of HyperRectangle and on
+ * EntryBlock columns.
+ *
+ * this class is the generic implementation for any dimension.
+ * forDimension() returns an unrolled subclass for 2 and 3
+ * dimensions, picked once per tree so every call site only
+ * ever sees one implementation and gets inlined. with
+ * VECTOR_KERNELS set and jdk.incubator.vector present, the
+ * batched kernels come from VectorGeometryKernel instead.
+ */
+public class GeometryKernel {
+    private static final String VECTOR_KERNEL_CLASS = "rstar.spatial.VectorGeometryKernel";
+
+    protected final int dimension;
+
+    protected GeometryKernel(int dimension) {
+        this.dimension = dimension;
+    }
+
+    /**
+     * @param dimension dimension of the tree
+     * @return the fastest kernel available for dimension
+     */
+    public static GeometryKernel forDimension(int dimension) {
+        GeometryKernel scalar;
+        switch (dimension) {
+            case 2:
+                scalar = new GeometryKernel2D();
+                break;
+            case 3:
+                scalar = new GeometryKernel3D();
+                break;
+            default:
+                scalar = new GeometryKernel(dimension);
+        }
+        if (!Constants.VECTOR_KERNELS)
+            return scalar;
+        GeometryKernel vector = vectorKernel(scalar);
+        return vector != null ? vector : scalar;
+    }
+
+    /**
+     * VectorGeometryKernel is compiled in its own source root
+     * against jdk.incubator.vector, so it is looked up by name.
+     * @return the vector kernel over scalar, null if the class
+     * or the module isn't there
+     */
+    private static GeometryKernel vectorKernel(GeometryKernel scalar) {
+        try {
+            Class<?> kernel = Class.forName(VECTOR_KERNEL_CLASS);
+            return (GeometryKernel) kernel.getConstructor(GeometryKernel.class).newInstance(scalar);
+        } catch (Exception e) {
+            return null;                // not compiled in, or refused the CPU's lane count
+        } catch (LinkageError e) {
+            return null;                // run without --add-modules jdk.incubator.vector
+        }
+    }
+
+    public int getDimension() {
+        return dimension;
+    }
+
+    public boolean intersects(float[] a, float[] b) {
+        return HyperRectangle.intersects(a, b);
+    }
+
+    public boolean containsPoint(float[] mbr, float[] cords) {
+        return HyperRectangle.containsPoint(mbr, cords);
+    }
+
+    public double volume(float[] mbr) {
+        return HyperRectangle.volume(mbr);
+    }
+
+    public double margin(float[] mbr) {
+        return HyperRectangle.margin(mbr);
+    }
+
+    public double overlapVolume(float[] a, float[] b) {
+        return HyperRectangle.overlapVolume(a, b);
+    }
+
+    public double enlargement(float[] mbr, float[] added) {
+        return HyperRectangle.enlargement(mbr, added);
+    }
+
+    public void unionInto(float[] a, float[] b, float[] dst) {
+        HyperRectangle.unionInto(a, b, dst);
+    }
+
+    /**
+     * @see EntryBlock#filter(float[], long[])
+     */
+    public int filter(EntryBlock entries, float[] query, long[] mask) {
+        return entries.filter(query, mask);
+    }
+
+    /**
+     * @see EntryBlock#minDistances(float[], float[])
+     */
+    public void minDistances(EntryBlock entries, float[] cords, float[] out) {
+        entries.minDistances(cords, out);
+    }
+
+    /**
+     * clears the bits past size in the last word of mask and sets all others.
+     * @return number of words used for size entries
+     */
+    protected static int initMask(long[] mask, int size) {
+        int words = (size + 63) >>> 6;
+        for (int w = 0; w < words; w++) {
+            mask[w] = -1L;
+        }
+        if ((size & 63) != 0) {
+            mask[words - 1] = (1L << (size & 63)) - 1;
+        }
+        return words;
+    }
+
+    protected static int countMask(long[] mask, int words) {
+        int count = 0;
+        for (int w = 0; w < words; w++) {
+            count += Long.bitCount(mask[w]);
+        }
+        return count;
+    }
+}
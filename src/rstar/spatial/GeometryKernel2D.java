@@ -0,0 +1,93 @@
+package rstar.spatial;
+
+/**
+ * GeometryKernel unrolled for two dimensions.
+ * flat MBR layout is {max0, min0, max1, min1}.
+ */
+public final class GeometryKernel2D extends GeometryKernel {
+
+    GeometryKernel2D() {
+        super(2);
+    }
+
+    @Override
+    public boolean intersects(float[] a, float[] b) {
+        return a[0] >= b[1] && a[1] <= b[0]
+                && a[2] >= b[3] && a[3] <= b[2];
+    }
+
+    @Override
+    public boolean containsPoint(float[] mbr, float[] cords) {
+        return cords[0] <= mbr[0] && cords[0] >= mbr[1]
+                && cords[1] <= mbr[2] && cords[1] >= mbr[3];
+    }
+
+    @Override
+    public double volume(float[] mbr) {
+        return (double) (mbr[0] - mbr[1]) * (mbr[2] - mbr[3]);
+    }
+
+    @Override
+    public double margin(float[] mbr) {
+        return (double) (mbr[0] - mbr[1]) + (mbr[2] - mbr[3]);
+    }
+
+    @Override
+    public double overlapVolume(float[] a, float[] b) {
+        float x = Math.min(a[0], b[0]) - Math.max(a[1], b[1]);
+        float y = Math.min(a[2], b[2]) - Math.max(a[3], b[3]);
+        if (x < 0 || y < 0)
+            return 0;
+        return (double) x * y;
+    }
+
+    @Override
+    public double enlargement(float[] mbr, float[] added) {
+        double enlarged = (double) (Math.max(mbr[0], added[0]) - Math.min(mbr[1], added[1]))
+                * (Math.max(mbr[2], added[2]) - Math.min(mbr[3], added[3]));
+        return enlarged - volume(mbr);
+    }
+
+    @Override
+    public void unionInto(float[] a, float[] b, float[] dst) {
+        dst[0] = Math.max(a[0], b[0]);
+        dst[1] = Math.min(a[1], b[1]);
+        dst[2] = Math.max(a[2], b[2]);
+        dst[3] = Math.min(a[3], b[3]);
+    }
+
+    @Override
+    public int filter(EntryBlock entries, float[] query, long[] mask) {
+        int size = entries.size();
+        int words = initMask(mask, size);
+        float[][] columns = entries.getColumns();
+        float[] max0 = columns[0], min0 = columns[1], max1 = columns[2], min1 = columns[3];
+        float qMax0 = query[0], qMin0 = query[1], qMax1 = query[2], qMin1 = query[3];
+
+        for (int w = 0, base = 0; w < words; w++, base += 64) {
+            long word = mask[w];
+            int end = Math.min(64, size - base);
+            for (int i = 0; i < end; i++) {
+                int e = base + i;
+                long fail = (max0[e] < qMin0 | min0[e] > qMax0 | max1[e] < qMin1 | min1[e] > qMax1) ? 1L : 0L;
+                word &= ~(fail << i);
+            }
+            mask[w] = word;
+        }
+        return countMask(mask, words);
+    }
+
+    @Override
+    public void minDistances(EntryBlock entries, float[] cords, float[] out) {
+        int size = entries.size();
+        float[][] columns = entries.getColumns();
+        float[] max0 = columns[0], min0 = columns[1], max1 = columns[2], min1 = columns[3];
+        float p0 = cords[0], p1 = cords[1];
+
+        for (int e = 0; e < size; e++) {
+            float x = Math.max(0f, Math.max(min0[e] - p0, p0 - max0[e]));
+            float y = Math.max(0f, Math.max(min1[e] - p1, p1 - max1[e]));
+            out[e] = x * x + y * y;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package rstar.spatial;
+
+/**
+ * GeometryKernel unrolled for three dimensions.
+ * flat MBR layout is {max0, min0, max1, min1, max2, min2}.
+ */
+public final class GeometryKernel3D extends GeometryKernel {
+
+    GeometryKernel3D() {
+        super(3);
+    }
+
+    @Override
+    public boolean intersects(float[] a, float[] b) {
+        return a[0] >= b[1] && a[1] <= b[0]
+                && a[2] >= b[3] && a[3] <= b[2]
+                && a[4] >= b[5] && a[5] <= b[4];
+    }
+
+    @Override
+    public boolean containsPoint(float[] mbr, float[] cords) {
+        return cords[0] <= mbr[0] && cords[0] >= mbr[1]
+                && cords[1] <= mbr[2] && cords[1] >= mbr[3]
+                && cords[2] <= mbr[4] && cords[2] >= mbr[5];
+    }
+
+    @Override
+    public double volume(float[] mbr) {
+        return (double) (mbr[0] - mbr[1]) * (mbr[2] - mbr[3]) * (mbr[4] - mbr[5]);
+    }
+
+    @Override
+    public double margin(float[] mbr) {
+        return (double) (mbr[0] - mbr[1]) + (mbr[2] - mbr[3]) + (mbr[4] - mbr[5]);
+    }
+
+    @Override
+    public double overlapVolume(float[] a, float[] b) {
+        float x = Math.min(a[0], b[0]) - Math.max(a[1], b[1]);
+        float y = Math.min(a[2], b[2]) - Math.max(a[3], b[3]);
+        float z = Math.min(a[4], b[4]) - Math.max(a[5], b[5]);
+        if (x < 0 || y < 0 || z < 0)
+            return 0;
+        return (double) x * y * z;
+    }
+
+    @Override
+    public double enlargement(float[] mbr, float[] added) {
+        double enlarged = (double) (Math.max(mbr[0], added[0]) - Math.min(mbr[1], added[1]))
+                * (Math.max(mbr[2], added[2]) - Math.min(mbr[3], added[3]))
+                * (Math.max(mbr[4], added[4]) - Math.min(mbr[5], added[5]));
+        return enlarged - volume(mbr);
+    }
+
+    @Override
+    public void unionInto(float[] a, float[] b, float[] dst) {
+        dst[0] = Math.max(a[0], b[0]);
+        dst[1] = Math.min(a[1], b[1]);
+        dst[2] = Math.max(a[2], b[2]);
+        dst[3] = Math.min(a[3], b[3]);
+        dst[4] = Math.max(a[4], b[4]);
+        dst[5] = Math.min(a[5], b[5]);
+    }
+
+    @Override
+    public int filter(EntryBlock entries, float[] query, long[] mask) {
+        int size = entries.size();
+        int words = initMask(mask, size);
+        float[][] columns = entries.getColumns();
+        float[] max0 = columns[0], min0 = columns[1], max1 = columns[2], min1 = columns[3], max2 = columns[4], min2 = columns[5];
+        float qMax0 = query[0], qMin0 = query[1], qMax1 = query[2], qMin1 = query[3], qMax2 = query[4], qMin2 = query[5];
+
+        for (int w = 0, base = 0; w < words; w++, base += 64) {
+            long word = mask[w];
+            int end = Math.min(64, size - base);
+            for (int i = 0; i < end; i++) {
+                int e = base + i;
+                long fail = (max0[e] < qMin0 | min0[e] > qMax0 | max1[e] < qMin1 | min1[e] > qMax1
+                        | max2[e] < qMin2 | min2[e] > qMax2) ? 1L : 0L;
+                word &= ~(fail << i);
+            }
+            mask[w] = word;
+        }
+        return countMask(mask, words);
+    }
+
+    @Override
+    public void minDistances(EntryBlock entries, float[] cords, float[] out) {
+        int size = entries.size();
+        float[][] columns = entries.getColumns();
+        float[] max0 = columns[0], min0 = columns[1], max1 = columns[2], min1 = columns[3], max2 = columns[4], min2 = columns[5];
+        float p0 = cords[0], p1 = cords[1], p2 = cords[2];
+
+        for (int e = 0; e < size; e++) {
+            float x = Math.max(0f, Math.max(min0[e] - p0, p0 - max0[e]));
+            float y = Math.max(0f, Math.max(min1[e] - p1, p1 - max1[e]));
+            float z = Math.max(0f, Math.max(min2[e] - p2, p2 - max2[e]));
+            out[e] = x * x + y * y + z * z;
+        }
+    }
+}
@@ -3,82 +3,99 @@ package rstar.spatial;
 import rstar.nodes.RStarNode;
 import rstar.dto.MbrDTO;
 import rstar.interfaces.IDtoConvertible;
-import util.Constants;
 
 import java.util.List;
 
 public class HyperRectangle implements IDtoConvertible {
     private int _dimension;
     /**
-     * points is a 2D double array containing
-     * the max and min values for each dimension
-     * in the rectangle.
+     * points is a flat float array of length 2*dimension
+     * containing the max and min values for each dimension
+     * in the rectangle. the bounds of dimension i are at
+     * index 2*i + MAX_CORD and 2*i + MIN_CORD.
      */
-    private float[][] points;
+    private float[] points;
     public static final int MAX_CORD = 0;
     public static final int MIN_CORD = 1;
 
-    public float[][] getPoints() {
+    public float[] getPoints() {
         return points;
     }
 
-    public void setPoints(float[][] points) {
+    public void setPoints(float[] points) {
         this.points = points;
     }
 
+    public int getDimension() {
+        return _dimension;
+    }
+
+    /**
+     * @param dimension the dimension to read
+     * @param cord MAX_CORD or MIN_CORD
+     * @return the requested bound of this MBR
+     */
+    public float getCord(int dimension, int cord) {
+        return points[(dimension << 1) + cord];
+    }
+
+    /**
+     * an empty MBR: every max bound is -infinity and every min
+     * bound +infinity, so the first update sets both
+     */
     public HyperRectangle(int dimension) {
         this._dimension = dimension;
-        points = new float[dimension][2];
+        points = new float[dimension << 1];
+        for (int i = 0; i < dimension; i++) {
+            points[(i << 1) + MAX_CORD] = Float.NEGATIVE_INFINITY;
+            points[(i << 1) + MIN_CORD] = Float.POSITIVE_INFINITY;
+        }
     }
 
     public HyperRectangle(int dimension, SpatialPoint[] points) {
-        this._dimension = dimension;
-        this.points = new float[dimension][2];
-
+        this(dimension);
         update(points);
     }
 
     public <T> HyperRectangle(int dimension, List<T> points) {
-        this._dimension = dimension;
-        this.points = new float[dimension][2];
+        this(dimension);
         update(points);
-        /*if (points.get(0) instanceof RStarNode)
-            update(List<RStarNode> points);
-        else
-            update((List<SpatialPoint>) points);*/
     }
 
     public HyperRectangle(MbrDTO dto) {
-        this._dimension = Constants.DIMENSION;
+        this._dimension = dto.points.length >> 1;
         this.points = dto.points;
     }
 
     public HyperRectangle(float[] cords) {
         this._dimension = cords.length;
-        points = new float[_dimension][2];
+        points = new float[_dimension << 1];
         for (int i = 0; i < _dimension; i++) {
-            points[i][MAX_CORD] = cords[i];
-            points[i][MIN_CORD] = cords[i];
+            points[(i << 1) + MAX_CORD] = cords[i];
+            points[(i << 1) + MIN_CORD] = cords[i];
         }
     }
 
     public void update(SpatialPoint newPoint) {
-        SpatialPoint[] newPoints = new SpatialPoint[1];
-        newPoints[0] = newPoint;
-        update(newPoints);
+        update(newPoint.getCords());
     }
 
     private void update(SpatialPoint[] newPoints) {
         for (SpatialPoint newPoint : newPoints) {
-            float[] cord = newPoint.getCords();
-            assert cord.length == _dimension;
-            for (int i = 0; i < cord.length; i++) {
-                if (points[i][MAX_CORD] == 0 || points[i][MAX_CORD] < cord[i]) {
-                    points[i][MAX_CORD] = cord[i];
-                }
-                if (points[i][MIN_CORD] == 0 || points[i][MIN_CORD] > cord[i]) {
-                    points[i][MIN_CORD] = cord[i];
-                }
+            update(newPoint.getCords());
+        }
+    }
+
+    private void update(float[] cord) {
+        assert cord.length == _dimension;
+        for (int i = 0; i < cord.length; i++) {
+            int max = (i << 1) + MAX_CORD;
+            int min = (i << 1) + MIN_CORD;
+            if (points[max] < cord[i]) {
+                points[max] = cord[i];
+            }
+            if (points[min] > cord[i]) {
+                points[min] = cord[i];
             }
         }
     }
@@ -86,45 +103,26 @@ public class HyperRectangle implements IDtoConvertible {
     private <T> void update(List<T> newPoints) {
         if (newPoints.get(0) instanceof SpatialPoint) {
             for (T newPoint : newPoints) {
-                float[] cord = ((SpatialPoint) newPoint).getCords();
-                assert cord.length == _dimension;
-                for (int i = 0; i < cord.length; i++) {
-                    if (points[i][MAX_CORD] == 0 || points[i][MAX_CORD] < cord[i]) {
-                        points[i][MAX_CORD] = cord[i];
-                    }
-                    if (points[i][MIN_CORD] == 0 || points[i][MIN_CORD] > cord[i]) {
-                        points[i][MIN_CORD] = cord[i];
-                    }
-                }
+                update(((SpatialPoint) newPoint).getCords());
             }
         } else if (newPoints.get(0) instanceof RStarNode) {
             for (T node : newPoints) {
-            update(((RStarNode) node).getMBR());
-        }
-        }
-    }
-
-    private void update(RStarNode[] nodes) {
-        for (RStarNode node : nodes) {
-            update(node.getMBR());
+                update(((RStarNode) node).getMBR());
+            }
         }
     }
 
-//    private void update(List<RStarNode> nodes) {
-//        for (RStarNode node : nodes) {
-//            update(node.getMBR());
-//        }
-//    }
-
     public void update(HyperRectangle addedRegion) {
-        float[][] newPoints = addedRegion.getPoints();
-        assert newPoints.length == _dimension;
-        for (int j = 0; j < _dimension; j++) {
-            if (points[j][MAX_CORD] == 0 || points[j][MAX_CORD] < newPoints[j][MAX_CORD]) {
-                points[j][MAX_CORD] = newPoints[j][MAX_CORD];
+        float[] newPoints = addedRegion.getPoints();
+        assert newPoints.length == points.length;
+        for (int j = 0; j < points.length; j += 2) {
+            int max = j + MAX_CORD;
+            int min = j + MIN_CORD;
+            if (points[max] < newPoints[max]) {
+                points[max] = newPoints[max];
             }
-            if (points[j][MIN_CORD] == 0 || points[j][MIN_CORD] > newPoints[j][MIN_CORD]) {
-                points[j][MIN_CORD] = newPoints[j][MIN_CORD];
+            if (points[min] > newPoints[min]) {
+                points[min] = newPoints[min];
             }
         }
     }
@@ -136,39 +134,44 @@ public class HyperRectangle implements IDtoConvertible {
      * @return the intersecting region, null if not intersecting
      */
     public HyperRectangle getIntersection(HyperRectangle otherMBR) {
-        float[][] interPoints = new float[_dimension][2];
-        float[][] newPoints = otherMBR.getPoints();
-        assert newPoints.length == _dimension;
-
-        boolean intersectExists = true;
-        for (int i = 0; i < _dimension; i++) {
-            if ((points[i][MAX_CORD] < newPoints[i][MIN_CORD]) || (points[i][MIN_CORD] > newPoints[i][MAX_CORD])) {
-                intersectExists = false;
-                break;
-            }
-            interPoints[i][MAX_CORD] = Math.min(newPoints[i][MAX_CORD], points[i][MAX_CORD]);
-            interPoints[i][MIN_CORD] = Math.max(newPoints[i][MIN_CORD], points[i][MIN_CORD]);
-        }
-
-        if (!intersectExists) {
+        if (!intersects(points, otherMBR.getPoints())) {
             return null;
         }
+        float[] newPoints = otherMBR.getPoints();
+        float[] interPoints = new float[points.length];
+        for (int j = 0; j < points.length; j += 2) {
+            interPoints[j + MAX_CORD] = Math.min(newPoints[j + MAX_CORD], points[j + MAX_CORD]);
+            interPoints[j + MIN_CORD] = Math.max(newPoints[j + MIN_CORD], points[j + MIN_CORD]);
+        }
+
         HyperRectangle intersect = new HyperRectangle(_dimension);
         intersect.setPoints(interPoints);
         return intersect;
     }
 
+    /**
+     * @param otherMBR the mbr to test against
+     * @return true if this MBR and otherMBR share at least one point
+     */
+    public boolean intersects(HyperRectangle otherMBR) {
+        return intersects(points, otherMBR.getPoints());
+    }
+
+    /**
+     * @param cords co-ordinates of a point
+     * @return true if the point lies inside or on the border of this MBR
+     */
+    public boolean containsPoint(float[] cords) {
+        return containsPoint(points, cords);
+    }
+
     /**
      * finds the increment in volume of the newMbr is
      * added
      * @return 0 if no incement
      */
     public double deltaV_onInclusion(HyperRectangle newmbr) {
-        HyperRectangle tempMbr = new HyperRectangle(_dimension);
-        tempMbr.setPoints(points);
-        tempMbr.update(newmbr);
-
-        return tempMbr.volume() - this.volume();
+        return enlargement(points, newmbr.getPoints());
     }
 
     /**
@@ -177,11 +180,7 @@ public class HyperRectangle implements IDtoConvertible {
      * @return the volume of this MBR
      */
     public double volume() {
-        double vol = 1;
-        for (float[] point : points) {
-            vol *= point[MAX_CORD] - point[MIN_CORD];
-        }
-        return vol;
+        return volume(points);
     }
 
     /**
@@ -190,11 +189,7 @@ public class HyperRectangle implements IDtoConvertible {
      * @return the margin of this MBR
      */
     public double margin() {
-        double margin = 0;
-        for (float[] point : points) {
-            margin += point[MAX_CORD] - point[MIN_CORD];
-        }
-        return margin;
+        return margin(points);
     }
 
     /**
@@ -206,11 +201,7 @@ public class HyperRectangle implements IDtoConvertible {
      *         and the given MBR
      */
     public double overlap(HyperRectangle mbr) {
-        HyperRectangle intersect = this.getIntersection(mbr);
-        if (intersect == null) {
-            return 0;
-        }
-        return intersect.volume();
+        return overlapVolume(points, mbr.getPoints());
     }
 
     /**
@@ -223,18 +214,113 @@ public class HyperRectangle implements IDtoConvertible {
         if (this._dimension != mbr._dimension)
             throw new IllegalArgumentException("This MBR and the given MBR need same dimensionality");
 
-        float[][] otherPoints = mbr.getPoints();
-        float[][] unionPoints = new float[_dimension][2];
-
-        for (int i = 0; i < this._dimension; i++) {
-            unionPoints[i][MIN_CORD] = Math.min(this.points[i][MIN_CORD], otherPoints[i][MIN_CORD]);
-            unionPoints[i][MAX_CORD] = Math.max(this.points[i][MAX_CORD], otherPoints[i][MAX_CORD]);
-        }
         HyperRectangle union = new HyperRectangle(_dimension);
-        union.setPoints(unionPoints);
+        unionInto(points, mbr.getPoints(), union.getPoints());
         return union;
     }
 
+    /*
+     ***** ALLOCATION FREE KERNELS ****
+     * all of these work on the flat layout used by getPoints()
+     * (max and min of dimension i at 2*i+MAX_CORD and 2*i+MIN_CORD)
+     * and never create objects, so they are safe to call per entry
+     * on the query and insert paths.
+     */
+
+    /**
+     * @return true if the two MBRs share at least one point
+     */
+    public static boolean intersects(float[] a, float[] b) {
+        for (int j = 0; j < a.length; j += 2) {
+            if (a[j + MAX_CORD] < b[j + MIN_CORD] || a[j + MIN_CORD] > b[j + MAX_CORD]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * intersects() for an MBR stored at offset in a larger array
+     * @param b flat MBR, its length gives the dimension
+     */
+    public static boolean intersects(float[] a, int offset, float[] b) {
+        for (int j = 0; j < b.length; j += 2) {
+            if (a[offset + j + MAX_CORD] < b[j + MIN_CORD] || a[offset + j + MIN_CORD] > b[j + MAX_CORD]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param mbr flat MBR
+     * @param cords co-ordinates of a point, one per dimension
+     * @return true if the point lies inside or on the border of mbr
+     */
+    public static boolean containsPoint(float[] mbr, float[] cords) {
+        for (int i = 0, j = 0; i < cords.length; i++, j += 2) {
+            if (cords[i] > mbr[j + MAX_CORD] || cords[i] < mbr[j + MIN_CORD]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return volume of the intersection of a and b, 0 if they
+     * do not intersect
+     */
+    public static double overlapVolume(float[] a, float[] b) {
+        double vol = 1;
+        for (int j = 0; j < a.length; j += 2) {
+            float side = Math.min(a[j + MAX_CORD], b[j + MAX_CORD]) - Math.max(a[j + MIN_CORD], b[j + MIN_CORD]);
+            if (side < 0) {
+                return 0;
+            }
+            vol *= side;
+        }
+        return vol;
+    }
+
+    /**
+     * @return increase in the volume of mbr if added is included in it
+     */
+    public static double enlargement(float[] mbr, float[] added) {
+        double vol = 1;
+        double enlarged = 1;
+        for (int j = 0; j < mbr.length; j += 2) {
+            vol *= mbr[j + MAX_CORD] - mbr[j + MIN_CORD];
+            enlarged *= Math.max(mbr[j + MAX_CORD], added[j + MAX_CORD]) - Math.min(mbr[j + MIN_CORD], added[j + MIN_CORD]);
+        }
+        return enlarged - vol;
+    }
+
+    /**
+     * writes the union of a and b into dst. dst may be a or b.
+     */
+    public static void unionInto(float[] a, float[] b, float[] dst) {
+        for (int j = 0; j < a.length; j += 2) {
+            dst[j + MAX_CORD] = Math.max(a[j + MAX_CORD], b[j + MAX_CORD]);
+            dst[j + MIN_CORD] = Math.min(a[j + MIN_CORD], b[j + MIN_CORD]);
+        }
+    }
+
+    public static double volume(float[] mbr) {
+        double vol = 1;
+        for (int j = 0; j < mbr.length; j += 2) {
+            vol *= mbr[j + MAX_CORD] - mbr[j + MIN_CORD];
+        }
+        return vol;
+    }
+
+    public static double margin(float[] mbr) {
+        double margin = 0;
+        for (int j = 0; j < mbr.length; j += 2) {
+            margin += mbr[j + MAX_CORD] - mbr[j + MIN_CORD];
+        }
+        return margin;
+    }
+
     @Override
     public MbrDTO toDTO() {
         return new MbrDTO(points);
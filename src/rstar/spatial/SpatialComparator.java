@@ -1,7 +1,6 @@
 package rstar.spatial;
 
 import rstar.nodes.RStarNode;
-import util.Constants;
 
 import java.util.Comparator;
 
@@ -39,29 +38,30 @@ public class SpatialComparator implements Comparator {
     */
     @Override
     public int compare(Object o1, Object o2) {
-        HyperRectangle mbr1, mbr2;
-        if (o1 instanceof SpatialPoint) {
-            SpatialPoint[] temp = new SpatialPoint[1];
-            temp[0] = (SpatialPoint) o1;
-            mbr1 = new HyperRectangle(Constants.DIMENSION, temp);
-            temp[0] = (SpatialPoint)o2;
-            mbr2 = new HyperRectangle(Constants.DIMENSION, temp);
-        }
-        else if (o1 instanceof RStarNode) {
-             mbr1 = ((RStarNode)o1).getMBR();
-             mbr2 = ((RStarNode)o2).getMBR();
-        } else {
-            mbr1 = (HyperRectangle) o1;
-            mbr2 = (HyperRectangle) o2;
-        }
+        float value1 = valueOf(o1);
+        float value2 = valueOf(o2);
 
         int answer = 0;
-        if (mbr1.getPoints()[dimension][order] < mbr2.getPoints()[dimension][order])
+        if (value1 < value2)
             answer = -1;
 
-        if (mbr1.getPoints()[dimension][order] > mbr2.getPoints()[dimension][order])
+        if (value1 > value2)
             answer = 1;
 
         return answer;
     }
+
+    /**
+     * reads the sorting co-ordinate of an entry without
+     * building an MBR for it. a point is its own min and max.
+     */
+    private float valueOf(Object o) {
+        if (o instanceof SpatialPoint) {
+            return ((SpatialPoint) o).getCords()[dimension];
+        }
+        else if (o instanceof RStarNode) {
+            return ((RStarNode) o).getMBR().getCord(dimension, order);
+        }
+        return ((HyperRectangle) o).getCord(dimension, order);
+    }
 }
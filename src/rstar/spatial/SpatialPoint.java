@@ -55,22 +55,27 @@ public class SpatialPoint implements IDtoConvertible {
     }
 
     /**
-     * calculate distance of this point with <pre>otherPoint</pre>
+     * calculate euclidean distance of this point with <pre>otherPoint</pre>
      * @param otherPoint the point from which this point's
      *                   distance is to be calculated
      * @return distance from <pre>otherPoint</pre>
      */
     public float distance(SpatialPoint otherPoint) {
+        return (float) Math.sqrt(squaredDistance(otherPoint));
+    }
+
+    /**
+     * @return squared euclidean distance from <pre>otherPoint</pre>,
+     * cheaper than distance() when only comparing
+     */
+    public float squaredDistance(SpatialPoint otherPoint) {
         float[] otherPoints = otherPoint.getCords();
         float distance = 0;
         for (int i = 0; i < _cords.length; i++) {
-            float tmp = (_cords[i] * _cords[i]) - (otherPoints[i] * otherPoints[i]);
-            if(tmp < 0)
-                tmp = -1 * tmp;
-
-            distance += tmp;
+            float tmp = _cords[i] - otherPoints[i];
+            distance += tmp * tmp;
         }
-        return (float)Math.pow(distance, 0.5);
+        return distance;
     }
 
     @Override
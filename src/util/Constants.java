@@ -11,10 +11,76 @@ public class Constants {
     public static final String DATA_FILE = "dataStore.dat";
     public static final String NODE_FILE_PREFIX = "rstar_";
     public static final String NODE_FILE_SUFFIX = ".node";
+    public static final String WAL_FILE = "rstar.wal";
 
     public static int PAGESIZE = 8*1024;
+    /**
+     * capacities of directory nodes and of leaves, set by the tree
+     * from PAGESIZE and the entry size of its node codec
+     */
     public static int MAX_CHILDREN;
     public static int MIN_CHILDREN;
+    public static int MAX_LEAF_CHILDREN;
+    public static int MIN_LEAF_CHILDREN;
+    /**
+     * least share of a full node each half of a split receives
+     */
+    public static float INTERNAL_MIN_FILL = 0.4f;
+    public static float LEAF_MIN_FILL = 0.4f;
     public static int DIMENSION = 2;
-}
 
+    /**
+     * filter node entries with the Vector API kernel of the vector
+     * source root when it is compiled in and jdk.incubator.vector
+     * is added; the scalar kernels are used otherwise
+     */
+    public static boolean VECTOR_KERNELS = true;
+
+    /**
+     * X-tree: highest overlap (intersection volume / union volume)
+     * accepted for a directory split before trying the split history
+     */
+    public static float MAX_OVERLAP = 0.2f;
+    /**
+     * X-tree: least share of entries each half of an
+     * overlap-minimal directory split must receive
+     */
+    public static float MIN_FANOUT_RATIO = 0.35f;
+
+    /**
+     * log every insert to WAL_FILE before its pages reach the node files
+     */
+    public static boolean WAL_ENABLED = true;
+    /**
+     * how long a committing insert waits for others to share its fsync
+     */
+    public static long WAL_GROUP_COMMIT_MICROS = 0;
+    /**
+     * log size after which the node files are synced and the log emptied
+     */
+    public static long WAL_CHECKPOINT_BYTES = 4*1024*1024;
+
+    /**
+     * threads reading node files ahead of range and kNN searches,
+     * 0 reads every node on the searching thread
+     */
+    public static int PREFETCH_THREADS = 8;
+    /**
+     * nearest children of an expanded node a kNN search reads ahead
+     */
+    public static int KNN_PREFETCH = 4;
+
+    /**
+     * levels from the root a tree keeps in memory once opened,
+     * within PIN_BYTES of node pages
+     */
+    public static int PIN_LEVELS = 2;
+    public static long PIN_BYTES = 64*1024*1024;
+
+    /**
+     * count node loads, splits and operation latencies per tree,
+     * and register each tree's counters as an MBean
+     */
+    public static boolean METRICS_ENABLED = true;
+    public static boolean METRICS_JMX = true;
+}
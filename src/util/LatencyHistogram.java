@@ -0,0 +1,130 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * histogram of latencies in the style of HdrHistogram: values are
+ * counted in log-linear buckets, 2^SUB_BUCKET_BITS per power of two,
+ * so any long is recorded in constant time and space and every
+ * percentile is exact to within 1 / 2^(SUB_BUCKET_BITS-1) (under 1%).
+ *
+ * not thread safe; give every recording thread its own and add()
+ * them up for the report.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF = SUB_BUCKETS >> 1;
+
+    private final long[] counts = new long[SUB_BUCKETS + (64 - SUB_BUCKET_BITS) * HALF];
+    private long total;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private double sum;
+
+    /**
+     * @param value latency, negative values count as 0
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts[indexOf(value)]++;
+        total++;
+        sum += value;
+        if (value < min)
+            min = value;
+        if (value > max)
+            max = value;
+    }
+
+    /**
+     * records value and, if it is longer than the interval at which
+     * operations were meant to start, the latencies of the operations
+     * a closed loop client would have had to delay meanwhile
+     * (value - interval, value - 2*interval, ...). this corrects for
+     * coordinated omission when the client can't run open loop.
+     * @param expectedInterval intended time between operation starts,
+     *                         0 records value alone
+     */
+    public void recordCorrected(long value, long expectedInterval) {
+        record(value);
+        if (expectedInterval <= 0)
+            return;
+        for (long missed = value - expectedInterval; missed >= expectedInterval; missed -= expectedInterval) {
+            record(missed);
+        }
+    }
+
+    /**
+     * adds the counts of other to this histogram
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long getCount() {
+        return total;
+    }
+
+    public long getMin() {
+        return total == 0 ? 0 : min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getMean() {
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the highest value of the bucket holding the given
+     * percentile, at most the largest value recorded; 0 if empty
+     */
+    public long valueAtPercentile(double percentile) {
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(Math.min(Math.max(percentile, 0), 100) / 100 * total);
+        rank = Math.max(rank, 1);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highestValueOf(i), max);
+        }
+        return max;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        // shift so the value keeps SUB_BUCKET_BITS significant bits
+        int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+        int mantissa = (int) (value >>> shift);             // in [HALF, SUB_BUCKETS)
+        return SUB_BUCKETS + (shift - 1) * HALF + (mantissa - HALF);
+    }
+
+    private static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int shift = (index - SUB_BUCKETS) / HALF + 1;
+        long mantissa = (index - SUB_BUCKETS) % HALF + HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,82 @@
+package util;
+
+import java.util.Arrays;
+
+/**
+ * binary min heap of float keys with a long value each, kept in
+ * primitive arrays that only ever grow. used by the best first
+ * kNN searches, which would otherwise box every candidate.
+ */
+public class MinHeap {
+    private float[] keys;
+    private long[] values;
+    private int size;
+
+    public MinHeap(int capacity) {
+        keys = new float[Math.max(capacity, 1)];
+        values = new long[keys.length];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * @return smallest key, the heap must not be empty
+     */
+    public float peekKey() {
+        return keys[0];
+    }
+
+    public void push(float key, long value) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+            values = Arrays.copyOf(values, size << 1);
+        }
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key)
+                break;
+            keys[i] = keys[parent];
+            values[i] = values[parent];
+            i = parent;
+        }
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    /**
+     * removes the entry with the smallest key
+     * @return its value
+     */
+    public long pop() {
+        long top = values[0];
+        int last = --size;
+        float key = keys[last];
+        long value = values[last];
+        int i = 0;
+        int half = last >>> 1;
+        while (i < half) {
+            int child = (i << 1) + 1;
+            if (child + 1 < last && keys[child + 1] < keys[child])
+                child++;
+            if (key <= keys[child])
+                break;
+            keys[i] = keys[child];
+            values[i] = values[child];
+            i = child;
+        }
+        keys[i] = key;
+        values[i] = value;
+        return top;
+    }
+}
@@ -6,64 +6,247 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * logger with an asynchronous backend: a message is put into a
+ * preallocated ring buffer and a background thread writes the
+ * messages to the console and the log files in batches, so a
+ * logging thread never waits for I/O or for other loggers.
+ *
+ * when the buffer is full a logging thread waits for the writer to
+ * free a slot, so no output is lost. with FULL_POLICY set to DROP,
+ * debug and info messages are dropped and counted instead, and the
+ * count is reported with the next batch; errors always wait.
+ *
+ * messages below LEVEL are discarded; guard expensive messages
+ * with isEnabled() so they aren't built at all.
+ */
 public class Trace {
-	
+	public static final int DEBUG = 0;
+	public static final int INFO = 1;
+	public static final int ERROR = 2;
+
 	public static int VERBOSE_MODE = 1;
 	public static int WRITE_LOG = 0;
-	
-	private static FileChannel fc;
-	private RandomAccessFile logfile;
-	
+	/**
+	 * least level logged
+	 */
+	public static int LEVEL = INFO;
+
+	public static final int BLOCK = 0;
+	public static final int DROP = 1;
+	/**
+	 * what a debug or info message does when the buffer is full:
+	 * BLOCK waits for a free slot, DROP gives up on the message.
+	 * keep BLOCK where the log is the program output, as for Q1.
+	 */
+	public static int FULL_POLICY = BLOCK;
+	/**
+	 * slots of the ring buffer, a power of two
+	 */
+	private static final int BUFFER_SIZE = 8192;
+	private static final long IDLE_PARK_NANOS = 1000000;
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	/*
+	 * the ring: a producer claims position tail, fills slot
+	 * tail % BUFFER_SIZE and publishes it by setting the slot's
+	 * sequence to position + 1. the writer takes it when it sees
+	 * that sequence and frees the slot by setting it to
+	 * position + BUFFER_SIZE, the position that may use it next.
+	 */
+	private static final String[] messages = new String[BUFFER_SIZE];
+	private static final int[] kinds = new int[BUFFER_SIZE];
+	private static final Trace[] loggers = new Trace[BUFFER_SIZE];
+	private static final AtomicLongArray sequences = new AtomicLongArray(BUFFER_SIZE);
+	private static final AtomicLong tail = new AtomicLong();
+	private static final AtomicLong dropped = new AtomicLong();
+	/**
+	 * messages written so far, read by flush()
+	 */
+	private static volatile long written = 0;
+	private static Thread writer;
+
+	private static final int LINE = 0;
+	private static final int INLINE = 1;
+	private static final int ERROR_LINE = 2;
+
+	private FileChannel fc;
+	/**
+	 * this logger's part of the current batch, used by the writer only
+	 */
+	private final StringBuilder pending = new StringBuilder();
+
+	static {
+		for (int i = 0; i < BUFFER_SIZE; i++) {
+			sequences.set(i, i);
+		}
+	}
+
 	public static Trace getLogger(String classname){
 		Trace logger = new Trace();
 		if(WRITE_LOG == 1){
 			try {
 				File f = new File(classname+"_Log.txt");
-				logger.logfile = new RandomAccessFile(f, "rw");
-				fc = logger.logfile.getChannel();
+				logger.fc = new RandomAccessFile(f, "rw").getChannel();
 			} catch (FileNotFoundException e) {
 				e.printStackTrace();
 			}
 		}
+		startWriter();
 		return logger;
 	}
+
+	/**
+	 * @return whether a message of level would be written anywhere
+	 */
+	public boolean isEnabled(int level) {
+		return level >= LEVEL && (VERBOSE_MODE == 1 || fc != null);
+	}
+
+	public void debug(String str) {
+		if (isEnabled(DEBUG))
+			publish(str, LINE);
+	}
+
 	public void trace(String str)  {
-		if(VERBOSE_MODE == 1)
-			System.out.println(str);
+		if (isEnabled(INFO))
+			publish(str, LINE);
+	}
 
-		if(WRITE_LOG == 1){
-			try {
-				fc.write(ByteBuffer.wrap((str+"\n").getBytes()));
-			} catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
 	public void traceInline(String str) {
-		if(VERBOSE_MODE == 1)
-			System.out.print(str);
-		
-		if(WRITE_LOG == 1){
-			try {
-				fc.write(ByteBuffer.wrap((str).getBytes()));
-			} catch (IOException e) {
-				e.printStackTrace();
+		if (isEnabled(INFO))
+			publish(str, INLINE);
+	}
+
+	public void traceError(String str) {
+		if (isEnabled(ERROR))
+			publish(str, ERROR_LINE);
+	}
+
+	/**
+	 * waits until every message logged so far has been written
+	 */
+	public static void flush() {
+		long target = tail.get();
+		while (written < target && writer != null && writer.isAlive()) {
+			LockSupport.parkNanos(IDLE_PARK_NANOS / 10);
+		}
+	}
+
+	private void publish(String message, int kind) {
+		while (true) {
+			long position = tail.get();
+			int slot = (int) (position & (BUFFER_SIZE - 1));
+			long sequence = sequences.get(slot);
+			if (sequence < position) {
+				// full, the writer is a lap behind
+				if ((FULL_POLICY == DROP && kind != ERROR_LINE) || !writer.isAlive()) {
+					dropped.incrementAndGet();
+					return;
+				}
+				LockSupport.parkNanos(IDLE_PARK_NANOS / 100);
+				continue;
+			}
+			if (sequence == position && tail.compareAndSet(position, position + 1)) {
+				messages[slot] = message;
+				kinds[slot] = kind;
+				loggers[slot] = this;
+				sequences.lazySet(slot, position + 1);
+				return;
 			}
 		}
 	}
-	
-	public void traceError(String str) {
-		if(VERBOSE_MODE == 1)
-			System.err.println(str);
-
-        if(WRITE_LOG == 1){
-            try {
-                fc.write(ByteBuffer.wrap(("Error: "+str+"\n").getBytes()));
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+
+	private static synchronized void startWriter() {
+		if (writer != null)
+			return;
+		writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeForever();
+			}
+		}, "trace-writer");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}));
 	}
-}
 
+	private static void writeForever() {
+		StringBuilder out = new StringBuilder();
+		StringBuilder err = new StringBuilder();
+		List<Trace> toFiles = new ArrayList<Trace>();
+		long head = 0;
+		while (true) {
+			long batchStart = head;
+			while (head - batchStart < BUFFER_SIZE) {
+				int slot = (int) (head & (BUFFER_SIZE - 1));
+				if (sequences.get(slot) != head + 1)
+					break;
+				String message = messages[slot];
+				int kind = kinds[slot];
+				Trace logger = loggers[slot];
+				messages[slot] = null;
+				loggers[slot] = null;
+				sequences.lazySet(slot, head + BUFFER_SIZE);
+				head++;
+
+				if (VERBOSE_MODE == 1) {
+					StringBuilder console = kind == ERROR_LINE ? err : out;
+					console.append(message);
+					if (kind != INLINE)
+						console.append('\n');
+				}
+				if (logger.fc != null) {
+					if (logger.pending.length() == 0)
+						toFiles.add(logger);
+					if (kind == ERROR_LINE)
+						logger.pending.append("Error: ");
+					logger.pending.append(message);
+					if (kind != INLINE)
+						logger.pending.append('\n');
+				}
+			}
+
+			long lost = dropped.getAndSet(0);
+			if (lost > 0)
+				err.append(lost).append(" log messages dropped, the log buffer was full\n");
+			if (out.length() > 0) {
+				System.out.print(out);
+				System.out.flush();
+				out.setLength(0);
+			}
+			if (err.length() > 0) {
+				System.err.print(err);
+				err.setLength(0);
+			}
+			for (Trace logger : toFiles) {
+				try {
+					ByteBuffer bytes = ByteBuffer.wrap(logger.pending.toString().getBytes(CHARSET));
+					while (bytes.hasRemaining()) {
+						logger.fc.write(bytes);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				logger.pending.setLength(0);
+			}
+			toFiles.clear();
+
+			written = head;
+			if (head == batchStart)
+				LockSupport.parkNanos(IDLE_PARK_NANOS);
+		}
+	}
+}
@@ -3,6 +3,7 @@ package util;
 import rstar.spatial.SpatialPoint;
 
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * User: Lokesh
@@ -10,18 +11,43 @@ import java.util.List;
  * Time: 10:00 PM
  */
 public class Utils {
-    private static long idSeed = 1;
+    private static final AtomicLong idSeed = new AtomicLong(1);
 
+    /**
+     * @param list sorted values
+     * @return their median, 0 for an empty list
+     */
     public static float getMedian(List<Long> list) {
         int size = list.size();
+        if (size == 0)
+            return 0;
         if(size % 2 == 0)
-            return (list.get(size/2) + list.get(size/2 +1))/(float)2;
+            return (list.get(size/2 - 1) + list.get(size/2))/(float)2;
         else
-            return list.get((size+1)/2);
+            return list.get(size/2);
     }
 
-    public static synchronized long getRandomId() {
-        return idSeed++;
+    public static long getRandomId() {
+        return idSeed.getAndIncrement();
+    }
+
+    /**
+     * @return the id the next call to getRandomId() hands out
+     */
+    public static long peekNextId() {
+        return idSeed.get();
+    }
+
+    /**
+     * makes sure no id below next is handed out again,
+     * e.g. after reopening a tree saved with next as its next id
+     */
+    public static void advanceIdSeed(long next) {
+        long current;
+        while ((current = idSeed.get()) < next) {
+            if (idSeed.compareAndSet(current, next))
+                return;
+        }
     }
 
     public static String SpatialPointListToString(List<SpatialPoint> list) {
@@ -0,0 +1,88 @@
+package rstar;
+
+import rstar.spatial.SpatialPoint;
+import util.Constants;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * checks that points with a co-ordinate of exactly 0 stay inside
+ * their nodes' MBRs, so point and range searches find them.
+ *
+ * the tree uses fixed file names, so this refuses to run where a
+ * tree exists and removes the files it created afterwards.
+ *
+ * usage: java -ea rstar.RStarTreeTest
+ */
+public class RStarTreeTest {
+    private static final int GRID = 40;
+
+    public static void main(String[] args) {
+        if (new File(Constants.TREE_FILE).exists()) {
+            System.err.println("A tree exists in " + new File("").getAbsolutePath() + ", run from an empty directory");
+            System.exit(1);
+        }
+        Set<String> before = new HashSet<String>(Arrays.asList(new File(".").list()));
+        try {
+            zeroCoordinatesAreFound();
+        } finally {
+            for (File file : new File(".").listFiles()) {
+                if (!before.contains(file.getName()))
+                    delete(file);
+            }
+        }
+        System.out.println("RStarTreeTest passed");
+    }
+
+    /**
+     * a grid from -GRID/2 to GRID/2 on both axes, so the axes
+     * run through the middle of the tree and through many nodes
+     */
+    private static void zeroCoordinatesAreFound() {
+        RStarTree tree = new RStarTree(2);
+        for (int x = 0; x < GRID; x++) {
+            for (int y = 0; y < GRID; y++) {
+                check(tree.insert(new SpatialPoint(cords(x, y), oid(x, y))) == 1, "insert failed");
+            }
+        }
+        for (int x = 0; x < GRID; x++) {
+            for (int y = 0; y < GRID; y++) {
+                float[] cords = cords(x, y);
+                if (cords[0] != 0 && cords[1] != 0)
+                    continue;
+                check(tree.pointSearch(new SpatialPoint(cords)) == oid(x, y),
+                        "point search missed " + Arrays.toString(cords));
+                List<SpatialPoint> found = tree.rangeSearch(new SpatialPoint(cords), 0.5);
+                check(found.size() == 1 && found.get(0).getOid() == oid(x, y),
+                        "range search missed " + Arrays.toString(cords));
+            }
+        }
+    }
+
+    private static float[] cords(int x, int y) {
+        return new float[]{x - GRID / 2, y - GRID / 2};
+    }
+
+    private static float oid(int x, int y) {
+        return x * GRID + y + 1;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
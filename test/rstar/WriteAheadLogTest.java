@@ -0,0 +1,224 @@
+package rstar;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * checks that recovery replays committed operations only, that it
+ * leaves out the records of an operation that never committed, and
+ * that records of a failed flush are written by the next one.
+ *
+ * usage: java -ea rstar.WriteAheadLogTest
+ */
+public class WriteAheadLogTest {
+
+    public static void main(String[] args) throws IOException {
+        abortedRecordsAreNotReplayed();
+        failedFlushIsRetried();
+        uncommittedForceFails();
+        System.out.println("WriteAheadLogTest passed");
+    }
+
+    private static void abortedRecordsAreNotReplayed() throws IOException {
+        File file = File.createTempFile("rstar", ".wal");
+        try {
+            WriteAheadLog wal = new WriteAheadLog(file, 0);
+            long first = wal.nextLsn();
+            wal.append(first, WriteAheadLog.NODE_IMAGE, 1, new byte[]{1});
+            wal.commit(first);
+
+            long aborted = wal.nextLsn();
+            wal.append(aborted, WriteAheadLog.POINT_IMAGE, 64, new byte[]{2});
+            wal.append(aborted, WriteAheadLog.NODE_IMAGE, 2, new byte[]{2});
+
+            long last = wal.nextLsn();
+            wal.append(last, WriteAheadLog.NODE_IMAGE, 3, new byte[]{3});
+            wal.commit(last);
+
+            long torn = wal.nextLsn();
+            wal.append(torn, WriteAheadLog.NODE_IMAGE, 4, new byte[]{4});
+            wal.force(last);
+            wal.close();
+
+            wal = new WriteAheadLog(file, 0);
+            List<WriteAheadLog.Record> records = wal.recover();
+            wal.close();
+            check(records.size() == 2, "expected 2 committed records, got " + records.size());
+            check(records.get(0).lsn == first && records.get(0).id == 1, "first committed record missing");
+            check(records.get(1).lsn == last && records.get(1).id == 3, "last committed record missing");
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void failedFlushIsRetried() throws IOException {
+        File file = File.createTempFile("rstar", ".wal");
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FailingChannel channel = new FailingChannel(raf.getChannel());
+            WriteAheadLog wal = new WriteAheadLog(raf, channel, 0);
+            long first = wal.nextLsn();
+            wal.append(first, WriteAheadLog.NODE_IMAGE, 1, new byte[]{1});
+            wal.commit(first);
+
+            channel.failForce = true;
+            try {
+                wal.force(first);
+                check(false, "force did not report the failed fsync");
+            } catch (IOException expected) {
+                // the records are written, but not known to be durable
+            }
+            check(wal.getDurableLsn() < first, "failed flush made the operation durable");
+
+            long second = wal.nextLsn();
+            wal.append(second, WriteAheadLog.NODE_IMAGE, 2, new byte[]{2});
+            wal.commit(second);
+            channel.failForce = false;
+            wal.force(second);
+            check(wal.getDurableLsn() >= second, "second operation not durable");
+            wal.close();
+
+            wal = new WriteAheadLog(file, 0);
+            List<WriteAheadLog.Record> records = wal.recover();
+            wal.close();
+            check(records.size() == 2, "expected 2 committed records, got " + records.size());
+            check(records.get(0).lsn == first && records.get(0).id == 1, "records of the failed flush lost");
+            check(records.get(1).lsn == second && records.get(1).id == 2, "records after the failed flush lost");
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void uncommittedForceFails() throws IOException {
+        File file = File.createTempFile("rstar", ".wal");
+        try {
+            WriteAheadLog wal = new WriteAheadLog(file, 0);
+            long lsn = wal.nextLsn();
+            wal.append(lsn, WriteAheadLog.NODE_IMAGE, 1, new byte[]{1});
+            try {
+                wal.force(lsn);
+                check(false, "force of an uncommitted operation returned");
+            } catch (IOException expected) {
+                // no commit record, nothing to wait for
+            }
+            wal.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    /**
+     * a file channel whose force() fails on demand, after the
+     * bytes were written
+     */
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel channel;
+        boolean failForce;
+
+        FailingChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            if (failForce)
+                throw new IOException("injected fsync failure");
+            channel.force(metaData);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
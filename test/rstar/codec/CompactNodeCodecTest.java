@@ -0,0 +1,81 @@
+package rstar.codec;
+
+import rstar.dto.MbrDTO;
+import rstar.dto.NodeDTO;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static rstar.spatial.HyperRectangle.MAX_CORD;
+import static rstar.spatial.HyperRectangle.MIN_CORD;
+
+/**
+ * checks that quantized internal pages contain the real child
+ * MBRs and stay the same when rewritten.
+ *
+ * usage: java -ea rstar.codec.CompactNodeCodecTest
+ */
+public class CompactNodeCodecTest {
+    private static final int REWRITES = 50;
+
+    public static void main(String[] args) throws IOException {
+        for (int bits : new int[]{8, 16}) {
+            rewriteIsStable(bits);
+        }
+        System.out.println("CompactNodeCodecTest passed");
+    }
+
+    private static void rewriteIsStable(int bits) throws IOException {
+        CompactNodeCodec codec = new CompactNodeCodec(false, bits);
+        Random random = new Random(1);
+        int count = 50;
+        int dimension = 3;
+        float[][] entries = new float[dimension << 1][count];
+        float[] mbr = new float[dimension << 1];
+        for (int i = 0; i < dimension; i++) {
+            mbr[(i << 1) + MAX_CORD] = 1000.37f;
+            mbr[(i << 1) + MIN_CORD] = -3.11f;
+            for (int c = 0; c < count; c++) {
+                float low = -3f + random.nextFloat() * 900;
+                entries[(i << 1) + MIN_CORD][c] = low;
+                entries[(i << 1) + MAX_CORD][c] = low + random.nextFloat() * 50;
+            }
+        }
+        long[] children = new long[count];
+        for (int c = 0; c < count; c++) {
+            children[c] = c + 10;
+        }
+        NodeDTO exact = new NodeDTO(1, false, new MbrDTO(mbr), children, count, entries, 0, 1, 0);
+
+        NodeDTO first = codec.decode(codec.encode(exact));
+        check(first.getQuantizeBits() == bits, "page not quantized with " + bits + " bits");
+        for (int j = 0; j < entries.length; j++) {
+            for (int c = 0; c < count; c++) {
+                boolean contains = (j & 1) == MIN_CORD ? first.entries[j][c] <= entries[j][c]
+                                                       : first.entries[j][c] >= entries[j][c];
+                check(contains, "entry " + c + " doesn't contain the child MBR at " + bits + " bits");
+                check(CompactNodeCodec.quantizedBound(entries[j][c], j & 1, mbr[(j & ~1) + MIN_CORD],
+                        mbr[(j & ~1) + MAX_CORD], bits) == first.entries[j][c],
+                        "quantizedBound() differs from the page at " + bits + " bits");
+            }
+        }
+
+        byte[] page = codec.encode(first);
+        NodeDTO node = first;
+        for (int rewrite = 0; rewrite < REWRITES; rewrite++) {
+            node = codec.decode(codec.encode(node));
+            check(Arrays.equals(mbr, node.mbr.points), "node MBR changed at " + bits + " bits");
+            for (int j = 0; j < entries.length; j++) {
+                check(Arrays.equals(first.entries[j], node.entries[j]),
+                        "entries moved after " + (rewrite + 1) + " rewrites at " + bits + " bits");
+            }
+        }
+        check(Arrays.equals(page, codec.encode(node)), "page changed after rewrites at " + bits + " bits");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+}
@@ -0,0 +1,146 @@
+package rstar.spatial;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * GeometryKernel whose batched kernels, filter() and minDistances(),
+ * use the Vector API: one comparison tests as many entries as the
+ * CPU has float lanes. the other primitives work on a single MBR
+ * and are left to the scalar kernel of the dimension.
+ *
+ * jdk.incubator.vector is an incubator module, so this class lives
+ * in its own source root, compiled and run with
+ * --add-modules jdk.incubator.vector. GeometryKernel.forDimension()
+ * loads it by name and keeps the scalar kernel when the module or
+ * the class is missing.
+ */
+public final class VectorGeometryKernel extends GeometryKernel {
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    private final GeometryKernel scalar;
+
+    /**
+     * @param scalar kernel of the same dimension for the primitives on single MBRs
+     */
+    public VectorGeometryKernel(GeometryKernel scalar) {
+        super(scalar.getDimension());
+        if (64 % LANES != 0)
+            throw new UnsupportedOperationException(LANES + " float lanes don't divide a mask word");
+        this.scalar = scalar;
+    }
+
+    @Override
+    public boolean intersects(float[] a, float[] b) {
+        return scalar.intersects(a, b);
+    }
+
+    @Override
+    public boolean containsPoint(float[] mbr, float[] cords) {
+        return scalar.containsPoint(mbr, cords);
+    }
+
+    @Override
+    public double volume(float[] mbr) {
+        return scalar.volume(mbr);
+    }
+
+    @Override
+    public double margin(float[] mbr) {
+        return scalar.margin(mbr);
+    }
+
+    @Override
+    public double overlapVolume(float[] a, float[] b) {
+        return scalar.overlapVolume(a, b);
+    }
+
+    @Override
+    public double enlargement(float[] mbr, float[] added) {
+        return scalar.enlargement(mbr, added);
+    }
+
+    @Override
+    public void unionInto(float[] a, float[] b, float[] dst) {
+        scalar.unionInto(a, b, dst);
+    }
+
+    /**
+     * entries are taken LANES at a time: every dimension adds the
+     * lanes failing it to one mask, and the lanes left over are
+     * written to the lanes' bits of the mask word. only the last,
+     * partial group of lanes loads through a mask.
+     */
+    @Override
+    public int filter(EntryBlock entries, float[] query, long[] mask) {
+        int size = entries.size();
+        int words = (size + 63) >>> 6;
+        float[][] columns = entries.getColumns();
+        int full = SPECIES.loopBound(size);
+        int base = 0;
+        for (; base < full; base += LANES) {
+            VectorMask<Float> fail = SPECIES.maskAll(false);
+            for (int j = 0; j < columns.length; j += 2) {
+                FloatVector maxs = FloatVector.fromArray(SPECIES, columns[j + HyperRectangle.MAX_CORD], base);
+                FloatVector mins = FloatVector.fromArray(SPECIES, columns[j + HyperRectangle.MIN_CORD], base);
+                fail = fail.or(maxs.compare(VectorOperators.LT, query[j + HyperRectangle.MIN_CORD]))
+                           .or(mins.compare(VectorOperators.GT, query[j + HyperRectangle.MAX_CORD]));
+            }
+            setBits(mask, base, fail.not().toLong());
+        }
+        if (base < size) {
+            VectorMask<Float> lanes = SPECIES.indexInRange(base, size);
+            VectorMask<Float> fail = lanes.not();
+            for (int j = 0; j < columns.length; j += 2) {
+                FloatVector maxs = FloatVector.fromArray(SPECIES, columns[j + HyperRectangle.MAX_CORD], base, lanes);
+                FloatVector mins = FloatVector.fromArray(SPECIES, columns[j + HyperRectangle.MIN_CORD], base, lanes);
+                fail = fail.or(maxs.compare(VectorOperators.LT, query[j + HyperRectangle.MIN_CORD]))
+                           .or(mins.compare(VectorOperators.GT, query[j + HyperRectangle.MAX_CORD]));
+            }
+            setBits(mask, base, fail.not().toLong());
+        }
+        return countMask(mask, words);
+    }
+
+    /**
+     * @param bits one bit per lane of the entries from base on
+     */
+    private static void setBits(long[] mask, int base, long bits) {
+        if ((base & 63) == 0)
+            mask[base >>> 6] = bits;
+        else
+            mask[base >>> 6] |= bits << (base & 63);
+    }
+
+    @Override
+    public void minDistances(EntryBlock entries, float[] cords, float[] out) {
+        int size = entries.size();
+        float[][] columns = entries.getColumns();
+        int full = SPECIES.loopBound(size);
+        int base = 0;
+        for (; base < full; base += LANES) {
+            FloatVector sum = FloatVector.zero(SPECIES);
+            for (int i = 0; i < cords.length; i++) {
+                FloatVector maxs = FloatVector.fromArray(SPECIES, columns[(i << 1) + HyperRectangle.MAX_CORD], base);
+                FloatVector mins = FloatVector.fromArray(SPECIES, columns[(i << 1) + HyperRectangle.MIN_CORD], base);
+                FloatVector d = mins.sub(cords[i]).max(maxs.neg().add(cords[i])).max(0f);
+                sum = d.fma(d, sum);
+            }
+            sum.intoArray(out, base);
+        }
+        if (base < size) {
+            VectorMask<Float> lanes = SPECIES.indexInRange(base, size);
+            FloatVector sum = FloatVector.zero(SPECIES);
+            for (int i = 0; i < cords.length; i++) {
+                FloatVector maxs = FloatVector.fromArray(SPECIES, columns[(i << 1) + HyperRectangle.MAX_CORD], base, lanes);
+                FloatVector mins = FloatVector.fromArray(SPECIES, columns[(i << 1) + HyperRectangle.MIN_CORD], base, lanes);
+                FloatVector d = mins.sub(cords[i]).max(maxs.neg().add(cords[i])).max(0f);
+                sum = d.fma(d, sum);
+            }
+            sum.intoArray(out, base, lanes);
+        }
+    }
+}